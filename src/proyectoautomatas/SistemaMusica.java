@@ -5,14 +5,44 @@
  */
 package proyectoautomatas;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Segment;
 import javax.sound.sampled.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteOrder;
 import java.util.*;
-import java.util.regex.*;
+import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  *
@@ -26,23 +56,68 @@ public class SistemaMusica extends javax.swing.JFrame {
     // Componentes de la interfaz
     private JTextArea areaResultados;
     private JScrollPane panelScroll;
+    private JList<String> listaParrafos;
+    private JSplitPane panelResultados;
     private JButton btnCargarArchivo;
     private JButton btnAbrirArchivo;
     private JButton btnDetener;
     private JButton btnDetener2;
+    private JButton btnPausa;
+    private JButton btnIrAParrafo;
     private JButton btnEjemplo;
     private JButton btnAyuda;
+    private JButton btnDiagnostico;
+    private JButton btnPaginaAnterior;
+    private JButton btnPaginaSiguiente;
+    private JComboBox<FormaOnda> comboFormaOnda;
+    private JComboBox<FormatoAudio> comboFormatoAudio;
+    private JComboBox<Temperamento> comboTemperamento;
+    private JSpinner spinnerLa4;
+    private JSpinner spinnerAnticipacion;
     private JLabel lblEstado;
 
-    // Control de reproducción
-    private boolean reproduciendo = false;
-    private boolean detenerSolicitado = false;
-    private Thread hiloReproduccion;
+    // Edición en vivo
+    private JButton btnEditar;
+    private JTextArea areaEdicion;
+    private JSplitPane panelEdicion;
+    private boolean modoEdicion = false;
+    private PartituraEnVivo partituraEnVivo;
+    private javax.swing.Timer temporizadorEdicion;
+    private int lineaReinicio;
+    private final Segment segmentoLinea = new Segment();
+    private CharSequence ultimoTexto = "";
+    private String ultimaFuente = "Partitura nueva";
+    // Espera tras la última tecla antes de volver a reproducir
+    private static final int ESPERA_EDICION_MS = 600;
+    private static final int MAXIMO_PARRAFOS_REPORTE_EDICION = 10;
+
+    // Filas de la lista de párrafos y párrafo resaltado en ella
+    private FilasParrafos filasActuales = new FilasParrafos();
+    private int filaResaltada = -1;
+    // Filas de la partitura que suena en flujo, para reproducirla desde otro párrafo
+    private FilasFlujo filasFlujo;
+    private static final int TOP_RANKING = 5;
+    private static final int ANCHO_FILA = 600;
+    private static final Color COLOR_SONANDO = new Color(255, 236, 160);
+
+    // Progreso publicado por el hilo de reproducción; la interfaz lo aplica
+    // a lo sumo ACTUALIZACIONES_POR_SEGUNDO veces por segundo
+    private static final int ACTUALIZACIONES_POR_SEGUNDO = 30;
+    private volatile int parrafoSonando = -1;
+    private final AtomicReference<String> estadoPendiente = new AtomicReference<>();
+    private javax.swing.Timer temporizadorProgreso;
+
+    // Tamaño a partir del cual una partitura se procesa en flujo
+    private static final long UMBRAL_FLUJO_BYTES = 1024 * 1024;
+
+    // Control de reproducción: máquina de estados con su propio hilo
+    private final ControlReproduccion controlReproduccion;
 
     // Motor de análisis musical
     private final AnalizadorMusical analizador;
     private final GeneradorSonido generadorSonido;
     private final GramaticaMusical gramatica;
+    private final CachePartituras cachePartituras;
 
     /**
      * Constructor principal del sistema musical
@@ -52,7 +127,10 @@ public class SistemaMusica extends javax.swing.JFrame {
         // Inicializar los componentes del motor musical
         this.gramatica = new GramaticaMusical();
         this.analizador = new AnalizadorMusical(gramatica);
-        this.generadorSonido = new GeneradorSonido();
+        this.generadorSonido = new GeneradorSonido(gramatica);
+        this.controlReproduccion = new ControlReproduccion(generadorSonido,
+                (anterior, nuevo) -> SwingUtilities.invokeLater(() -> actualizarControles(anterior, nuevo)));
+        this.cachePartituras = CachePartituras.porDefecto();
 
         // Configurar la interfaz de usuario
         inicializarInterfaz();
@@ -85,7 +163,18 @@ public class SistemaMusica extends javax.swing.JFrame {
         configurarAreaTexto();
         panelScroll = new JScrollPane(areaResultados);
         panelScroll.setBorder(BorderFactory.createTitledBorder("Análisis Musical - Por Juan Samayoa"));
-        add(panelScroll, BorderLayout.CENTER);
+
+        // Lista de párrafos: solo se arman y pintan las filas visibles
+        listaParrafos = new JList<>(filasActuales);
+        configurarListaParrafos();
+        JScrollPane scrollLista = new JScrollPane(listaParrafos);
+        scrollLista.setBorder(BorderFactory.createTitledBorder("Parrafos"));
+
+        panelResultados = new JSplitPane(JSplitPane.VERTICAL_SPLIT, panelScroll, scrollLista);
+        panelResultados.setResizeWeight(0.45);
+        add(panelResultados, BorderLayout.CENTER);
+
+        temporizadorProgreso = new javax.swing.Timer(1000 / ACTUALIZACIONES_POR_SEGUNDO, e -> aplicarProgreso());
 
         // Inicializar etiqueta de estado
         lblEstado = new JLabel("Sistema listo. Carga un archivo o usa el ejemplo incluido");
@@ -117,6 +206,58 @@ public class SistemaMusica extends javax.swing.JFrame {
         areaResultados.setWrapStyleWord(true);
     }
 
+    /**
+     * Alto y ancho de celda fijos: así la lista no mide todas las filas al
+     * cambiar de modelo, solo pide las que están a la vista
+     */
+    private void configurarListaParrafos() {
+        listaParrafos.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        listaParrafos.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        listaParrafos.setFixedCellHeight(listaParrafos.getFontMetrics(listaParrafos.getFont()).getHeight() + 4);
+        listaParrafos.setFixedCellWidth(ANCHO_FILA);
+        listaParrafos.setCellRenderer(new RenderizadorParrafo());
+        listaParrafos.setToolTipText("");
+        listaParrafos.getAccessibleContext().setAccessibleName("Parrafos de la partitura");
+        listaParrafos.getAccessibleContext().setAccessibleDescription(
+                "Un renglon por parrafo; el que suena aparece resaltado. Enter reproduce desde el seleccionado");
+
+        // Enter o doble clic: reproducir desde el párrafo de la fila
+        listaParrafos.getInputMap(JComponent.WHEN_FOCUSED)
+                .put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "reproducirDesdeAqui");
+        listaParrafos.getActionMap().put("reproducirDesdeAqui", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                reproducirDesdeFila(listaParrafos.getSelectedIndex());
+            }
+        });
+        listaParrafos.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    reproducirDesdeFila(listaParrafos.locationToIndex(e.getPoint()));
+                }
+            }
+        });
+    }
+
+    /**
+     * Pinta la fila del párrafo que suena con otro fondo y en negrita
+     * El texto completo queda como tooltip por si la fila no cabe
+     */
+    private final class RenderizadorParrafo extends DefaultListCellRenderer {
+        @Override
+        public Component getListCellRendererComponent(JList<?> lista, Object valor, int indice,
+                boolean seleccionado, boolean conFoco) {
+            super.getListCellRendererComponent(lista, valor, indice, seleccionado, conFoco);
+            boolean sonando = indice == filaResaltada;
+            if (sonando && !seleccionado) {
+                setBackground(COLOR_SONANDO);
+            }
+            setFont(sonando ? lista.getFont().deriveFont(Font.BOLD) : lista.getFont());
+            setToolTipText((String) valor);
+            return this;
+        }
+    }
+
     /**
      * Crea el panel de controles con botones para interactuar con el sistema
      * Incluye botones para cargar archivo, abrir archivo, ejemplo, detener y ayuda
@@ -150,6 +291,28 @@ public class SistemaMusica extends javax.swing.JFrame {
         btnDetener2.addActionListener(this::accionDetenerMusica);
         btnDetener2.setEnabled(false);
 
+        // Pausa y salto a otro párrafo sin cortar la sesión
+        btnPausa = crearBotonSimple("Pausa", "Pausa o reanuda la reproducción (Ctrl+P)");
+        btnPausa.addActionListener(this::accionPausar);
+        btnPausa.setEnabled(false);
+        btnIrAParrafo = crearBotonSimple("Ir a Parrafo", "Sigue la reproducción desde otro párrafo (Ctrl+G)");
+        btnIrAParrafo.addActionListener(this::accionIrAParrafo);
+        btnIrAParrafo.setEnabled(false);
+
+        // Botón para editar la partitura y escuchar los cambios
+        btnEditar = crearBotonSimple("Editar en Vivo", "Edita la partitura; cada cambio se vuelve a escuchar");
+        btnEditar.addActionListener(this::accionEditarEnVivo);
+
+        // Navegación de la lista de párrafos
+        btnPaginaAnterior = crearBotonSimple("< Pagina", "Sube una página en la lista de párrafos (Ctrl+RePág)");
+        btnPaginaAnterior.addActionListener(e -> accionCambiarPagina(-1));
+        btnPaginaSiguiente = crearBotonSimple("Pagina >", "Baja una página en la lista de párrafos (Ctrl+AvPág)");
+        btnPaginaSiguiente.addActionListener(e -> accionCambiarPagina(1));
+
+        // Telemetría de la reproducción
+        btnDiagnostico = crearBotonSimple("Diagnostico", "Tiempos de síntesis, esperas y subdesbordamientos (Ctrl+D)");
+        btnDiagnostico.addActionListener(this::accionMostrarDiagnostico);
+
         // Botón de ayuda
         btnAyuda = crearBotonSimple("Ayuda", "Información sobre el sistema");
         btnAyuda.addActionListener(this::accionMostrarAyuda);
@@ -159,8 +322,63 @@ public class SistemaMusica extends javax.swing.JFrame {
         panelBotones.add(btnEjemplo);
         panelBotones.add(btnDetener);
         panelBotones.add(btnDetener2);
+        panelBotones.add(btnPausa);
+        panelBotones.add(btnIrAParrafo);
+        panelBotones.add(btnEditar);
+        panelBotones.add(btnPaginaAnterior);
+        panelBotones.add(btnPaginaSiguiente);
+        panelBotones.add(btnDiagnostico);
         panelBotones.add(btnAyuda);
 
+        // Selector de timbre para el oscilador
+        comboFormaOnda = new JComboBox<>(FormaOnda.values());
+        comboFormaOnda.setToolTipText("Forma de onda usada para sintetizar las notas");
+        comboFormaOnda.addActionListener(e -> generadorSonido
+                .setFormaOnda((FormaOnda) comboFormaOnda.getSelectedItem()));
+        JLabel lblFormaOnda = new JLabel("Timbre:");
+        lblFormaOnda.setLabelFor(comboFormaOnda);
+        panelBotones.add(lblFormaOnda);
+        panelBotones.add(comboFormaOnda);
+
+        // Formato de salida de la reproducción
+        comboFormatoAudio = new JComboBox<>(FormatoAudio.disponibles());
+        comboFormatoAudio.setToolTipText("Frecuencia de muestreo y profundidad; se aplica en la siguiente reproducción");
+        comboFormatoAudio.addActionListener(e -> generadorSonido
+                .setFormato((FormatoAudio) comboFormatoAudio.getSelectedItem()));
+        JLabel lblFormatoAudio = new JLabel("Salida:");
+        lblFormatoAudio.setLabelFor(comboFormatoAudio);
+        panelBotones.add(lblFormatoAudio);
+        panelBotones.add(comboFormatoAudio);
+
+        // Audio que se sintetiza por delante de la salida
+        spinnerAnticipacion = new JSpinner(new SpinnerNumberModel(GeneradorSonido.ANTICIPACION_POR_DEFECTO_MS,
+                GeneradorSonido.ANTICIPACION_MINIMA_MS, GeneradorSonido.ANTICIPACION_MAXIMA_MS, 50));
+        spinnerAnticipacion.setToolTipText(
+                "Milisegundos de audio sintetizados por adelantado; se aplica en la siguiente reproducción");
+        spinnerAnticipacion.addChangeListener(e -> generadorSonido
+                .setAnticipacionMs(((Number) spinnerAnticipacion.getValue()).intValue()));
+        JLabel lblAnticipacion = new JLabel("Anticipacion (ms):");
+        lblAnticipacion.setLabelFor(spinnerAnticipacion);
+        panelBotones.add(lblAnticipacion);
+        panelBotones.add(spinnerAnticipacion);
+
+        // Afinación: frecuencia de referencia del LA4 y temperamento
+        comboTemperamento = new JComboBox<>(Temperamento.values());
+        comboTemperamento.setToolTipText("Sistema de afinación de las notas");
+        comboTemperamento.addActionListener(e -> aplicarAfinacion());
+        JLabel lblTemperamento = new JLabel("Afinación:");
+        lblTemperamento.setLabelFor(comboTemperamento);
+        panelBotones.add(lblTemperamento);
+        panelBotones.add(comboTemperamento);
+
+        spinnerLa4 = new JSpinner(new SpinnerNumberModel(TablaAfinacion.LA4_ESTANDAR, 400.0, 480.0, 1.0));
+        spinnerLa4.setToolTipText("Frecuencia del LA central en Hz");
+        spinnerLa4.addChangeListener(e -> aplicarAfinacion());
+        JLabel lblLa4 = new JLabel("LA4 (Hz):");
+        lblLa4.setLabelFor(spinnerLa4);
+        panelBotones.add(lblLa4);
+        panelBotones.add(spinnerLa4);
+
         // Añadir el subpanel de botones
         panelPrincipal.add(panelBotones);
 
@@ -172,6 +390,11 @@ public class SistemaMusica extends javax.swing.JFrame {
         return panelPrincipal;
     }
 
+    private void aplicarAfinacion() {
+        gramatica.setAfinacion(((Number) spinnerLa4.getValue()).doubleValue(),
+                (Temperamento) comboTemperamento.getSelectedItem());
+    }
+
     private JButton crearBotonSimple(String texto, String tooltip) {
         JButton boton = new JButton(texto);
         boton.setToolTipText(tooltip);
@@ -199,6 +422,50 @@ public class SistemaMusica extends javax.swing.JFrame {
             }
         });
 
+        // Ctrl+L para el modo de edición en vivo
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_L, KeyEvent.CTRL_DOWN_MASK), "editar");
+        actionMap.put("editar", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                accionEditarEnVivo(e);
+            }
+        });
+
+        // Ctrl+RePág y Ctrl+AvPág para recorrer la lista de párrafos
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_PAGE_UP, KeyEvent.CTRL_DOWN_MASK), "paginaAnterior");
+        actionMap.put("paginaAnterior", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                accionCambiarPagina(-1);
+            }
+        });
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_PAGE_DOWN, KeyEvent.CTRL_DOWN_MASK), "paginaSiguiente");
+        actionMap.put("paginaSiguiente", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                accionCambiarPagina(1);
+            }
+        });
+
+        // Ctrl+D para el diagnóstico de reproducción
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_D, KeyEvent.CTRL_DOWN_MASK), "diagnostico");
+        actionMap.put("diagnostico", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                accionMostrarDiagnostico(e);
+            }
+        });
+
+        // Ctrl+P para pausar o reanudar y Ctrl+G para ir a un párrafo
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_P, KeyEvent.CTRL_DOWN_MASK), "pausa");
+        actionMap.put("pausa", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                accionPausar(e);
+            }
+        });
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_G, KeyEvent.CTRL_DOWN_MASK), "irAParrafo");
+        actionMap.put("irAParrafo", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                accionIrAParrafo(e);
+            }
+        });
+
         // Escape para detener
         inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "detener");
         actionMap.put("detener", new AbstractAction() {
@@ -213,7 +480,8 @@ public class SistemaMusica extends javax.swing.JFrame {
                 "Este sistema convierte partituras de texto en musica.\n\n" +
                 "Notas: DO, RE, MI, FA, SOL, LA, SI (naturales, #/s para sostenidos, b para bemoles, ' para octavas)\n\n"
                 +
-                "Atajos: Ctrl+O (cargar), Ctrl+E (ejemplo), Escape (detener)\n\n" +
+                "Atajos: Ctrl+O (cargar), Ctrl+E (ejemplo), Ctrl+L (editar en vivo), Ctrl+D (diagnostico),\n" +
+                "Ctrl+P (pausa), Ctrl+G (ir a parrafo), Enter en la lista (reproducir desde alli), Escape (detener)\n\n" +
                 "Comienza cargando un archivo o usando el ejemplo.";
 
         areaResultados.setText(mensaje);
@@ -227,7 +495,7 @@ public class SistemaMusica extends javax.swing.JFrame {
      * Verifica que no haya reproducción en curso antes de proceder
      */
     private void accionCargarArchivo(ActionEvent evento) {
-        if (reproduciendo) {
+        if (controlReproduccion.estaOcupado()) {
             JOptionPane.showMessageDialog(this,
                     "Hay una reproduccion en curso. Deten la musica actual primero.",
                     "Sistema Ocupado", JOptionPane.WARNING_MESSAGE);
@@ -256,27 +524,20 @@ public class SistemaMusica extends javax.swing.JFrame {
     /**
      * Lee el contenido del archivo de ejemplo
      */
-    private String leerArchivoEjemplo() throws IOException {
+    private CharSequence leerArchivoEjemplo() throws IOException {
         File archivoEjemplo = new File("partitura_ejemplo.txt");
         if (!archivoEjemplo.exists()) {
             throw new IOException("El archivo partitura_ejemplo.txt no existe en el directorio del proyecto");
         }
 
-        StringBuilder contenido = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(archivoEjemplo))) {
-            String linea;
-            while ((linea = reader.readLine()) != null) {
-                contenido.append(linea).append("\n");
-            }
-        }
-        return contenido.toString().trim();
+        return CargadorPartitura.mapear(archivoEjemplo);
     }
 
     /**
      * Maneja el evento de usar el ejemplo predefinido incluido en el proyecto
      */
     private void accionUsarEjemplo(ActionEvent evento) {
-        if (reproduciendo) {
+        if (controlReproduccion.estaOcupado()) {
             JOptionPane.showMessageDialog(this,
                     "Hay una reproducción en curso. Detén la música actual primero.",
                     "Sistema Ocupado", JOptionPane.WARNING_MESSAGE);
@@ -285,7 +546,7 @@ public class SistemaMusica extends javax.swing.JFrame {
 
         try {
             // Leer el archivo de ejemplo
-            String contenido = leerArchivoEjemplo();
+            CharSequence contenido = leerArchivoEjemplo();
             procesarTextoMusical(contenido, "Ejemplo Integrado");
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this,
@@ -296,25 +557,165 @@ public class SistemaMusica extends javax.swing.JFrame {
 
     /**
      * Maneja el evento de detener la reproducción musical actual
+     * La línea se vacía aquí mismo; la latencia desde la pulsación (la espera
+     * en la cola de eventos más el corte) queda en la telemetría
      */
     private void accionDetenerMusica(ActionEvent evento) {
-        if (reproduciendo) {
-            detenerSolicitado = true;
-            generadorSonido.detenerTodo();
-
-            if (hiloReproduccion != null) {
-                hiloReproduccion.interrupt();
-            }
-
-            SwingUtilities.invokeLater(() -> {
-                reproduciendo = false;
-                btnCargarArchivo.setEnabled(true);
-                btnEjemplo.setEnabled(true);
-                btnDetener.setEnabled(false);
-                btnDetener2.setEnabled(false);
-                areaResultados.append("\n\nReproducción detenida por el usuario");
-                actualizarEstado("Reproducción detenida");
-            });
+        long inicio = System.nanoTime();
+        if (!controlReproduccion.detener())
+            return;
+
+        long enCola = evento != null && evento.getWhen() > 0
+                ? Math.max(0, System.currentTimeMillis() - evento.getWhen()) * 1_000_000L
+                : 0;
+        generadorSonido.getTelemetria().registrarDetencion(enCola + System.nanoTime() - inicio);
+        areaResultados.append("\n\nReproducción detenida por el usuario");
+        actualizarEstado("Reproducción detenida");
+    }
+
+    private void accionPausar(ActionEvent evento) {
+        controlReproduccion.alternarPausa();
+    }
+
+    /**
+     * Pide el número de párrafo y sigue la reproducción desde él
+     */
+    private void accionIrAParrafo(ActionEvent evento) {
+        if (!controlReproduccion.estaOcupado())
+            return;
+
+        String respuesta = JOptionPane.showInputDialog(this, "Numero de parrafo:", "Ir a parrafo",
+                JOptionPane.QUESTION_MESSAGE);
+        if (respuesta == null)
+            return;
+        try {
+            reproducirDesdeParrafo(Integer.parseInt(respuesta.trim()) - 1);
+        } catch (NumberFormatException e) {
+            actualizarEstado("Numero de parrafo invalido: " + respuesta);
+        }
+    }
+
+    private void reproducirDesdeFila(int fila) {
+        if (fila >= 0 && fila < filasActuales.getSize()) {
+            reproducirDesdeParrafo(filasActuales.parrafoDeFila(fila));
+        }
+    }
+
+    /**
+     * Salta al párrafo (desde 0) si algo suena; si no, empieza a reproducir
+     * desde él la partitura analizada que muestra la lista
+     */
+    private void reproducirDesdeParrafo(int parrafo) {
+        ResultadoAnalisis resultado = filasActuales.getResultado();
+        IndiceParrafos indice = filasActuales.getIndice();
+        int total = resultado != null ? resultado.getTotalParrafos()
+                : indice != null ? indice.getTotal() : Integer.MAX_VALUE;
+        if (parrafo < 0 || parrafo >= total) {
+            actualizarEstado(String.format("No existe el parrafo %d", parrafo + 1));
+            return;
+        }
+
+        if (controlReproduccion.estaOcupado()) {
+            if (filasActuales.soloAvanza() && parrafo < parrafoSonando) {
+                actualizarEstado("Indexando la partitura; mientras tanto solo se puede avanzar");
+            } else if (controlReproduccion.buscar(parrafo)) {
+                actualizarEstado(String.format("Saltando al parrafo %d", parrafo + 1));
+            }
+        } else if (resultado != null) {
+            iniciarReproduccion(() -> reproducirPartitura(resultado.getPartitura(),
+                    RecorridoPartitura.TEMPO_POR_DEFECTO, 0, resultado.getTotalParrafos(), parrafo));
+        } else if (indice != null && filasActuales == filasFlujo) {
+            FilasFlujo filas = filasFlujo;
+            iniciarReproduccion(() -> reproducirEnFlujo(filas, parrafo));
+        } else {
+            actualizarEstado("Carga la partitura de nuevo para reproducirla desde otro parrafo");
+        }
+    }
+
+    /**
+     * Refleja en los botones el estado de la reproducción; se llama en el hilo
+     * de la interfaz con cada transición, en el orden en que ocurrieron
+     */
+    private void actualizarControles(EstadoReproduccion anterior, EstadoReproduccion nuevo) {
+        // Los botones siguen el estado actual por si otra transición ya está en camino
+        EstadoReproduccion estado = controlReproduccion.getEstado();
+        boolean ocupado = controlReproduccion.estaOcupado();
+        boolean sonando = estado == EstadoReproduccion.REPRODUCIENDO || estado == EstadoReproduccion.PAUSADO;
+        btnCargarArchivo.setEnabled(!ocupado);
+        btnEjemplo.setEnabled(!ocupado);
+        btnDetener.setEnabled(ocupado);
+        btnDetener2.setEnabled(ocupado);
+        btnPausa.setEnabled(sonando);
+        btnPausa.setText(estado == EstadoReproduccion.PAUSADO ? "Reanudar" : "Pausa");
+        btnIrAParrafo.setEnabled(sonando);
+
+        if (nuevo == EstadoReproduccion.REPRODUCIENDO) {
+            temporizadorProgreso.start();
+            actualizarEstado(anterior == EstadoReproduccion.PAUSADO ? "Reanudado" : "Reproduciendo...");
+        } else if (nuevo == EstadoReproduccion.PAUSADO) {
+            actualizarEstado("En pausa");
+        } else if (nuevo == EstadoReproduccion.INACTIVO) {
+            temporizadorProgreso.stop();
+            parrafoSonando = -1;
+            aplicarProgreso();
+            if (anterior != EstadoReproduccion.DETENIENDO) {
+                actualizarEstado("Reproduccion completada");
+            }
+        }
+    }
+
+    /**
+     * Muestra la telemetría de reproducción en un diálogo no modal que se puede
+     * actualizar, reiniciar o exportar como JSON
+     */
+    private void accionMostrarDiagnostico(ActionEvent evento) {
+        TelemetriaAudio telemetria = generadorSonido.getTelemetria();
+        JTextArea texto = new JTextArea(telemetria.resumen(), 16, 104);
+        texto.setEditable(false);
+        texto.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        texto.getAccessibleContext().setAccessibleName("Telemetria de reproduccion");
+
+        JDialog dialogo = new JDialog(this, "Diagnostico de reproduccion", false);
+        JButton btnActualizar = crearBotonSimple("Actualizar", "Vuelve a leer los contadores");
+        btnActualizar.addActionListener(e -> texto.setText(telemetria.resumen()));
+        JButton btnReiniciar = crearBotonSimple("Reiniciar", "Pone en cero todos los contadores");
+        btnReiniciar.addActionListener(e -> {
+            telemetria.reiniciar();
+            texto.setText(telemetria.resumen());
+        });
+        JButton btnExportar = crearBotonSimple("Exportar JSON", "Guarda los histogramas completos en un archivo");
+        btnExportar.addActionListener(e -> exportarTelemetria(dialogo, telemetria));
+        JButton btnCerrar = crearBotonSimple("Cerrar", "Cierra el diagnóstico");
+        btnCerrar.addActionListener(e -> dialogo.dispose());
+
+        JPanel botones = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 10));
+        botones.add(btnActualizar);
+        botones.add(btnReiniciar);
+        botones.add(btnExportar);
+        botones.add(btnCerrar);
+
+        dialogo.getContentPane().add(new JScrollPane(texto), BorderLayout.CENTER);
+        dialogo.getContentPane().add(botones, BorderLayout.SOUTH);
+        dialogo.getRootPane().registerKeyboardAction(e -> dialogo.dispose(),
+                KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_IN_FOCUSED_WINDOW);
+        dialogo.pack();
+        dialogo.setLocationRelativeTo(this);
+        dialogo.setVisible(true);
+    }
+
+    private void exportarTelemetria(Component padre, TelemetriaAudio telemetria) {
+        JFileChooser selector = new JFileChooser();
+        selector.setDialogTitle("Exportar telemetria");
+        selector.setSelectedFile(new File("telemetria.json"));
+        if (selector.showSaveDialog(padre) != JFileChooser.APPROVE_OPTION)
+            return;
+
+        try {
+            Files.writeString(selector.getSelectedFile().toPath(), Json.telemetria(telemetria));
+            actualizarEstado("Telemetria exportada a " + selector.getSelectedFile().getName());
+        } catch (IOException error) {
+            JOptionPane.showMessageDialog(padre, "No se pudo exportar: " + error.getMessage(), "Error",
+                    JOptionPane.ERROR_MESSAGE);
         }
     }
 
@@ -327,39 +728,247 @@ public class SistemaMusica extends javax.swing.JFrame {
                 "Notas naturales: DO, RE, MI, FA, SOL, LA, SI\n" +
                 "Sostenidos: nota# o notas\n" +
                 "Bemoles: notab\n" +
-                "Octavas: nota' (más aguda), nota'' (aún más aguda)\n\n" +
+                "Octavas: nota' (más aguda), nota'' (aún más aguda), nota, (más grave)\n" +
+                "Acordes: [do mi sol] suenan a la vez\n" +
+                "Duraciones: sol:1 redonda, sol:2 blanca, sol:4 negra, sol:8 corchea... la:8. con puntillo\n" +
+                "Silencios: _ (negra) o _:2, _:8...\n" +
+                "Tempo: tempo=120 (negras por minuto)\n" +
+                "Repeticiones: |: do re mi :| (dos veces) o |: do :|4\n\n" +
                 "Ejemplos:\n" +
                 "sol sol sol re# fa fa fa re\n" +
                 "do reb mib fa solb lab sib\n" +
                 "la' sol' fa' mi' re' do'\n" +
-                "dos res mis fa sols las sis\n\n" +
+                "dos res mis fa sols las sis\n" +
+                "[do mi sol] [fa la do'] [sol si re']\n" +
+                "tempo=90 |: sol:8 sol:8 la:4 _ :| do'\n\n" +
                 "Caracteristicas:\n" +
                 "- Expresiones regulares para analisis\n" +
                 "- Arboles sintacticos\n" +
                 "- Audio en tiempo real\n" +
                 "- Conteo automatico de notas\n\n" +
-                "Reproduccion: 500ms por nota, pausas automaticas";
+                "Reproduccion: negra de 500ms a tempo 120, pausas automaticas\n" +
+                "Pausa (Ctrl+P), ir a parrafo (Ctrl+G) o Enter sobre una fila de la lista\n\n" +
+                "Edicion en vivo (Ctrl+L): al dejar de escribir se vuelve a reproducir\n" +
+                "desde el parrafo editado";
 
         JOptionPane.showMessageDialog(this, ayuda, "Ayuda", JOptionPane.INFORMATION_MESSAGE);
     }
 
+    // EDICIÓN EN VIVO
+
+    /**
+     * Entra o sale del modo de edición en vivo
+     * El editor se abre con la última partitura cargada y el reporte queda a su lado
+     */
+    private void accionEditarEnVivo(ActionEvent evento) {
+        if (panelEdicion == null) {
+            crearPanelEdicion();
+        }
+
+        if (modoEdicion) {
+            temporizadorEdicion.stop();
+            modoEdicion = false;
+            add(panelResultados, BorderLayout.CENTER);
+            remove(panelEdicion);
+            btnEditar.setText("Editar en Vivo");
+            actualizarEstado("Modo de edicion cerrado");
+        } else {
+            modoEdicion = true;
+            mostrarFilas(new FilasParrafos());
+            cargarEnEditor(ultimoTexto);
+            remove(panelResultados);
+            panelEdicion.setRightComponent(panelResultados);
+            add(panelEdicion, BorderLayout.CENTER);
+            btnEditar.setText("Cerrar Editor");
+            areaEdicion.requestFocusInWindow();
+            actualizarEstado("Edicion en vivo: los cambios se escuchan al dejar de escribir");
+        }
+        revalidate();
+        repaint();
+    }
+
+    private void crearPanelEdicion() {
+        areaEdicion = new JTextArea();
+        areaEdicion.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 14));
+        areaEdicion.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        areaEdicion.getAccessibleContext().setAccessibleName("Editor de partitura");
+
+        JScrollPane scrollEdicion = new JScrollPane(areaEdicion);
+        scrollEdicion.setBorder(BorderFactory.createTitledBorder("Partitura (un parrafo por linea)"));
+        panelEdicion = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, scrollEdicion, null);
+        panelEdicion.setResizeWeight(0.5);
+
+        partituraEnVivo = new PartituraEnVivo(gramatica);
+        temporizadorEdicion = new javax.swing.Timer(ESPERA_EDICION_MS, e -> reiniciarReproduccionDesde(lineaReinicio));
+        temporizadorEdicion.setRepeats(false);
+    }
+
+    /**
+     * Pone el texto en un documento nuevo y analiza todas sus líneas una vez
+     * A partir de aquí cada cambio del documento solo toca las líneas afectadas
+     */
+    private void cargarEnEditor(CharSequence texto) {
+        PlainDocument documento = new PlainDocument();
+        try {
+            documento.insertString(0, texto.toString(), null);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+
+        partituraEnVivo.limpiar();
+        Element raiz = documento.getDefaultRootElement();
+        for (int i = 0; i < raiz.getElementCount(); i++) {
+            partituraEnVivo.insertarLinea(i, textoLinea(documento, raiz.getElement(i)));
+        }
+
+        documento.addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                actualizarEdicion(e);
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                actualizarEdicion(e);
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                // Solo cambian atributos; el texto es el mismo
+            }
+        });
+        areaEdicion.setDocument(documento);
+        mostrarReporteEdicion(0, 0, 0);
+    }
+
+    /**
+     * Aplica un cambio del documento a la partitura en vivo
+     * El cambio de estructura del documento indica qué líneas se quitaron y
+     * cuáles se agregaron; sin él, solo cambió el texto de una línea
+     */
+    private void actualizarEdicion(DocumentEvent evento) {
+        long inicio = System.nanoTime();
+        Document documento = evento.getDocument();
+        Element raiz = documento.getDefaultRootElement();
+        DocumentEvent.ElementChange cambio = evento.getChange(raiz);
+
+        int indice;
+        int agregadas;
+        if (cambio == null) {
+            indice = raiz.getElementIndex(evento.getOffset());
+            agregadas = 1;
+            partituraEnVivo.reemplazarLinea(indice, textoLinea(documento, raiz.getElement(indice)));
+        } else {
+            indice = cambio.getIndex();
+            agregadas = cambio.getChildrenAdded().length;
+            partituraEnVivo.quitarLineas(indice, cambio.getChildrenRemoved().length);
+            for (int k = 0; k < agregadas; k++) {
+                partituraEnVivo.insertarLinea(indice + k, textoLinea(documento, raiz.getElement(indice + k)));
+            }
+        }
+        long microsegundos = (System.nanoTime() - inicio) / 1000;
+
+        mostrarReporteEdicion(indice, agregadas, microsegundos);
+        lineaReinicio = indice;
+        temporizadorEdicion.restart();
+    }
+
+    /**
+     * Texto de una línea del documento sin el salto final; el segmento se reutiliza
+     */
+    private CharSequence textoLinea(Document documento, Element linea) {
+        try {
+            documento.getText(linea.getStartOffset(), linea.getEndOffset() - linea.getStartOffset() - 1,
+                    segmentoLinea);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        return segmentoLinea;
+    }
+
+    /**
+     * Reporte del modo edición: solo las secciones de los párrafos que cambiaron
+     * y el resumen global ya actualizado
+     */
+    private void mostrarReporteEdicion(int primeraLinea, int lineas, long microsegundos) {
+        StringBuilder reporte = new StringBuilder();
+        agregarEncabezadoReporte(reporte, ultimaFuente + " (edicion en vivo)");
+
+        StringBuilder contenido = new StringBuilder();
+        int[] conteo = new int[GramaticaMusical.NOMBRES_BASE.length];
+        int parrafo = partituraEnVivo.parrafoDeLinea(primeraLinea);
+        int mostrados = 0;
+        for (int i = primeraLinea; i < primeraLinea + lineas; i++) {
+            PartituraCompacta linea = partituraEnVivo.getLinea(i);
+            if (linea.getTotalParrafos() == 0)
+                continue;
+
+            if (mostrados == MAXIMO_PARRAFOS_REPORTE_EDICION) {
+                reporte.append("... y mas parrafos modificados\n\n");
+                break;
+            }
+            contenido.setLength(0);
+            linea.agregarTextoParrafo(0, contenido);
+            for (int base = 0; base < conteo.length; base++) {
+                conteo[base] = linea.getConteo(0, base);
+            }
+            agregarReporteParrafo(reporte, parrafo + mostrados + 1, contenido, linea.getNotasParrafo(0), conteo,
+                    EstadisticasMelodicas.registro(linea, 0));
+            mostrados++;
+        }
+
+        agregarResumenGlobal(reporte, partituraEnVivo.getEstadisticas());
+        agregarResumenMelodico(reporte, partituraEnVivo.getMelodia());
+        areaResultados.setText(reporte.toString());
+        if (lineas > 0) {
+            actualizarEstado(String.format("Linea %d actualizada en %d us", primeraLinea + 1, microsegundos));
+        }
+    }
+
+    /**
+     * Detiene lo que suene y reproduce la partitura del editor desde la línea indicada
+     */
+    private void reiniciarReproduccionDesde(int linea) {
+        if (linea >= partituraEnVivo.getTotalLineas()) {
+            controlReproduccion.detener();
+            return;
+        }
+
+        // iniciar corta lo que suene; la nueva tarea corre en cuanto la anterior sale
+        PartituraCompacta partitura = partituraEnVivo.partituraDesde(linea);
+        int tempo = partituraEnVivo.tempoAntesDe(linea);
+        int primerParrafo = partituraEnVivo.parrafoDeLinea(linea);
+        int totalParrafos = partituraEnVivo.getEstadisticas().getTotalParrafos();
+        iniciarReproduccion(() -> reproducirPartitura(partitura, tempo, primerParrafo, totalParrafos, 0));
+    }
+
     // PROCESAMIENTO MUSICAL
 
     /**
      * Procesa un archivo musical seleccionado por el usuario
-     * Lee el contenido y lo pasa al procesamiento de texto
+     * Mapea el archivo en memoria y busca su versión compilada en el caché;
+     * si no existe, pasa el texto al análisis y guarda el resultado
      */
     private void procesarArchivoMusical(File archivo) {
         try {
-            StringBuilder contenido = new StringBuilder();
-            try (BufferedReader lector = new BufferedReader(new FileReader(archivo))) {
-                String linea;
-                while ((linea = lector.readLine()) != null) {
-                    contenido.append(linea).append("\n");
+            VistaBytes contenido = null;
+            byte[] huella = null;
+            ResultadoAnalisis compilado = null;
+            if (archivo.length() <= CargadorPartitura.LIMITE_MAPEO) {
+                contenido = CargadorPartitura.mapear(archivo);
+                huella = CachePartituras.huella(contenido.contenido());
+                compilado = cachePartituras.buscar(huella);
+            }
+
+            // Las partituras grandes sin compilar se analizan y reproducen en flujo,
+            // párrafo a párrafo; mientras tanto se compilan para la próxima vez
+            if (compilado == null && archivo.length() > UMBRAL_FLUJO_BYTES) {
+                if (contenido != null) {
+                    compilarEnSegundoPlano(contenido, huella, archivo.getName());
                 }
+                procesarArchivoEnFlujo(archivo);
+                return;
             }
 
-            procesarTextoMusical(contenido.toString(), archivo.getName());
+            // El analizador recorre directamente los bytes del archivo mapeado
+            procesarTextoMusical(contenido, archivo.getName(), compilado, huella);
 
         } catch (IOException error) {
             JOptionPane.showMessageDialog(this,
@@ -369,19 +978,112 @@ public class SistemaMusica extends javax.swing.JFrame {
         }
     }
 
+    /**
+     * Reproduce una partitura grande sin cargarla entera: la reproducción empieza
+     * en cuanto se analiza el primer párrafo y las estadísticas se acumulan
+     * mientras avanza
+     */
+    private void procesarArchivoEnFlujo(File archivo) {
+        FilasFlujo filas = new FilasFlujo(archivo);
+        mostrarFilas(filas);
+        filasFlujo = filas;
+        StringBuilder reporte = new StringBuilder();
+        agregarEncabezadoReporte(reporte, archivo.getName());
+        reporte.append("Modo flujo: el analisis avanza junto con la reproduccion\n");
+        areaResultados.setText(reporte.toString());
+        actualizarEstado("Analizando partitura en flujo...");
+
+        indexarEnSegundoPlano(filas);
+        iniciarReproduccion(() -> reproducirEnFlujo(filas, 0));
+    }
+
+    /**
+     * Recorre el archivo una vez para armar el índice de párrafos; al terminar
+     * la lista muestra la partitura completa y los saltos van directo a la línea
+     */
+    private void indexarEnSegundoPlano(FilasFlujo filas) {
+        Thread hilo = new Thread(() -> {
+            try {
+                long inicio = System.nanoTime();
+                IndiceParrafos indice = IndiceParrafos.construir(filas.getArchivo(), gramatica);
+                long milisegundos = (System.nanoTime() - inicio) / 1_000_000;
+                SwingUtilities.invokeLater(() -> {
+                    // Si ya se abrió otra partitura el índice no sirve
+                    if (filasActuales != filas) {
+                        indice.close();
+                        return;
+                    }
+                    filas.usarIndice(indice);
+                    filaResaltada = -1;
+                    aplicarProgreso();
+                    areaResultados.append(String.format(
+                            "\nIndice listo en %d ms: %d parrafos, %d notas. La lista muestra toda la partitura%n",
+                            milisegundos, indice.getTotal(), indice.getEstadisticas().getTotalNotas()));
+                });
+            } catch (IOException | RuntimeException error) {
+                System.err.println("No se pudo indexar " + filas.getArchivo().getName() + ": " + error.getMessage());
+            }
+        }, "indexar-partitura");
+        hilo.setDaemon(true);
+        hilo.setPriority(Thread.MIN_PRIORITY);
+        hilo.start();
+    }
+
+    /**
+     * Compila una partitura grande mientras suena en flujo, con un solo hilo de
+     * baja prioridad para no quitarle tiempo a la síntesis
+     */
+    private void compilarEnSegundoPlano(VistaBytes contenido, byte[] huella, String nombre) {
+        Thread hilo = new Thread(() -> {
+            try {
+                ResultadoAnalisis resultado = new AnalizadorMusical(gramatica).analizarTexto(contenido);
+                cachePartituras.guardar(huella, contenido.length(), resultado);
+            } catch (IOException | RuntimeException error) {
+                System.err.println("No se pudo compilar " + nombre + ": " + error.getMessage());
+            }
+        }, "compilar-partitura");
+        hilo.setDaemon(true);
+        hilo.setPriority(Thread.MIN_PRIORITY);
+        hilo.start();
+    }
+
     /**
      * Procesa el texto musical completo, realiza el análisis y muestra resultados
      * Coordina el análisis léxico, la generación de reportes y la reproducción
      */
-    private void procesarTextoMusical(String textoMusical, String nombreFuente) {
+    private void procesarTextoMusical(CharSequence textoMusical, String nombreFuente) {
+        procesarTextoMusical(textoMusical, nombreFuente, null, null);
+    }
+
+    /**
+     * Igual que el anterior con el resultado ya compilado, o null para analizar;
+     * con la huella del texto el análisis nuevo se guarda en el caché
+     */
+    private void procesarTextoMusical(CharSequence textoMusical, String nombreFuente, ResultadoAnalisis compilado,
+            byte[] huella) {
+        ultimoTexto = textoMusical;
+        ultimaFuente = nombreFuente;
+        if (modoEdicion) {
+            cargarEnEditor(textoMusical);
+            reiniciarReproduccionDesde(0);
+            return;
+        }
+
         try {
             actualizarEstado("Analizando partitura...");
 
-            // Analizar la partitura usando el motor de análisis
-            ResultadoAnalisis resultado = analizador.analizarTexto(textoMusical);
+            // Analizar la partitura usando el motor de análisis, salvo que ya esté compilada
+            ResultadoAnalisis resultado = compilado;
+            if (resultado == null) {
+                resultado = analizador.analizarEnParalelo(textoMusical);
+                guardarCompilada(huella, textoMusical.length(), resultado, nombreFuente);
+            }
 
             // Mostrar resultados del análisis
             mostrarAnalisisCompleto(resultado, nombreFuente);
+            if (compilado != null) {
+                areaResultados.append("\nPartitura compilada tomada del cache, sin volver a analizar el texto");
+            }
 
             // Iniciar reproducción en hilo separado
             iniciarReproduccionMusical(resultado);
@@ -394,90 +1096,217 @@ public class SistemaMusica extends javax.swing.JFrame {
         }
     }
 
+    /**
+     * Un fallo del caché no impide reproducir: solo se informa en la consola
+     */
+    private void guardarCompilada(byte[] huella, long tamanoFuente, ResultadoAnalisis resultado, String fuente) {
+        if (huella == null)
+            return;
+        try {
+            cachePartituras.guardar(huella, tamanoFuente, resultado);
+        } catch (IOException error) {
+            System.err.println("No se pudo guardar " + fuente + " compilada: " + error.getMessage());
+        }
+    }
+
     private void mostrarAnalisisCompleto(ResultadoAnalisis resultado, String fuente) {
-        StringBuilder reporte = new StringBuilder();
+        ReporteParrafos reporte = new ReporteParrafos(resultado, fuente);
+        areaResultados.setText(reporte.resumen());
+        areaResultados.append("\nPreparando reproduccion musical...");
+        areaResultados.setCaretPosition(0);
+        mostrarFilas(reporte);
+    }
+
+    private void mostrarFilas(FilasParrafos filas) {
+        filasActuales.liberar();
+        filasActuales = filas;
+        filaResaltada = -1;
+        listaParrafos.setModel(filas);
+    }
+
+    /**
+     * Mueve la selección de la lista una página de filas visibles
+     */
+    private void accionCambiarPagina(int direccion) {
+        int total = listaParrafos.getModel().getSize();
+        if (total == 0)
+            return;
+
+        int primera = listaParrafos.getFirstVisibleIndex();
+        int visibles = Math.max(1, listaParrafos.getLastVisibleIndex() - primera);
+        int actual = listaParrafos.getSelectedIndex() >= 0 ? listaParrafos.getSelectedIndex() : Math.max(0, primera);
+        int destino = Math.max(0, Math.min(total - 1, actual + direccion * visibles));
+        listaParrafos.setSelectedIndex(destino);
+        listaParrafos.ensureIndexIsVisible(destino);
+    }
+
+    /**
+     * Aplica en la interfaz el último progreso publicado por la reproducción
+     * Lo llama el temporizador; los cambios intermedios se descartan
+     */
+    private void aplicarProgreso() {
+        filasActuales.aplicarPendientes();
+
+        int fila = parrafoSonando < 0 ? -1 : filasActuales.filaDeParrafo(parrafoSonando);
+        if (fila != filaResaltada) {
+            repintarFila(filaResaltada);
+            filaResaltada = fila;
+            repintarFila(fila);
+            if (fila >= 0 && fila < listaParrafos.getModel().getSize()) {
+                listaParrafos.ensureIndexIsVisible(fila);
+            }
+        }
+
+        String estado = estadoPendiente.getAndSet(null);
+        if (estado != null) {
+            actualizarEstado(estado);
+        }
+    }
+
+    private void repintarFila(int fila) {
+        if (fila < 0 || fila >= listaParrafos.getModel().getSize())
+            return;
+        Rectangle limites = listaParrafos.getCellBounds(fila, fila);
+        if (limites != null) {
+            listaParrafos.repaint(limites);
+        }
+    }
+
+    /**
+     * Publica el párrafo que empieza a sonar; la interfaz lo toma en su próximo ciclo
+     */
+    private void publicarProgreso(int parrafo, String estado) {
+        parrafoSonando = parrafo;
+        estadoPendiente.set(estado);
+    }
 
-        // Encabezado del análisis
+    private static void agregarEncabezadoReporte(StringBuilder reporte, String fuente) {
         reporte.append("ANALISIS MUSICAL COMPLETO\n");
         reporte.append("=".repeat(60)).append("\n");
         reporte.append("Fuente: ").append(fuente).append("\n");
         reporte.append("Analisis realizado: ").append(new Date()).append("\n");
         reporte.append("Motor: Analizador Sintactico v2.0\n\n");
+    }
 
-        // Análisis por párrafos usando nodos enlazados
-        Map<String, Integer> conteoGlobal = resultado.getConteoGlobal();
-        NodoParrafo parrafoActual = resultado.getPrimerParrafo();
-        int numeroParrafo = 1;
-
-        while (parrafoActual != null) {
-            reporte.append("PARRAFO ").append(numeroParrafo).append("\n");
-            reporte.append("─".repeat(40)).append("\n");
-            reporte.append("Contenido: ").append(parrafoActual.obtenerNotasComoTexto()).append("\n");
-            reporte.append("Total de notas: ").append(parrafoActual.totalNotas).append("\n");
-            reporte.append("Distribucion por tipo:\n");
-
-            // Ordenar conteo manualmente sin streams
-            Map<String, Integer> conteo = parrafoActual.conteo;
-            String[] notas = conteo.keySet().toArray(new String[0]);
-
-            // Ordenamiento simple por cantidad (burbuja)
-            for (int i = 0; i < notas.length - 1; i++) {
-                for (int j = 0; j < notas.length - i - 1; j++) {
-                    if (conteo.get(notas[j]) < conteo.get(notas[j + 1])) {
-                        String temp = notas[j];
-                        notas[j] = notas[j + 1];
-                        notas[j + 1] = temp;
-                    }
-                }
-            }
-
-            for (String nota : notas) {
-                int cantidad = conteo.get(nota);
-                reporte.append("   ").append(nota)
-                        .append(": ").append(cantidad)
-                        .append(" vez").append(cantidad > 1 ? "es" : "")
-                        .append("\n");
-            }
+    /**
+     * Sección del reporte para un párrafo: contenido, total, registro y distribución por tipo
+     */
+    private static void agregarReporteParrafo(StringBuilder reporte, int numeroParrafo, CharSequence contenido,
+            int totalNotas, int[] conteo, int registro) {
+        reporte.append("PARRAFO ").append(numeroParrafo).append("\n");
+        reporte.append("─".repeat(40)).append("\n");
+        reporte.append("Contenido: ").append(contenido).append("\n");
+        reporte.append("Total de notas: ").append(totalNotas).append("\n");
+        if (registro != EstadisticasMelodicas.SIN_REGISTRO) {
+            reporte.append("Registro: ");
+            EstadisticasMelodicas.agregarRegistro(registro, reporte);
             reporte.append("\n");
+        }
+        reporte.append("Distribucion por tipo:\n");
+
+        int[] notas = new int[conteo.length];
+        int distintas = Ranking.mejores(conteo, notas.length, notas);
+        for (int i = 0; i < distintas; i++) {
+            int cantidad = conteo[notas[i]];
+            reporte.append("   ").append(GramaticaMusical.NOMBRES_BASE[notas[i]])
+                    .append(": ").append(cantidad)
+                    .append(cantidad > 1 ? " veces" : " vez")
+                    .append("\n");
+        }
+        reporte.append("\n");
+    }
+
+    /**
+     * Renglón de la lista para un párrafo: número, notas, registro, distribución y contenido
+     */
+    private static String filaParrafo(int numeroParrafo, PartituraCompacta partitura, int parrafo) {
+        StringBuilder fila = new StringBuilder();
+        int notas = partitura.getNotasParrafo(parrafo);
+        fila.append("Parrafo ").append(numeroParrafo).append(": ").append(notas).append(notas == 1 ? " nota" : " notas");
+
+        int registro = EstadisticasMelodicas.registro(partitura, parrafo);
+        if (registro != EstadisticasMelodicas.SIN_REGISTRO) {
+            fila.append(" | ");
+            EstadisticasMelodicas.agregarRegistro(registro, fila);
+        }
 
-            parrafoActual = parrafoActual.siguiente;
-            numeroParrafo++;
+        int[] conteo = new int[GramaticaMusical.NOMBRES_BASE.length];
+        for (int base = 0; base < conteo.length; base++) {
+            conteo[base] = partitura.getConteo(parrafo, base);
         }
+        int[] ranking = new int[conteo.length];
+        int distintas = Ranking.mejores(conteo, ranking.length, ranking);
+        fila.append(" |");
+        for (int i = 0; i < distintas; i++) {
+            fila.append(i > 0 ? ", " : " ").append(GramaticaMusical.NOMBRES_BASE[ranking[i]]).append(' ')
+                    .append(conteo[ranking[i]]);
+        }
+
+        // agregarTextoParrafo separa con un espacio del texto anterior
+        fila.append(" |");
+        partitura.agregarTextoParrafo(parrafo, fila);
+        return fila.toString();
+    }
 
-        // Resumen global
+    private static void agregarResumenGlobal(StringBuilder reporte, EstadisticasIncrementales estadisticas) {
         reporte.append("RESUMEN GLOBAL\n");
         reporte.append("=".repeat(40)).append("\n");
-        reporte.append("Total de parrafos musicales: ").append(resultado.getTotalParrafos()).append("\n");
-        reporte.append("Total de notas analizadas: ").append(resultado.getTotalNotas()).append("\n");
-        reporte.append("Notas unicas encontradas: ").append(conteoGlobal.size()).append("\n\n");
+        reporte.append("Total de parrafos musicales: ").append(estadisticas.getTotalParrafos()).append("\n");
+        reporte.append("Total de notas analizadas: ").append(estadisticas.getTotalNotas()).append("\n");
+        reporte.append("Notas unicas encontradas: ").append(estadisticas.getNotasUnicas()).append("\n\n");
 
         reporte.append("RANKING DE NOTAS MAS FRECUENTES:\n");
 
-        // Ordenar notas globales manualmente
-        String[] notasGlobales = conteoGlobal.keySet().toArray(new String[0]);
-        for (int i = 0; i < notasGlobales.length - 1; i++) {
-            for (int j = 0; j < notasGlobales.length - i - 1; j++) {
-                if (conteoGlobal.get(notasGlobales[j]) < conteoGlobal.get(notasGlobales[j + 1])) {
-                    String temp = notasGlobales[j];
-                    notasGlobales[j] = notasGlobales[j + 1];
-                    notasGlobales[j + 1] = temp;
-                }
-            }
+        // Top 5 con un montículo acotado sobre los contadores globales
+        int[] conteo = new int[GramaticaMusical.NOMBRES_BASE.length];
+        for (int base = 0; base < conteo.length; base++) {
+            conteo[base] = estadisticas.getConteo(base);
         }
-
-        // Mostrar top 5
-        int limite = Math.min(5, notasGlobales.length);
+        int[] notasGlobales = new int[TOP_RANKING];
+        int limite = Ranking.mejores(conteo, TOP_RANKING, notasGlobales);
         for (int i = 0; i < limite; i++) {
-            String nota = notasGlobales[i];
-            int cantidad = conteoGlobal.get(nota);
-            double porcentaje = (cantidad * 100.0) / resultado.getTotalNotas();
+            String nota = GramaticaMusical.NOMBRES_BASE[notasGlobales[i]];
+            int cantidad = conteo[notasGlobales[i]];
+            double porcentaje = (cantidad * 100.0) / estadisticas.getTotalNotas();
             reporte.append(String.format("   %s: %d apariciones (%.1f%%)\n",
                     nota, cantidad, porcentaje));
         }
+    }
 
-        reporte.append("\nPreparando reproduccion musical...");
+    /**
+     * Registro global, intervalos melódicos y motivos más frecuentes
+     */
+    private static void agregarResumenMelodico(StringBuilder reporte, EstadisticasMelodicas melodia) {
+        reporte.append("\nANALISIS MELODICO\n");
+        reporte.append("=".repeat(40)).append("\n");
+        int registro = melodia.getRegistro();
+        if (registro == EstadisticasMelodicas.SIN_REGISTRO) {
+            reporte.append("Sin notas\n");
+            return;
+        }
+        reporte.append("Registro global: ");
+        EstadisticasMelodicas.agregarRegistro(registro, reporte);
+        reporte.append("\n");
+
+        int[] mejores = new int[TOP_RANKING];
+        int cantidad = Ranking.mejores(melodia.getHistogramaIntervalos(), TOP_RANKING, mejores);
+        reporte.append("Intervalos mas frecuentes (").append(melodia.getTotalIntervalos()).append(" en total):\n");
+        for (int i = 0; i < cantidad; i++) {
+            reporte.append("   ");
+            EstadisticasMelodicas.agregarIntervalo(mejores[i], reporte);
+            int veces = melodia.getHistogramaIntervalos()[mejores[i]];
+            reporte.append(String.format(": %d (%.1f%%)\n", veces, veces * 100.0 / melodia.getTotalIntervalos()));
+        }
 
-        areaResultados.setText(reporte.toString());
+        cantidad = Ranking.mejores(melodia.getConteoMotivos(), TOP_RANKING, mejores);
+        reporte.append("Motivos de ").append(EstadisticasMelodicas.NOTAS_MOTIVO)
+                .append(" notas mas repetidos (por intervalos):\n");
+        for (int i = 0; i < cantidad; i++) {
+            reporte.append("   ");
+            EstadisticasMelodicas.agregarMotivo(mejores[i], reporte);
+            int veces = melodia.getConteoMotivos()[mejores[i]];
+            reporte.append(": ").append(veces).append(veces > 1 ? " veces" : " vez").append("\n");
+        }
     }
 
     /**
@@ -485,39 +1314,23 @@ public class SistemaMusica extends javax.swing.JFrame {
      * interfaz
      */
     private void iniciarReproduccionMusical(ResultadoAnalisis resultado) {
-        hiloReproduccion = new Thread(() -> {
-            try {
-                reproduciendo = true;
-                detenerSolicitado = false;
-
-                SwingUtilities.invokeLater(() -> {
-                    btnCargarArchivo.setEnabled(false);
-                    btnEjemplo.setEnabled(false);
-                    btnDetener.setEnabled(true);
-                    btnDetener2.setEnabled(true);
-                    actualizarEstado("Reproduciendo...");
-                });
-
-                reproducirPartituraCompleta(resultado);
+        iniciarReproduccion(() -> reproducirPartituraCompleta(resultado));
+    }
 
-            } catch (InterruptedException e) {
-                SwingUtilities.invokeLater(() -> areaResultados.append("\n\nReproduccion interrumpida"));
+    /**
+     * Entrega la tarea al hilo de reproducción; los botones los restaura
+     * actualizarControles cuando el control vuelve a INACTIVO
+     */
+    private void iniciarReproduccion(TareaReproduccion tarea) {
+        controlReproduccion.iniciar(() -> {
+            try {
+                parrafoSonando = -1;
+                tarea.ejecutar();
             } catch (Exception e) {
                 SwingUtilities.invokeLater(
                         () -> areaResultados.append("\n\nError durante la reproduccion: " + e.getMessage()));
-            } finally {
-                SwingUtilities.invokeLater(() -> {
-                    reproduciendo = false;
-                    btnCargarArchivo.setEnabled(true);
-                    btnEjemplo.setEnabled(true);
-                    btnDetener.setEnabled(false);
-                    btnDetener2.setEnabled(false);
-                    actualizarEstado("Reproduccion completada");
-                });
             }
         });
-
-        hiloReproduccion.start();
     }
 
     /**
@@ -525,41 +1338,146 @@ public class SistemaMusica extends javax.swing.JFrame {
      * Incluye pausas entre párrafos para una mejor experiencia auditiva
      * Usa estructura enlazada sin listas
      */
-    private void reproducirPartituraCompleta(ResultadoAnalisis resultado) throws InterruptedException {
+    private void reproducirPartituraCompleta(ResultadoAnalisis resultado) throws IOException {
+        reproducirPartitura(resultado.getPartitura(), RecorridoPartitura.TEMPO_POR_DEFECTO, 0,
+                resultado.getTotalParrafos(), 0);
+    }
+
+    /**
+     * Reproduce una partitura que puede empezar a mitad de la obra: los párrafos
+     * se numeran desde primerParrafo y el tempo inicial es el vigente en ese punto.
+     * La reproducción arranca en parrafoInicial y salta cuando el control lo pide
+     */
+    private void reproducirPartitura(PartituraCompacta partitura, int tempo, int primerParrafo, int totalParrafos,
+            int parrafoInicial) throws IOException {
         SwingUtilities.invokeLater(() -> areaResultados.append("\n\nComenzando la experiencia musical!\n"));
 
-        NodoParrafo parrafoActual = resultado.getPrimerParrafo();
-        int numeroParrafo = 1;
-        int totalParrafos = resultado.getTotalParrafos();
+        CursorPartitura cursor = partitura.crearCursor();
+        RecorridoPartitura recorrido = new RecorridoPartitura(generadorSonido);
+        boolean hayParrafo = parrafoInicial < partitura.getTotalParrafos();
+        cursor.irAParrafo(parrafoInicial);
+        recorrido.setTempo(partitura.tempoAntesDe(parrafoInicial, tempo));
 
-        while (parrafoActual != null && !detenerSolicitado) {
-            final int numActual = numeroParrafo;
-            SwingUtilities.invokeLater(() -> {
-                areaResultados.append(String.format("\nReproduciendo parrafo %d de %d...\n",
-                        numActual, totalParrafos));
-                actualizarEstado(String.format("Parrafo %d/%d", numActual, totalParrafos));
-            });
+        while (hayParrafo && controlReproduccion.debeSeguir()) {
+            int numActual = primerParrafo + cursor.getParrafo() + 1;
+            publicarProgreso(numActual - 1, String.format("Parrafo %d/%d", numActual, totalParrafos));
+            generadorSonido.marcarParrafo(numActual);
 
-            // Reproducir cada nota del párrafo usando nodos enlazados
-            NodoNota notaActual = parrafoActual.primeraNota;
-            while (notaActual != null && !detenerSolicitado) {
-                generadorSonido.reproducirNota(notaActual.nota, 500);
-                Thread.sleep(200); // Pausa entre notas
-                notaActual = notaActual.siguiente;
-            }
+            // Recorrer el árbol del párrafo; las repeticiones se expanden al sonar
+            recorrido.recorrerParrafo(partitura, cursor.getParrafo());
 
             // Pausa entre párrafos (si no es el último)
-            if (parrafoActual.siguiente != null && !detenerSolicitado) {
-                Thread.sleep(800);
+            if (!cursor.esUltimoParrafo()) {
+                generadorSonido.reproducirSilencio(GeneradorSonido.PAUSA_ENTRE_PARRAFOS_MS * 1000L);
+            }
+
+            if (generadorSonido.detenido()) {
+                // Corte por detención o por salto; sin salto pendiente se repite el párrafo
+                if (!controlReproduccion.debeSeguir())
+                    break;
+                generadorSonido.rearmar();
+                int destino = controlReproduccion.tomarBusqueda() - primerParrafo;
+                if (destino >= 0 && destino < partitura.getTotalParrafos()) {
+                    cursor.irAParrafo(destino);
+                }
+                recorrido.setTempo(partitura.tempoAntesDe(cursor.getParrafo(), tempo));
+                continue;
             }
+            hayParrafo = cursor.siguienteParrafo();
+        }
+
+        // Dejar sonar lo que quede en el buffer antes de liberar la línea
+        generadorSonido.cerrarSesion();
 
-            parrafoActual = parrafoActual.siguiente;
-            numeroParrafo++;
+        if (controlReproduccion.debeSeguir()) {
+            String temporizacion = generadorSonido.resumenTemporizacion();
+            SwingUtilities.invokeLater(() -> areaResultados.append(
+                    "\n\nReproduccion musical completada exitosamente!\n" + temporizacion));
         }
+    }
+
+    /**
+     * Analiza y reproduce la partitura párrafo por párrafo mientras se lee
+     * Solo se mantiene en memoria el párrafo actual, las estadísticas
+     * acumuladas y las últimas filas de la lista. Con el índice ya armado se
+     * puede empezar o saltar a cualquier párrafo leyendo solo su línea
+     */
+    private void reproducirEnFlujo(FilasFlujo filas, int parrafoInicial) throws IOException {
+        SwingUtilities.invokeLater(() -> areaResultados.append("\nComenzando la experiencia musical!\n"));
+
+        try (FuenteLineas lineas = CargadorPartitura.abrirLineas(filas.getArchivo())) {
+            FlujoParrafos flujo = new FlujoParrafos(lineas, gramatica);
+            // Un solo recorrido para todo el archivo: el tempo pasa de un párrafo al siguiente
+            RecorridoPartitura recorrido = new RecorridoPartitura(generadorSonido);
+            IndiceParrafos inicial = filas.getIndice();
+            if (inicial != null && parrafoInicial > 0) {
+                flujo.posicionar(parrafoInicial, inicial.getDesplazamiento(parrafoInicial));
+                recorrido.setTempo(inicial.getTempo(parrafoInicial));
+            }
+            boolean hayParrafo = flujo.siguienteParrafo();
+            boolean publicada = false;
+
+            while (hayParrafo && controlReproduccion.debeSeguir()) {
+                int numActual = flujo.getNumeroParrafo();
+                int tempoParrafo = recorrido.getTempo();
+
+                // Pausa antes de cada párrafo salvo el primero
+                if (numActual > 1) {
+                    generadorSonido.reproducirSilencio(GeneradorSonido.PAUSA_ENTRE_PARRAFOS_MS * 1000L);
+                }
 
-        if (!detenerSolicitado) {
-            SwingUtilities.invokeLater(
-                    () -> areaResultados.append("\n\nReproduccion musical completada exitosamente!"));
+                if (!publicada) {
+                    filas.publicar(filaParrafo(numActual, flujo.getParrafo(), 0));
+                    publicada = true;
+                }
+                IndiceParrafos indice = filas.getIndice();
+                publicarProgreso(numActual - 1, indice == null ? String.format("Parrafo %d", numActual)
+                        : String.format("Parrafo %d/%d", numActual, indice.getTotal()));
+                generadorSonido.marcarParrafo(numActual);
+
+                recorrido.recorrerParrafo(flujo.getParrafo(), 0);
+
+                if (generadorSonido.detenido()) {
+                    if (!controlReproduccion.debeSeguir())
+                        break;
+                    generadorSonido.rearmar();
+                    recorrido.setTempo(tempoParrafo);
+                    int destino = controlReproduccion.tomarBusqueda();
+                    indice = filas.getIndice();
+                    if (destino != ControlReproduccion.SIN_BUSQUEDA && indice != null
+                            && destino < indice.getTotal()) {
+                        // Con el índice el salto va directo a la línea, en cualquier dirección
+                        flujo.posicionar(destino, indice.getDesplazamiento(destino));
+                        recorrido.setTempo(indice.getTempo(destino));
+                        hayParrafo = flujo.siguienteParrafo();
+                        continue;
+                    }
+                    // Sin índice solo se avanza: los párrafos intermedios se analizan sin sonar
+                    while (destino >= flujo.getNumeroParrafo() && (hayParrafo = flujo.siguienteParrafo())) {
+                        PartituraCompacta parrafo = flujo.getParrafo();
+                        filas.publicar(filaParrafo(flujo.getNumeroParrafo(), parrafo, 0));
+                        if (flujo.getNumeroParrafo() <= destino) {
+                            recorrido.setTempo(parrafo.tempoAntesDe(parrafo.getTotalParrafos(), recorrido.getTempo()));
+                        }
+                    }
+                    continue;
+                }
+                hayParrafo = flujo.siguienteParrafo();
+                publicada = false;
+            }
+
+            generadorSonido.cerrarSesion();
+
+            // El índice resume el archivo completo aunque se hayan saltado párrafos
+            IndiceParrafos indice = filas.getIndice();
+            StringBuilder resumen = new StringBuilder("\n");
+            agregarResumenGlobal(resumen, indice != null ? indice.getEstadisticas() : flujo.getEstadisticas());
+            agregarResumenMelodico(resumen, indice != null ? indice.getMelodia() : flujo.getMelodia());
+            if (controlReproduccion.debeSeguir()) {
+                resumen.append("\nReproduccion musical completada exitosamente!\n")
+                        .append(generadorSonido.resumenTemporizacion());
+            }
+            SwingUtilities.invokeLater(() -> areaResultados.append(resumen.toString()));
         }
     }
 
@@ -571,315 +1489,6067 @@ public class SistemaMusica extends javax.swing.JFrame {
      * Maneja las reglas gramaticales para el análisis de notas musicales
      */
     /**
-     * Clase que define la gramática musical y frecuencias de notas
-     * Contiene patrones regex para reconocer notas y mapa de frecuencias
+     * Clase que define la gramática musical y la afinación de las notas
+     * Crea los escáneres del autómata y resuelve la frecuencia de cada nota
+     * con la tabla de afinación vigente
      */
     private static class GramaticaMusical {
-        // Expresión regular principal para reconocer notas musicales
-        private final Pattern patronNota = Pattern.compile(
-                "\\b(DO|RE|MI|FA|SOL|LA|SI)([#bs']*)\\b",
-                Pattern.CASE_INSENSITIVE);
+        // Nombres de las notas base en el orden que usa el autómata
+        static final String[] NOMBRES_BASE = { "DO", "RE", "MI", "FA", "SOL", "LA", "SI" };
 
-        // Mapa de frecuencias para cada nota (en Hz)
-        private final Map<String, Double> frecuenciasBase;
+        // Se reemplaza entera al cambiar la afinación, así los hilos que leen no se bloquean
+        private volatile TablaAfinacion afinacion = TablaAfinacion.ESTANDAR;
 
-        public GramaticaMusical() {
-            frecuenciasBase = new HashMap<>();
-            inicializarFrecuencias();
+        /**
+         * Crea un escáner nuevo; cada hilo de análisis debe usar el suyo
+         */
+        public AutomataNotas crearEscaner() {
+            return new AutomataNotas();
         }
 
         /**
-         * Inicializa las frecuencias base de las notas musicales en la octava media
-         * Incluye todas las variaciones: naturales, sostenidas (#/s) y bemoles (b)
+         * Frecuencia de una nota codificada: se pasa a número MIDI y se lee de la tabla
+         * Tiempo constante y sin crear objetos
          */
-        private void inicializarFrecuencias() {
-            frecuenciasBase.put("DO", 261.63);
-            frecuenciasBase.put("RE", 293.66);
-            frecuenciasBase.put("MI", 329.63);
-            frecuenciasBase.put("FA", 349.23);
-            frecuenciasBase.put("SOL", 392.00);
-            frecuenciasBase.put("LA", 440.00);
-            frecuenciasBase.put("SI", 493.88);
+        public double obtenerFrecuencia(int nota) {
+            return afinacion.frecuencia(CodigoNota.midi(nota));
+        }
+
+        public void setAfinacion(double la4, Temperamento temperamento) {
+            afinacion = new TablaAfinacion(la4, temperamento);
+        }
+
+        public TablaAfinacion getAfinacion() {
+            return afinacion;
+        }
+    }
 
-            // Sostenidos con # y s
-            frecuenciasBase.put("DO#", 277.18);
-            frecuenciasBase.put("RE#", 311.13);
-            frecuenciasBase.put("FA#", 369.99);
-            frecuenciasBase.put("SOL#", 415.30);
-            frecuenciasBase.put("LA#", 466.16);
+    /**
+     * Sistemas de afinación; cada uno define la desviación en cents de las doce
+     * clases de nota respecto del temperamento igual, tomando DO como tónica
+     */
+    private enum Temperamento {
+        IGUAL("Temperamento igual"),
+        PITAGORICO("Pitagórico"),
+        JUSTA("Entonación justa"),
+        MESOTONICO("Mesotónico de 1/4 de coma");
+
+        // Quintas desde DO de cada clase de nota, de DO a SI; MIb, SIb y FA van hacia abajo
+        private static final int[] QUINTAS_DESDE_DO = { 0, 7, 2, -3, 4, -1, 6, 1, 8, 3, -2, 5 };
+        // Razones de la escala justa de 5 límites
+        private static final double[] RAZONES_JUSTAS = { 1.0, 16.0 / 15, 9.0 / 8, 6.0 / 5, 5.0 / 4, 4.0 / 3,
+                45.0 / 32, 3.0 / 2, 8.0 / 5, 5.0 / 3, 9.0 / 5, 15.0 / 8 };
+
+        private final String nombre;
+        private final double[] desviaciones = new double[12];
+
+        // Las tablas estáticas no existen aún en el constructor de las constantes
+        static {
+            for (Temperamento temperamento : values()) {
+                for (int clase = 0; clase < 12; clase++) {
+                    temperamento.desviaciones[clase] = temperamento.centsDesdeDo(clase) - 100.0 * clase;
+                }
+            }
+        }
 
-            // Bemoles (equivalentes a sostenidos de la nota anterior)
-            frecuenciasBase.put("REb", 277.18); // = DO#/DOs
-            frecuenciasBase.put("MIb", 311.13); // = RE#/REs
-            frecuenciasBase.put("SOLb", 369.99); // = FA#/FAs
-            frecuenciasBase.put("LAb", 415.30); // = SOL#/SOLs
-            frecuenciasBase.put("SIb", 466.16); // = LA#/LAs
+        Temperamento(String nombre) {
+            this.nombre = nombre;
         }
 
-        public Pattern getPatronNota() {
-            return patronNota;
+        private double centsDesdeDo(int clase) {
+            switch (this) {
+                case PITAGORICO:
+                    return centsPorQuintas(clase, 3.0 / 2);
+                case JUSTA:
+                    return 1200 * Math.log(RAZONES_JUSTAS[clase]) / Math.log(2);
+                case MESOTONICO:
+                    return centsPorQuintas(clase, Math.pow(5, 0.25));
+                default:
+                    return 100.0 * clase;
+            }
         }
 
-        public double obtenerFrecuencia(String nota) {
-            String notaLimpia = nota.toUpperCase();
-            String notaBase = notaLimpia.replaceAll("['#bs]", "");
+        /**
+         * Apila quintas del tamaño dado y reduce el resultado a una octava
+         */
+        private static double centsPorQuintas(int clase, double quinta) {
+            double cents = QUINTAS_DESDE_DO[clase] * 1200 * Math.log(quinta) / Math.log(2);
+            return cents - 1200 * Math.floor(cents / 1200);
+        }
 
-            Double frecuenciaBase = frecuenciasBase.get(notaBase);
-            if (frecuenciaBase == null)
-                return 440.0; // Fallback a LA
+        /**
+         * Desviación en cents respecto del temperamento igual
+         */
+        double desviacion(int clase) {
+            return desviaciones[clase];
+        }
 
-            // Calcular octava basada en apóstrofes
-            int numeroApostrofes = notaLimpia.length() - notaBase.length();
-            return frecuenciaBase * Math.pow(2, numeroApostrofes);
+        @Override
+        public String toString() {
+            return nombre;
         }
     }
 
     /**
-     * Nodo para crear una estructura de lista enlazada de notas
+     * Frecuencias precalculadas de las 128 notas MIDI para un LA4 y un temperamento
+     * El LA4 (MIDI 69) siempre suena a la frecuencia de referencia
      */
-    private static class NodoNota {
-        String nota;
-        NodoNota siguiente;
+    private static final class TablaAfinacion {
+        static final double LA4_ESTANDAR = 440.0;
+        static final TablaAfinacion ESTANDAR = new TablaAfinacion(LA4_ESTANDAR, Temperamento.IGUAL);
+        private static final int MIDI_LA4 = 69;
+
+        private final double[] frecuencias = new double[128];
+        private final double la4;
+        private final Temperamento temperamento;
+
+        TablaAfinacion(double la4, Temperamento temperamento) {
+            this.la4 = la4;
+            this.temperamento = temperamento;
+            double ajusteLa = temperamento.desviacion(MIDI_LA4 % 12);
+            for (int midi = 0; midi < frecuencias.length; midi++) {
+                double cents = 100.0 * (midi - MIDI_LA4) + temperamento.desviacion(midi % 12) - ajusteLa;
+                frecuencias[midi] = la4 * Math.pow(2, cents / 1200);
+            }
+        }
+
+        double frecuencia(int midi) {
+            return frecuencias[midi];
+        }
+
+        double getLa4() {
+            return la4;
+        }
 
-        public NodoNota(String nota) {
-            this.nota = nota;
-            this.siguiente = null;
+        Temperamento getTemperamento() {
+            return temperamento;
         }
     }
 
     /**
-     * Nodo para crear una estructura de lista enlazada de párrafos
+     * Autómata finito determinista que reconoce los tokens en una sola pasada
+     * Las notas siguen (DO|RE|MI|FA|SOL|LA|SI)([#bs',]*)(:N.?)? sin distinguir
+     * mayúsculas, donde N es la figura (1, 2, 4 ... 64) y el punto el puntillo.
+     * La nota debe empezar en un límite de palabra y se toma el sufijo más
+     * largo si después no sigue una letra; si sigue, se retrocede hasta el
+     * último límite de palabra como lo haría \b en una expresión regular.
+     * Las comas solo bajan la octava si no les sigue un blanco o el fin de
+     * línea, así "do, re, mi" sigue siendo prosa y "do,:4" o "[do,]" no.
+     * También reconoce silencios (_ o _:N), la directiva tempo=N, los bloques
+     * de repetición |: ... :| (opcionalmente :|N para N veces) y los acordes
+     * entre corchetes. Un acorde sin cerrar termina con la línea.
+     * No crea cadenas: expone los campos del último token.
+     * Visible en el paquete para la prueba diferencial contra la expresión regular
      */
-    private static class NodoParrafo {
-        NodoNota primeraNota;
-        NodoNota ultimaNota;
-        Map<String, Integer> conteo;
-        int totalNotas;
-        NodoParrafo siguiente;
+    static class AutomataNotas {
+        // Tipos de token emitidos
+        static final int TOKEN_FIN = 0;
+        static final int TOKEN_NOTA = 1;
+        static final int TOKEN_FIN_LINEA = 2;
+        static final int TOKEN_SILENCIO = 3;
+        static final int TOKEN_TEMPO = 4;
+        static final int TOKEN_INICIO_REPETICION = 5;
+        static final int TOKEN_FIN_REPETICION = 6;
+
+        static final int REPETICIONES_MAXIMAS = 999;
+
+        // Clases de caracteres
+        private static final int C_OTRO = 0;
+        private static final int C_LETRA = 1;
+        private static final int C_D = 2;
+        private static final int C_O = 3;
+        private static final int C_R = 4;
+        private static final int C_E = 5;
+        private static final int C_M = 6;
+        private static final int C_I = 7;
+        private static final int C_F = 8;
+        private static final int C_A = 9;
+        private static final int C_S = 10;
+        private static final int C_L = 11;
+        private static final int C_B = 12;
+        private static final int C_SOSTENIDO = 13;
+        private static final int C_APOSTROFE = 14;
+        private static final int C_SALTO = 15;
+        private static final int C_ABRE_ACORDE = 16;
+        private static final int C_CIERRA_ACORDE = 17;
+        private static final int C_COMA = 18;
+        private static final int C_BARRA = 19;
+        private static final int C_DOS_PUNTOS = 20;
+        private static final int C_GUION_BAJO = 21;
+        private static final int NUMERO_CLASES = 22;
+
+        // Estados del reconocimiento del nombre; los de aceptación codifican la nota base
+        private static final int ERROR = -1;
+        private static final int E_INICIO = 0;
+        private static final int E_D = 1;
+        private static final int E_R = 2;
+        private static final int E_M = 3;
+        private static final int E_F = 4;
+        private static final int E_S = 5;
+        private static final int E_L = 6;
+        private static final int E_SO = 7;
+        private static final int E_ACEPTA = 8; // E_ACEPTA + indice en NOMBRES_BASE
+        private static final int NUMERO_ESTADOS = 8;
+
+        private static final byte[] CLASE_ASCII = new byte[128];
+        private static final boolean[] ES_PALABRA = new boolean[NUMERO_CLASES];
+        private static final boolean[] ES_SUFIJO = new boolean[NUMERO_CLASES];
+        private static final int[] DELTA_ALTERACION = new int[NUMERO_CLASES];
+        private static final int[] DELTA_OCTAVA = new int[NUMERO_CLASES];
+        private static final int[][] TRANSICIONES = new int[NUMERO_ESTADOS][NUMERO_CLASES];
+
+        static {
+            // Caracteres de palabra como en \w: letras ASCII, dígitos y guion bajo
+            for (char c = 'a'; c <= 'z'; c++) {
+                CLASE_ASCII[c] = C_LETRA;
+                CLASE_ASCII[Character.toUpperCase(c)] = C_LETRA;
+            }
+            for (char c = '0'; c <= '9'; c++) {
+                CLASE_ASCII[c] = C_LETRA;
+            }
+            CLASE_ASCII['_'] = C_GUION_BAJO;
+            asignarLetra('d', C_D);
+            asignarLetra('o', C_O);
+            asignarLetra('r', C_R);
+            asignarLetra('e', C_E);
+            asignarLetra('m', C_M);
+            asignarLetra('i', C_I);
+            asignarLetra('f', C_F);
+            asignarLetra('a', C_A);
+            asignarLetra('s', C_S);
+            asignarLetra('l', C_L);
+            asignarLetra('b', C_B);
+            CLASE_ASCII['#'] = C_SOSTENIDO;
+            CLASE_ASCII['\''] = C_APOSTROFE;
+            CLASE_ASCII['\n'] = C_SALTO;
+            CLASE_ASCII['['] = C_ABRE_ACORDE;
+            CLASE_ASCII[']'] = C_CIERRA_ACORDE;
+            CLASE_ASCII[','] = C_COMA;
+            CLASE_ASCII['|'] = C_BARRA;
+            CLASE_ASCII[':'] = C_DOS_PUNTOS;
+
+            for (int clase = C_LETRA; clase <= C_B; clase++) {
+                ES_PALABRA[clase] = true;
+            }
+            ES_PALABRA[C_GUION_BAJO] = true;
+            ES_SUFIJO[C_B] = true;
+            ES_SUFIJO[C_S] = true;
+            ES_SUFIJO[C_SOSTENIDO] = true;
+            ES_SUFIJO[C_APOSTROFE] = true;
+            ES_SUFIJO[C_COMA] = true;
+            DELTA_ALTERACION[C_SOSTENIDO] = 1;
+            DELTA_ALTERACION[C_S] = 1;
+            DELTA_ALTERACION[C_B] = -1;
+            DELTA_OCTAVA[C_APOSTROFE] = 1;
+            DELTA_OCTAVA[C_COMA] = -1;
+
+            for (int[] fila : TRANSICIONES) {
+                Arrays.fill(fila, ERROR);
+            }
+            TRANSICIONES[E_INICIO][C_D] = E_D;
+            TRANSICIONES[E_INICIO][C_R] = E_R;
+            TRANSICIONES[E_INICIO][C_M] = E_M;
+            TRANSICIONES[E_INICIO][C_F] = E_F;
+            TRANSICIONES[E_INICIO][C_S] = E_S;
+            TRANSICIONES[E_INICIO][C_L] = E_L;
+            TRANSICIONES[E_D][C_O] = E_ACEPTA;
+            TRANSICIONES[E_R][C_E] = E_ACEPTA + 1;
+            TRANSICIONES[E_M][C_I] = E_ACEPTA + 2;
+            TRANSICIONES[E_F][C_A] = E_ACEPTA + 3;
+            TRANSICIONES[E_S][C_O] = E_SO;
+            TRANSICIONES[E_SO][C_L] = E_ACEPTA + 4;
+            TRANSICIONES[E_L][C_A] = E_ACEPTA + 5;
+            TRANSICIONES[E_S][C_I] = E_ACEPTA + 6;
+        }
 
-        public NodoParrafo() {
-            this.primeraNota = null;
-            this.ultimaNota = null;
-            this.conteo = new HashMap<>();
-            this.totalNotas = 0;
-            this.siguiente = null;
+        private static void asignarLetra(char letra, int clase) {
+            CLASE_ASCII[letra] = (byte) clase;
+            CLASE_ASCII[Character.toUpperCase(letra)] = (byte) clase;
         }
 
-        public void agregarNota(String nota) {
-            NodoNota nuevoNodo = new NodoNota(nota);
-            if (primeraNota == null) {
-                primeraNota = nuevoNodo;
-                ultimaNota = nuevoNodo;
-            } else {
-                ultimaNota.siguiente = nuevoNodo;
-                ultimaNota = nuevoNodo;
-            }
+        private static int clase(char c) {
+            return c < 128 ? CLASE_ASCII[c] : C_OTRO;
+        }
+
+        private int claseEn(int i) {
+            return i < fin ? clase(texto.charAt(i)) : C_OTRO;
+        }
+
+        private boolean esPalabraEn(int i) {
+            return ES_PALABRA[claseEn(i)];
+        }
+
+        private CharSequence texto;
+        private int posicion;
+        private int fin;
+        private boolean anteriorEsPalabra;
+        private boolean enAcorde;
+        private int notasEnAcorde;
+
+        // Datos del último token
+        private int tipoToken;
+        private int notaBase;
+        private int alteracion;
+        private int octava;
+        private int figura;
+        private boolean puntillo;
+        private int valor;
+        private boolean continuaAcorde;
+
+        // Duración leída por leerDuracion, válida solo si el token se acepta
+        private int figuraLeida;
+        private boolean puntilloLeido;
+        private int inicioToken;
+        private int finToken;
 
-            // Contar por tipo de nota (sin modificadores)
-            String notaBase = nota.replaceAll("['#b]", "");
-            conteo.put(notaBase, conteo.getOrDefault(notaBase, 0) + 1);
-            totalNotas++;
+        /**
+         * Prepara el escáner para recorrer texto[inicio, fin)
+         */
+        public void reiniciar(CharSequence texto, int inicio, int fin) {
+            this.texto = texto;
+            this.posicion = inicio;
+            this.fin = fin;
+            this.anteriorEsPalabra = false;
+            this.enAcorde = false;
         }
 
-        public String obtenerNotasComoTexto() {
-            StringBuilder sb = new StringBuilder();
-            NodoNota actual = primeraNota;
-            while (actual != null) {
-                sb.append(actual.nota);
-                if (actual.siguiente != null) {
-                    sb.append(" ");
+        /**
+         * Avanza al siguiente token y devuelve su tipo
+         * Los saltos de línea se emiten como TOKEN_FIN_LINEA para separar párrafos
+         */
+        public int siguiente() {
+            while (posicion < fin) {
+                int claseActual = clase(texto.charAt(posicion));
+                if (claseActual == C_SALTO) {
+                    posicion++;
+                    anteriorEsPalabra = false;
+                    enAcorde = false;
+                    return TOKEN_FIN_LINEA;
+                }
+                if (claseActual == C_ABRE_ACORDE) {
+                    enAcorde = true;
+                    notasEnAcorde = 0;
+                } else if (claseActual == C_CIERRA_ACORDE) {
+                    enAcorde = false;
+                } else if (claseActual == C_BARRA && claseEn(posicion + 1) == C_DOS_PUNTOS) {
+                    inicioToken = posicion;
+                    finToken = posicion + 2;
+                    return aceptar(TOKEN_INICIO_REPETICION);
+                } else if (claseActual == C_DOS_PUNTOS && claseEn(posicion + 1) == C_BARRA) {
+                    inicioToken = posicion;
+                    finToken = leerRepeticiones(posicion + 2);
+                    return aceptar(TOKEN_FIN_REPETICION);
+                }
+
+                boolean esPalabra = ES_PALABRA[claseActual];
+                // Solo puede empezar un token donde hay límite de palabra
+                if (esPalabra && !anteriorEsPalabra) {
+                    int token = reconocer(posicion, claseActual);
+                    if (token != TOKEN_FIN) {
+                        continuaAcorde = token == TOKEN_NOTA && enAcorde && notasEnAcorde++ > 0;
+                        return aceptar(token);
+                    }
                 }
-                actual = actual.siguiente;
+
+                anteriorEsPalabra = esPalabra;
+                posicion++;
             }
-            return sb.toString();
+            return TOKEN_FIN;
         }
-    }
 
-    /**
-     * Analizador sintáctico que procesa texto musical usando estructuras enlazadas
-     * No utiliza listas ni arrays, solo nodos enlazados manualmente
-     */
-    private static class AnalizadorMusical {
-        private final GramaticaMusical gramatica;
+        private int aceptar(int token) {
+            posicion = finToken;
+            anteriorEsPalabra = ES_PALABRA[clase(texto.charAt(finToken - 1))];
+            tipoToken = token;
+            return token;
+        }
 
-        public AnalizadorMusical(GramaticaMusical gramatica) {
-            this.gramatica = gramatica;
+        /**
+         * Reconoce el token de palabra que empieza en la posición dada
+         * Devuelve TOKEN_FIN si no hay ninguno
+         */
+        private int reconocer(int inicio, int claseInicio) {
+            if (claseInicio == C_GUION_BAJO) {
+                return reconocerSilencio(inicio) ? TOKEN_SILENCIO : TOKEN_FIN;
+            }
+            char c = texto.charAt(inicio);
+            if (c == 't' || c == 'T') {
+                return reconocerTempo(inicio) ? TOKEN_TEMPO : TOKEN_FIN;
+            }
+            return reconocerNota(inicio) ? TOKEN_NOTA : TOKEN_FIN;
+        }
+
+        /**
+         * Silencio: _ con duración opcional, seguido de algo que no sea letra
+         */
+        private boolean reconocerSilencio(int inicio) {
+            int finDuracion = leerDuracion(inicio + 1);
+            if (finDuracion > 0 && !esPalabraEn(finDuracion)) {
+                figura = figuraLeida;
+                puntillo = puntilloLeido;
+                finToken = finDuracion;
+            } else if (!esPalabraEn(inicio + 1)) {
+                figura = CodigoNota.FIGURA_NEGRA;
+                puntillo = false;
+                finToken = inicio + 1;
+            } else {
+                return false;
+            }
+            inicioToken = inicio;
+            return true;
         }
 
-        public ResultadoAnalisis analizarTexto(String texto) {
-            NodoParrafo primerParrafo = null;
-            NodoParrafo ultimoParrafo = null;
-            int contadorParrafos = 0;
+        /**
+         * Directiva tempo=N con N pulsos por minuto entre 1 y TEMPO_MAXIMO
+         */
+        private boolean reconocerTempo(int inicio) {
+            String palabra = "tempo=";
+            int i = inicio;
+            for (int k = 0; k < palabra.length(); k++, i++) {
+                if (i >= fin || Character.toLowerCase(texto.charAt(i)) != palabra.charAt(k))
+                    return false;
+            }
 
-            StringTokenizer lineasTexto = new StringTokenizer(texto, "\n");
+            int pulsos = 0;
+            int inicioNumero = i;
+            while (i < fin && i - inicioNumero < 3 && esDigito(texto.charAt(i))) {
+                pulsos = pulsos * 10 + texto.charAt(i) - '0';
+                i++;
+            }
+            if (i == inicioNumero || pulsos == 0 || esPalabraEn(i))
+                return false;
 
-            while (lineasTexto.hasMoreTokens()) {
-                String linea = lineasTexto.nextToken();
-                if (linea.trim().isEmpty())
-                    continue;
+            valor = pulsos;
+            inicioToken = inicio;
+            finToken = i;
+            return true;
+        }
 
-                NodoParrafo parrafoActual = new NodoParrafo();
-                Matcher matcher = gramatica.getPatronNota().matcher(linea.trim());
+        /**
+         * Lee :N o :N. en la posición dada; devuelve dónde termina o -1
+         */
+        private int leerDuracion(int i) {
+            if (claseEn(i) != C_DOS_PUNTOS)
+                return -1;
+
+            int divisor = 0;
+            int j = i + 1;
+            while (j < fin && j - i <= 2 && esDigito(texto.charAt(j))) {
+                divisor = divisor * 10 + texto.charAt(j) - '0';
+                j++;
+            }
+            if (divisor == 0 || Integer.bitCount(divisor) != 1 || divisor > 1 << CodigoNota.FIGURA_MINIMA)
+                return -1;
 
-                while (matcher.find()) {
-                    String notaCompleta = matcher.group().toUpperCase();
-                    parrafoActual.agregarNota(notaCompleta);
-                }
+            figuraLeida = Integer.numberOfTrailingZeros(divisor);
+            puntilloLeido = j < fin && texto.charAt(j) == '.';
+            return puntilloLeido ? j + 1 : j;
+        }
 
-                if (parrafoActual.totalNotas > 0) {
-                    if (primerParrafo == null) {
-                        primerParrafo = parrafoActual;
-                        ultimoParrafo = parrafoActual;
-                    } else {
-                        ultimoParrafo.siguiente = parrafoActual;
-                        ultimoParrafo = parrafoActual;
-                    }
-                    contadorParrafos++;
+        /**
+         * Cantidad opcional tras :|; sin ella el bloque suena dos veces
+         */
+        private int leerRepeticiones(int i) {
+            int veces = 0;
+            int j = i;
+            while (j < fin && j - i < 3 && esDigito(texto.charAt(j))) {
+                veces = veces * 10 + texto.charAt(j) - '0';
+                j++;
+            }
+            if (j == i || veces == 0 || esPalabraEn(j)) {
+                valor = 2;
+                return i;
+            }
+            valor = veces;
+            return j;
+        }
+
+        private static boolean esDigito(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        /**
+         * Intenta reconocer una nota que empieza en la posición dada
+         * El sufijo se consume completo; si después no sigue una letra se
+         * acepta entero junto con la duración. Si no, se conserva el final más
+         * largo que cae en un límite de palabra, igual que el retroceso de \b
+         */
+        private boolean reconocerNota(int inicio) {
+            int estado = E_INICIO;
+            int i = inicio;
+            while (estado < E_ACEPTA) {
+                if (i >= fin)
+                    return false;
+                estado = TRANSICIONES[estado][clase(texto.charAt(i))];
+                if (estado == ERROR)
+                    return false;
+                i++;
+            }
+
+            int mejorFin = -1;
+            int mejorAlteracion = 0;
+            int mejorOctava = 0;
+            int alteracionActual = 0;
+            int octavaActual = 0;
+            boolean antesEsPalabra = true; // La nota base termina en letra
+
+            while (true) {
+                int claseSiguiente = i < fin ? clase(texto.charAt(i)) : C_OTRO;
+                if (antesEsPalabra != ES_PALABRA[claseSiguiente]) {
+                    mejorFin = i;
+                    mejorAlteracion = alteracionActual;
+                    mejorOctava = octavaActual;
                 }
+                if (i >= fin || !ES_SUFIJO[claseSiguiente])
+                    break;
+                if (claseSiguiente == C_COMA && !comasSonSufijo(i))
+                    break;
+
+                alteracionActual += DELTA_ALTERACION[claseSiguiente];
+                octavaActual += DELTA_OCTAVA[claseSiguiente];
+                antesEsPalabra = ES_PALABRA[claseSiguiente];
+                i++;
+            }
+
+            // Máximo bocado: el sufijo completo, con la duración si la hay
+            figura = CodigoNota.FIGURA_NEGRA;
+            puntillo = false;
+            int finDuracion = leerDuracion(i);
+            if (finDuracion > 0 && !esPalabraEn(finDuracion)) {
+                mejorFin = finDuracion;
+                figura = figuraLeida;
+                puntillo = puntilloLeido;
+            } else if (!esPalabraEn(i)) {
+                mejorFin = i;
+            }
+            if (mejorFin >= i) {
+                mejorAlteracion = alteracionActual;
+                mejorOctava = octavaActual;
+            }
+
+            if (mejorFin < 0)
+                return false;
+
+            notaBase = estado - E_ACEPTA;
+            alteracion = mejorAlteracion;
+            octava = mejorOctava;
+            inicioToken = inicio;
+            finToken = mejorFin;
+            return true;
+        }
+
+        /**
+         * Las comas que empiezan en la posición dada son marcas de octava si tras
+         * ellas sigue algo que no es un blanco; si no, son puntuación del texto
+         */
+        private boolean comasSonSufijo(int i) {
+            int j = i;
+            while (j < fin && texto.charAt(j) == ',') {
+                j++;
             }
+            if (j >= fin)
+                return false;
+            char c = texto.charAt(j);
+            return c != ' ' && c != '\t' && c != '\r' && c != '\n';
+        }
+
+        /**
+         * Código del último evento reconocido (nota, silencio o tempo)
+         * Las notas que completan un acorde quedan marcadas
+         */
+        public int codificarEvento() {
+            if (tipoToken == TOKEN_SILENCIO)
+                return CodigoNota.codificarSilencio(figura, puntillo);
+            if (tipoToken == TOKEN_TEMPO)
+                return CodigoNota.codificarTempo(valor);
+
+            int nota = CodigoNota.codificar(notaBase, alteracion, octava, figura, puntillo);
+            return continuaAcorde ? CodigoNota.marcarAcorde(nota) : nota;
+        }
+
+        /**
+         * Pulsos por minuto de TOKEN_TEMPO o veces de TOKEN_FIN_REPETICION
+         */
+        public int getValor() {
+            return valor;
+        }
+
+        public int getFigura() {
+            return figura;
+        }
+
+        public boolean tienePuntillo() {
+            return puntillo;
+        }
+
+        /**
+         * Verdadero si la última nota suena junto con la anterior
+         */
+        public boolean continuaAcorde() {
+            return continuaAcorde;
+        }
+
+        public int getNotaBase() {
+            return notaBase;
+        }
+
+        public int getAlteracion() {
+            return alteracion;
+        }
+
+        public int getOctava() {
+            return octava;
+        }
+
+        public int getInicioToken() {
+            return inicioToken;
+        }
 
-            return new ResultadoAnalisis(primerParrafo, contadorParrafos);
+        public int getFinToken() {
+            return finToken;
         }
     }
 
     /**
-     * Genera audio sintético para las notas musicales
-     */
-    /**
-     * Clase que genera sonido sintético para las notas musicales
-     * Usa Java Sound API para crear ondas sinusoidales
+     * Codificación de un evento de la partitura en un int
+     * bits 0-2 nota base, 3-6 alteración (con signo), 7-11 octava (con signo),
+     * 12-14 figura (0 = redonda ... 6 = semifusa), 15 puntillo, 16 acorde
+     * (la nota suena junto con la anterior) y 17-18 tipo de evento.
+     * Los silencios usan figura y puntillo; los cambios de tempo guardan los
+     * pulsos por minuto en los bits 0-11
      */
-    private static class GeneradorSonido {
-        private SourceDataLine lineaAudio;
-        private boolean detenido = false;
+    private static final class CodigoNota {
+        static final int FIGURA_NEGRA = 2;
+        static final int FIGURA_MINIMA = 6;
+        static final int TEMPO_MAXIMO = 999;
+        // Ningún código válido es negativo
+        static final int NINGUNA = -1;
+
+        static final int TIPO_NOTA = 0;
+        static final int TIPO_SILENCIO = 1;
+        static final int TIPO_TEMPO = 2;
+
+        private static final int BITS_ALTERACION = 4;
+        private static final int BITS_OCTAVA = 5;
+        private static final int DESPLAZAMIENTO_ALTERACION = 3;
+        private static final int DESPLAZAMIENTO_OCTAVA = 7;
+        private static final int DESPLAZAMIENTO_FIGURA = 12;
+        private static final int BIT_PUNTILLO = 1 << 15;
+        private static final int BIT_ACORDE = 1 << 16;
+        // Semitonos desde DO de cada nota base
+        private static final int[] SEMITONOS_BASE = { 0, 2, 4, 5, 7, 9, 11 };
+        private static final int DESPLAZAMIENTO_TIPO = 17;
+        private static final int MASCARA_TEMPO = (1 << 12) - 1;
+        private static final int ALTERACION_MAXIMA = (1 << (BITS_ALTERACION - 1)) - 1;
+        private static final int OCTAVA_MAXIMA = (1 << (BITS_OCTAVA - 1)) - 1;
+
+        private CodigoNota() {
+        }
 
-        public void reproducirNota(String nota, int duracionMs) {
-            if (detenido)
-                return;
+        /**
+         * Empaqueta los campos; alteración y octava se recortan a su rango
+         */
+        static int codificar(int notaBase, int alteracion, int octava, int figura, boolean puntillo) {
+            alteracion = Math.max(-ALTERACION_MAXIMA - 1, Math.min(ALTERACION_MAXIMA, alteracion));
+            octava = Math.max(-OCTAVA_MAXIMA - 1, Math.min(OCTAVA_MAXIMA, octava));
+            return notaBase
+                    | (alteracion & ((1 << BITS_ALTERACION) - 1)) << DESPLAZAMIENTO_ALTERACION
+                    | (octava & ((1 << BITS_OCTAVA) - 1)) << DESPLAZAMIENTO_OCTAVA
+                    | (figura & 7) << DESPLAZAMIENTO_FIGURA
+                    | (puntillo ? BIT_PUNTILLO : 0);
+        }
 
-            try {
-                GramaticaMusical gramatica = new GramaticaMusical();
-                double frecuencia = gramatica.obtenerFrecuencia(nota);
+        static int notaBase(int nota) {
+            return nota & 7;
+        }
 
-                AudioFormat formato = new AudioFormat(44100, 16, 1, true, false);
-                DataLine.Info info = new DataLine.Info(SourceDataLine.class, formato);
+        static int alteracion(int nota) {
+            // Desplazar a la izquierda y luego a la derecha con signo extiende el signo
+            return nota << (32 - DESPLAZAMIENTO_ALTERACION - BITS_ALTERACION) >> (32 - BITS_ALTERACION);
+        }
 
-                if (lineaAudio != null) {
-                    lineaAudio.close();
-                }
+        static int octava(int nota) {
+            return nota << (32 - DESPLAZAMIENTO_OCTAVA - BITS_OCTAVA) >> (32 - BITS_OCTAVA);
+        }
 
-                lineaAudio = (SourceDataLine) AudioSystem.getLine(info);
-                lineaAudio.open(formato);
-                lineaAudio.start();
+        static int figura(int nota) {
+            return (nota >>> DESPLAZAMIENTO_FIGURA) & 7;
+        }
 
-                generarOnda(frecuencia, duracionMs);
+        static boolean tienePuntillo(int nota) {
+            return (nota & BIT_PUNTILLO) != 0;
+        }
 
-                lineaAudio.drain();
-                lineaAudio.close();
+        /**
+         * Número MIDI de la nota; la octava 0 es la central (DO = 60)
+         * Las alteraciones dobles y los bemoles de DO o FA cruzan a la nota vecina
+         */
+        static int midi(int nota) {
+            int midi = 60 + SEMITONOS_BASE[notaBase(nota)] + alteracion(nota) + 12 * octava(nota);
+            return Math.max(0, Math.min(127, midi));
+        }
 
-            } catch (Exception e) {
-                System.err.println("Error generando audio para nota " + nota + ": " + e.getMessage());
-            }
+        static int codificarSilencio(int figura, boolean puntillo) {
+            return TIPO_SILENCIO << DESPLAZAMIENTO_TIPO
+                    | (figura & 7) << DESPLAZAMIENTO_FIGURA
+                    | (puntillo ? BIT_PUNTILLO : 0);
+        }
+
+        static int codificarTempo(int pulsosPorMinuto) {
+            return TIPO_TEMPO << DESPLAZAMIENTO_TIPO | (pulsosPorMinuto & MASCARA_TEMPO);
+        }
+
+        static int tipo(int evento) {
+            return (evento >>> DESPLAZAMIENTO_TIPO) & 3;
+        }
+
+        static boolean esNota(int evento) {
+            return tipo(evento) == TIPO_NOTA;
+        }
+
+        static boolean esSilencio(int evento) {
+            return tipo(evento) == TIPO_SILENCIO;
+        }
+
+        static boolean esTempo(int evento) {
+            return tipo(evento) == TIPO_TEMPO;
+        }
+
+        static int tempo(int evento) {
+            return evento & MASCARA_TEMPO;
         }
 
         /**
-         * Genera una onda sinusoidal con envolvente ADSR para crear sonido natural
-         * Utiliza síntesis aditiva con frecuencia específica y duración determinada
+         * Duración de la figura al tempo dado; la negra dura un pulso
          */
-        private void generarOnda(double frecuencia, int duracionMs) {
-            int muestrasTotal = (int) (44100 * duracionMs / 1000.0);
-            byte[] buffer = new byte[muestrasTotal * 2]; // 16-bit = 2 bytes por muestra
+        static long duracionMicrosegundos(int evento, int pulsosPorMinuto) {
+            // Una redonda son cuatro pulsos; el puntillo suma la mitad
+            long redonda = 240_000_000L / pulsosPorMinuto;
+            long duracion = redonda >> figura(evento);
+            return tienePuntillo(evento) ? duracion + duracion / 2 : duracion;
+        }
 
-            for (int i = 0; i < muestrasTotal && !detenido; i++) {
-                double tiempo = i / 44100.0;
+        static int marcarAcorde(int nota) {
+            return nota | BIT_ACORDE;
+        }
 
-                // Generar onda seno con envolvente para suavizar
-                double envolvente = calcularEnvolvente(tiempo, duracionMs / 1000.0);
-                double amplitud = envolvente * Math.sin(2 * Math.PI * frecuencia * tiempo);
+        static boolean esAcorde(int nota) {
+            return (nota & BIT_ACORDE) != 0;
+        }
 
-                short muestra = (short) (amplitud * 16000); // Amplitud moderada
-                buffer[i * 2] = (byte) (muestra & 0xFF);
-                buffer[i * 2 + 1] = (byte) ((muestra >> 8) & 0xFF);
+        /**
+         * Escribe el evento en forma canónica, por ejemplo SOL#', REb:8., _:2
+         * o tempo=90; la figura solo se escribe si no es negra
+         */
+        static void agregarTexto(int nota, StringBuilder destino) {
+            if (esTempo(nota)) {
+                destino.append("tempo=").append(tempo(nota));
+                return;
             }
 
-            if (!detenido && lineaAudio != null) {
-                lineaAudio.write(buffer, 0, buffer.length);
+            if (esSilencio(nota)) {
+                destino.append('_');
+            } else {
+                destino.append(GramaticaMusical.NOMBRES_BASE[notaBase(nota)]);
+                int alteracion = alteracion(nota);
+                for (int i = 0; i < Math.abs(alteracion); i++) {
+                    destino.append(alteracion > 0 ? '#' : 'b');
+                }
+                int octava = octava(nota);
+                for (int i = 0; i < Math.abs(octava); i++) {
+                    destino.append(octava > 0 ? '\'' : ',');
+                }
+            }
+            if (figura(nota) != FIGURA_NEGRA || tienePuntillo(nota)) {
+                destino.append(':').append(1 << figura(nota));
+                if (tienePuntillo(nota)) {
+                    destino.append('.');
+                }
             }
         }
 
-        private double calcularEnvolvente(double tiempo, double duracionTotal) {
-            double fadeDuration = Math.min(0.05, duracionTotal * 0.1); // Fade de 5% de la duración
+        static String texto(int nota) {
+            StringBuilder texto = new StringBuilder();
+            agregarTexto(nota, texto);
+            return texto.toString();
+        }
 
-            if (tiempo < fadeDuration) {
-                return tiempo / fadeDuration; // Fade in
-            } else if (tiempo > duracionTotal - fadeDuration) {
-                return (duracionTotal - tiempo) / fadeDuration; // Fade out
-            } else {
-                return 1.0; // Volumen completo
+        /**
+         * Escribe la nota dentro de una secuencia separada por espacios
+         * agrupando los acordes entre corchetes; siguiente es NINGUNA al final
+         */
+        static void agregarEnSecuencia(int nota, int siguiente, StringBuilder destino) {
+            separar(destino);
+            boolean siguienteEnAcorde = siguiente != NINGUNA && esAcorde(siguiente);
+            if (!esAcorde(nota) && siguienteEnAcorde) {
+                destino.append('[');
+            }
+            agregarTexto(nota, destino);
+            if (esAcorde(nota) && !siguienteEnAcorde) {
+                destino.append(']');
             }
         }
 
-        public void detenerTodo() {
-            detenido = true;
-            if (lineaAudio != null) {
-                lineaAudio.stop();
-                lineaAudio.close();
+        /**
+         * Agrega un espacio si ya hay contenido
+         */
+        static StringBuilder separar(StringBuilder destino) {
+            if (destino.length() > 0) {
+                destino.append(' ');
             }
+            return destino;
         }
     }
 
     /**
-     * Resultado del análisis musical usando estructura enlazada
-     * No usa listas, solo nodos enlazados
+     * Partitura en formato columnar: los eventos codificados (notas, silencios
+     * y cambios de tempo) viven en un arreglo de int que crece según se
+     * necesita, y los párrafos son desplazamientos dentro de ese arreglo.
+     * El conteo por tipo también es un arreglo plano.
+     * Sobre los eventos se guarda el árbol sintáctico de cada párrafo: la raíz
+     * es la secuencia completa del párrafo y cada bloque |: ... :| es un nodo
+     * que cubre un rango de eventos, con sus repeticiones anidadas como hijos.
+     * Los nodos están en preorden y no copian eventos, así que una repetición
+     * ocupa lo mismo en memoria sin importar cuántas veces suene
      */
-    private static class ResultadoAnalisis {
-        private final NodoParrafo primerParrafo;
-        private final int totalParrafos;
-        private final Map<String, Integer> conteoGlobal;
+    private static class PartituraCompacta {
+        private static final int TIPOS_NOTA = GramaticaMusical.NOMBRES_BASE.length;
+        static final int MAXIMA_ANIDACION = 16;
+
+        // Campos de cada nodo de repetición en nodos[k * CAMPOS_NODO + campo]
+        private static final int CAMPOS_NODO = 4;
+        private static final int NODO_DESDE = 0;
+        private static final int NODO_HASTA = 1;
+        private static final int NODO_VECES = 2;
+        private static final int NODO_FIN_SUBARBOL = 3;
+
+        private int[] eventos = new int[256];
+        private int totalEventos;
         private int totalNotas;
+        // inicioParrafos[k] es el primer evento del párrafo k; hay totalParrafos + 1 entradas
+        private int[] inicioParrafos = new int[64];
+        private int totalParrafos;
+        // conteoParrafos[k * TIPOS_NOTA + base]
+        private int[] conteoParrafos = new int[64 * TIPOS_NOTA];
+
+        private int[] nodos = new int[16 * CAMPOS_NODO];
+        private int totalNodos;
+        // inicioNodosParrafo[k] es el primer nodo del párrafo k; mismas entradas que inicioParrafos
+        private int[] inicioNodosParrafo = new int[64];
+
+        // Repeticiones abiertas del párrafo en curso
+        private final int[] pilaRepeticiones = new int[MAXIMA_ANIDACION];
+        private int abiertas;
+        private int ignoradas;
+        private int profundidadParrafo;
+
+        public void agregarEvento(int evento) {
+            if (totalEventos == eventos.length) {
+                eventos = Arrays.copyOf(eventos, eventos.length * 2);
+            }
+            eventos[totalEventos++] = evento;
+            if (CodigoNota.esNota(evento)) {
+                totalNotas++;
+                conteoParrafos[totalParrafos * TIPOS_NOTA + CodigoNota.notaBase(evento)]++;
+            }
+        }
+
+        /**
+         * Abre un bloque de repetición en el evento actual
+         * Más allá de MAXIMA_ANIDACION niveles los marcadores se ignoran
+         */
+        public void abrirRepeticion() {
+            if (abiertas == MAXIMA_ANIDACION) {
+                ignoradas++;
+                return;
+            }
 
-        public ResultadoAnalisis(NodoParrafo primerParrafo, int totalParrafos) {
-            this.primerParrafo = primerParrafo;
-            this.totalParrafos = totalParrafos;
-            this.conteoGlobal = new HashMap<>();
-            this.totalNotas = 0;
+            int nodo = nuevoNodo();
+            nodos[nodo * CAMPOS_NODO + NODO_DESDE] = totalEventos;
+            pilaRepeticiones[abiertas++] = nodo;
+            profundidadParrafo = Math.max(profundidadParrafo, abiertas);
+        }
 
-            // Calcular estadísticas globales recorriendo los nodos
-            NodoParrafo parrafoActual = primerParrafo;
-            while (parrafoActual != null) {
-                this.totalNotas += parrafoActual.totalNotas;
+        /**
+         * Cierra el bloque abierto más reciente; sin bloque abierto se repite
+         * desde el inicio del párrafo, como en la notación musical
+         */
+        public void cerrarRepeticion(int veces) {
+            if (ignoradas > 0) {
+                ignoradas--;
+                return;
+            }
 
-                for (Map.Entry<String, Integer> entrada : parrafoActual.conteo.entrySet()) {
-                    conteoGlobal.put(entrada.getKey(),
-                            conteoGlobal.getOrDefault(entrada.getKey(), 0) + entrada.getValue());
+            int nodo;
+            if (abiertas > 0) {
+                nodo = pilaRepeticiones[--abiertas];
+            } else {
+                if (profundidadParrafo == MAXIMA_ANIDACION)
+                    return;
+                profundidadParrafo++;
+
+                // El nodo nuevo envuelve a todos los del párrafo: va primero en preorden
+                nodo = inicioNodosParrafo[totalParrafos];
+                nuevoNodo();
+                System.arraycopy(nodos, nodo * CAMPOS_NODO, nodos, (nodo + 1) * CAMPOS_NODO,
+                        (totalNodos - 1 - nodo) * CAMPOS_NODO);
+                for (int k = nodo + 1; k < totalNodos; k++) {
+                    nodos[k * CAMPOS_NODO + NODO_FIN_SUBARBOL]++;
                 }
+                nodos[nodo * CAMPOS_NODO + NODO_DESDE] = inicioParrafos[totalParrafos];
+            }
 
-                parrafoActual = parrafoActual.siguiente;
+            nodos[nodo * CAMPOS_NODO + NODO_HASTA] = totalEventos;
+            nodos[nodo * CAMPOS_NODO + NODO_VECES] = veces;
+            nodos[nodo * CAMPOS_NODO + NODO_FIN_SUBARBOL] = totalNodos;
+        }
+
+        private int nuevoNodo() {
+            if ((totalNodos + 1) * CAMPOS_NODO > nodos.length) {
+                nodos = Arrays.copyOf(nodos, nodos.length * 2);
             }
+            return totalNodos++;
         }
 
-        public NodoParrafo getPrimerParrafo() {
-            return primerParrafo;
+        /**
+         * Cierra el párrafo en curso; una línea sin eventos no cuenta como párrafo
+         * Los bloques |: que quedaron abiertos terminan con la línea
+         */
+        public void cerrarParrafo() {
+            while (abiertas > 0) {
+                cerrarRepeticion(2);
+            }
+            ignoradas = 0;
+            profundidadParrafo = 0;
+
+            if (totalEventos == inicioParrafos[totalParrafos]) {
+                totalNodos = inicioNodosParrafo[totalParrafos];
+                return;
+            }
+
+            totalParrafos++;
+            if (totalParrafos + 1 >= inicioParrafos.length) {
+                inicioParrafos = Arrays.copyOf(inicioParrafos, inicioParrafos.length * 2);
+                inicioNodosParrafo = Arrays.copyOf(inicioNodosParrafo, inicioParrafos.length);
+                conteoParrafos = Arrays.copyOf(conteoParrafos, inicioParrafos.length * TIPOS_NOTA);
+            }
+            inicioParrafos[totalParrafos] = totalEventos;
+            inicioNodosParrafo[totalParrafos] = totalNodos;
         }
 
-        public int getTotalParrafos() {
-            return totalParrafos;
+        /**
+         * Vacía la partitura conservando los arreglos para reutilizarla
+         */
+        public void limpiar() {
+            Arrays.fill(conteoParrafos, 0, (totalParrafos + 1) * TIPOS_NOTA, 0);
+            totalEventos = 0;
+            totalNotas = 0;
+            totalParrafos = 0;
+            totalNodos = 0;
+            abiertas = 0;
+            ignoradas = 0;
+            profundidadParrafo = 0;
         }
 
-        public Map<String, Integer> getConteoGlobal() {
-            return conteoGlobal;
+        public int getTotalEventos() {
+            return totalEventos;
         }
 
         public int getTotalNotas() {
             return totalNotas;
         }
-    }
 
-    /**
+        public int getTotalParrafos() {
+            return totalParrafos;
+        }
+
+        public int getEvento(int indice) {
+            return eventos[indice];
+        }
+
+        public int getInicioParrafo(int parrafo) {
+            return inicioParrafos[parrafo];
+        }
+
+        public int getFinParrafo(int parrafo) {
+            return inicioParrafos[parrafo + 1];
+        }
+
+        public int getConteo(int parrafo, int notaBase) {
+            return conteoParrafos[parrafo * TIPOS_NOTA + notaBase];
+        }
+
+        public int getNotasParrafo(int parrafo) {
+            int total = 0;
+            for (int base = 0; base < TIPOS_NOTA; base++) {
+                total += conteoParrafos[parrafo * TIPOS_NOTA + base];
+            }
+            return total;
+        }
+
+        public int getInicioNodos(int parrafo) {
+            return inicioNodosParrafo[parrafo];
+        }
+
+        public int getFinNodos(int parrafo) {
+            return inicioNodosParrafo[parrafo + 1];
+        }
+
+        public int getDesdeNodo(int nodo) {
+            return nodos[nodo * CAMPOS_NODO + NODO_DESDE];
+        }
+
+        public int getHastaNodo(int nodo) {
+            return nodos[nodo * CAMPOS_NODO + NODO_HASTA];
+        }
+
+        public int getVecesNodo(int nodo) {
+            return nodos[nodo * CAMPOS_NODO + NODO_VECES];
+        }
+
+        /**
+         * Primer nodo que ya no pertenece al subárbol del indicado
+         */
+        public int getFinSubarbol(int nodo) {
+            return nodos[nodo * CAMPOS_NODO + NODO_FIN_SUBARBOL];
+        }
+
+        public CursorPartitura crearCursor() {
+            return new CursorPartitura(this);
+        }
+
+        /**
+         * Último tempo indicado antes del párrafo (o al final si parrafo es el
+         * total), o tempoInicial si no hay ninguno
+         */
+        public int tempoAntesDe(int parrafo, int tempoInicial) {
+            for (int e = getInicioParrafo(parrafo) - 1; e >= 0; e--) {
+                if (CodigoNota.esTempo(getEvento(e))) {
+                    return CodigoNota.tempo(getEvento(e));
+                }
+            }
+            return tempoInicial;
+        }
+
+        /**
+         * Escribe el párrafo en forma canónica recorriendo su árbol sin expandir
+         * las repeticiones, por ejemplo: tempo=90 |: DO:8 [MI SOL] :| _:2
+         */
+        public void agregarTextoParrafo(int parrafo, StringBuilder destino) {
+            int fin = getFinParrafo(parrafo);
+            int nodo = getInicioNodos(parrafo);
+            int finNodos = getFinNodos(parrafo);
+            int[] cierres = new int[MAXIMA_ANIDACION];
+            int pendientes = 0;
+
+            for (int i = getInicioParrafo(parrafo); i <= fin; i++) {
+                // Primero se cierran los bloques que terminan aquí, luego se abren los que empiezan
+                while (pendientes > 0 && getHastaNodo(cierres[pendientes - 1]) == i) {
+                    int veces = getVecesNodo(cierres[--pendientes]);
+                    CodigoNota.separar(destino).append(":|");
+                    if (veces != 2) {
+                        destino.append(veces);
+                    }
+                }
+                while (nodo < finNodos && getDesdeNodo(nodo) == i) {
+                    CodigoNota.separar(destino).append("|:");
+                    if (getHastaNodo(nodo) == i) {
+                        destino.append(" :|");
+                    } else {
+                        cierres[pendientes++] = nodo;
+                    }
+                    nodo++;
+                }
+                if (i < fin) {
+                    CodigoNota.agregarEnSecuencia(eventos[i], i + 1 < fin ? eventos[i + 1] : CodigoNota.NINGUNA,
+                            destino);
+                }
+            }
+        }
+
+        /**
+         * Totales globales sumando el conteo de cada párrafo
+         */
+        public EstadisticasIncrementales calcularEstadisticas() {
+            EstadisticasIncrementales estadisticas = new EstadisticasIncrementales();
+            int[] conteo = new int[TIPOS_NOTA];
+            for (int parrafo = 0; parrafo < totalParrafos; parrafo++) {
+                System.arraycopy(conteoParrafos, parrafo * TIPOS_NOTA, conteo, 0, TIPOS_NOTA);
+                estadisticas.agregarParrafo(conteo);
+            }
+            return estadisticas;
+        }
+
+        /**
+         * Enteros que ocupa la partitura en el formato compilado
+         */
+        long enterosCompilados() {
+            return totalEventos + 2L * (totalParrafos + 1) + (long) totalParrafos * TIPOS_NOTA
+                    + (long) totalNodos * CAMPOS_NODO;
+        }
+
+        /**
+         * Escribe los arreglos columnares tal cual: eventos, inicio de párrafos,
+         * inicio de nodos por párrafo, conteo por párrafo y nodos
+         */
+        void escribirCompilada(PartituraCompilada.Salida salida) throws IOException {
+            salida.escribir(eventos, totalEventos);
+            salida.escribir(inicioParrafos, totalParrafos + 1);
+            salida.escribir(inicioNodosParrafo, totalParrafos + 1);
+            salida.escribir(conteoParrafos, totalParrafos * TIPOS_NOTA);
+            salida.escribir(nodos, totalNodos * CAMPOS_NODO);
+        }
+
+        /**
+         * Reconstruye la partitura copiando en bloque cada columna del formato compilado
+         */
+        static PartituraCompacta leerCompilada(java.nio.IntBuffer origen, int eventos, int notas, int parrafos,
+                int nodos) {
+            PartituraCompacta partitura = new PartituraCompacta();
+            partitura.eventos = new int[Math.max(1, eventos)];
+            partitura.inicioParrafos = new int[parrafos + 2];
+            partitura.inicioNodosParrafo = new int[parrafos + 2];
+            partitura.conteoParrafos = new int[(parrafos + 2) * TIPOS_NOTA];
+            partitura.nodos = new int[Math.max(1, nodos) * CAMPOS_NODO];
+
+            origen.get(partitura.eventos, 0, eventos);
+            origen.get(partitura.inicioParrafos, 0, parrafos + 1);
+            origen.get(partitura.inicioNodosParrafo, 0, parrafos + 1);
+            origen.get(partitura.conteoParrafos, 0, parrafos * TIPOS_NOTA);
+            origen.get(partitura.nodos, 0, nodos * CAMPOS_NODO);
+            partitura.totalEventos = eventos;
+            partitura.totalNotas = notas;
+            partitura.totalParrafos = parrafos;
+            partitura.totalNodos = nodos;
+            return partitura;
+        }
+
+        /**
+         * Une partituras consecutivas en una sola con los arreglos ya dimensionados
+         */
+        static PartituraCompacta concatenar(List<PartituraCompacta> trozos) {
+            int eventosTotales = 0;
+            int parrafosTotales = 0;
+            int nodosTotales = 0;
+            for (PartituraCompacta trozo : trozos) {
+                eventosTotales += trozo.totalEventos;
+                parrafosTotales += trozo.totalParrafos;
+                nodosTotales += trozo.totalNodos;
+            }
+
+            PartituraCompacta union = new PartituraCompacta();
+            union.eventos = new int[Math.max(1, eventosTotales)];
+            union.inicioParrafos = new int[parrafosTotales + 2];
+            union.inicioNodosParrafo = new int[parrafosTotales + 2];
+            union.conteoParrafos = new int[(parrafosTotales + 2) * TIPOS_NOTA];
+            union.nodos = new int[Math.max(1, nodosTotales) * CAMPOS_NODO];
+
+            for (PartituraCompacta trozo : trozos) {
+                System.arraycopy(trozo.eventos, 0, union.eventos, union.totalEventos, trozo.totalEventos);
+                System.arraycopy(trozo.conteoParrafos, 0, union.conteoParrafos, union.totalParrafos * TIPOS_NOTA,
+                        trozo.totalParrafos * TIPOS_NOTA);
+                for (int parrafo = 1; parrafo <= trozo.totalParrafos; parrafo++) {
+                    union.inicioParrafos[union.totalParrafos + parrafo] = union.totalEventos
+                            + trozo.inicioParrafos[parrafo];
+                    union.inicioNodosParrafo[union.totalParrafos + parrafo] = union.totalNodos
+                            + trozo.inicioNodosParrafo[parrafo];
+                }
+                for (int k = 0; k < trozo.totalNodos; k++) {
+                    int origen = k * CAMPOS_NODO;
+                    int destino = (union.totalNodos + k) * CAMPOS_NODO;
+                    union.nodos[destino + NODO_DESDE] = trozo.nodos[origen + NODO_DESDE] + union.totalEventos;
+                    union.nodos[destino + NODO_HASTA] = trozo.nodos[origen + NODO_HASTA] + union.totalEventos;
+                    union.nodos[destino + NODO_VECES] = trozo.nodos[origen + NODO_VECES];
+                    union.nodos[destino + NODO_FIN_SUBARBOL] = trozo.nodos[origen + NODO_FIN_SUBARBOL]
+                            + union.totalNodos;
+                }
+                union.totalEventos += trozo.totalEventos;
+                union.totalNotas += trozo.totalNotas;
+                union.totalParrafos += trozo.totalParrafos;
+                union.totalNodos += trozo.totalNodos;
+            }
+            return union;
+        }
+    }
+
+    /**
+     * Recorre la partitura compacta párrafo por párrafo sin crear objetos
+     */
+    private static class CursorPartitura {
+        private final PartituraCompacta partitura;
+        private int parrafo = -1;
+
+        public CursorPartitura(PartituraCompacta partitura) {
+            this.partitura = partitura;
+        }
+
+        public boolean siguienteParrafo() {
+            if (parrafo + 1 >= partitura.getTotalParrafos())
+                return false;
+            irAParrafo(parrafo + 1);
+            return true;
+        }
+
+        /**
+         * Posiciona el cursor en el párrafo indicado
+         */
+        public void irAParrafo(int numero) {
+            parrafo = numero;
+        }
+
+        public int getParrafo() {
+            return parrafo;
+        }
+
+        public boolean esUltimoParrafo() {
+            return parrafo == partitura.getTotalParrafos() - 1;
+        }
+    }
+
+    /**
+     * Recorre el árbol sintáctico de la partitura y entrega cada nota, acorde
+     * o silencio ya con su duración al receptor. Las repeticiones se expanden
+     * sobre la marcha con una pila de niveles, sin copiar eventos, y el tempo
+     * se conserva de un párrafo al siguiente
+     */
+    private static class RecorridoPartitura {
+        static final int TEMPO_POR_DEFECTO = 120;
+
+        /**
+         * Destino de los eventos: la línea de audio, el archivo WAV o un contador
+         */
+        interface Receptor {
+            void sonar(int[] notas, int cantidad, long microsegundos) throws IOException;
+
+            void silencio(long microsegundos) throws IOException;
+
+            default boolean detenido() {
+                return false;
+            }
+        }
+
+        private final Receptor receptor;
+        private final int[] voces = new int[MezcladorVoces.MAXIMO_VOCES];
+        private int tempo = TEMPO_POR_DEFECTO;
+
+        public RecorridoPartitura(Receptor receptor) {
+            this.receptor = receptor;
+        }
+
+        /**
+         * Recorre todos los párrafos con la pausa entre párrafos
+         */
+        public void recorrer(PartituraCompacta partitura) throws IOException {
+            for (int parrafo = 0; parrafo < partitura.getTotalParrafos() && !receptor.detenido(); parrafo++) {
+                if (parrafo > 0) {
+                    receptor.silencio(GeneradorSonido.PAUSA_ENTRE_PARRAFOS_MS * 1000L);
+                }
+                recorrerParrafo(partitura, parrafo);
+            }
+        }
+
+        public void recorrerParrafo(PartituraCompacta partitura, int parrafo) throws IOException {
+            recorrerRango(partitura, partitura.getInicioParrafo(parrafo), partitura.getFinParrafo(parrafo),
+                    partitura.getInicioNodos(parrafo), partitura.getFinNodos(parrafo));
+        }
+
+        /**
+         * Recorre los eventos [desde, hasta) cuyos bloques anidados son los nodos
+         * [nodo, finNodos); la profundidad está acotada por MAXIMA_ANIDACION
+         */
+        private void recorrerRango(PartituraCompacta partitura, int desde, int hasta, int nodo, int finNodos)
+                throws IOException {
+            int i = desde;
+            while (i < hasta && !receptor.detenido()) {
+                if (nodo < finNodos && partitura.getDesdeNodo(nodo) == i) {
+                    int finBloque = partitura.getHastaNodo(nodo);
+                    int finSubarbol = partitura.getFinSubarbol(nodo);
+                    for (int vez = 0; vez < partitura.getVecesNodo(nodo) && !receptor.detenido(); vez++) {
+                        recorrerRango(partitura, i, finBloque, nodo + 1, finSubarbol);
+                    }
+                    i = finBloque;
+                    nodo = finSubarbol;
+                } else {
+                    int limite = nodo < finNodos ? partitura.getDesdeNodo(nodo) : hasta;
+                    emitir(partitura, i, limite);
+                    i = limite;
+                }
+            }
+        }
+
+        /**
+         * Entrega los eventos de un tramo sin repeticiones
+         * Cada nota va seguida de la pausa de articulación proporcional a su figura
+         */
+        private void emitir(PartituraCompacta partitura, int desde, int hasta) throws IOException {
+            int i = desde;
+            while (i < hasta && !receptor.detenido()) {
+                int evento = partitura.getEvento(i++);
+                if (CodigoNota.esTempo(evento)) {
+                    tempo = CodigoNota.tempo(evento);
+                    continue;
+                }
+
+                long duracion = CodigoNota.duracionMicrosegundos(evento, tempo);
+                if (CodigoNota.esSilencio(evento)) {
+                    receptor.silencio(duracion + articulacion(duracion));
+                    continue;
+                }
+
+                // Las notas marcadas como acorde suenan junto con la anterior
+                int cantidad = 0;
+                voces[cantidad++] = evento;
+                while (i < hasta && CodigoNota.esAcorde(partitura.getEvento(i))) {
+                    if (cantidad < voces.length) {
+                        voces[cantidad++] = partitura.getEvento(i);
+                    }
+                    i++;
+                }
+                receptor.sonar(voces, cantidad, duracion);
+                receptor.silencio(articulacion(duracion));
+            }
+        }
+
+        /**
+         * Pausa tras cada nota, en la misma proporción que 200 ms tras una negra de 500 ms
+         */
+        private static long articulacion(long duracion) {
+            return duracion * GeneradorSonido.PAUSA_ENTRE_NOTAS_MS / GeneradorSonido.DURACION_NOTA_MS;
+        }
+
+        public int getTempo() {
+            return tempo;
+        }
+
+        /**
+         * Tempo con el que empieza el recorrido cuando no se parte del inicio
+         */
+        public void setTempo(int tempo) {
+            this.tempo = tempo;
+        }
+    }
+
+    /**
+     * Analizador sintáctico que procesa texto musical
+     * Guarda las notas codificadas en una partitura compacta
+     */
+    private static class AnalizadorMusical {
+        private final GramaticaMusical gramatica;
+
+        public AnalizadorMusical(GramaticaMusical gramatica) {
+            this.gramatica = gramatica;
+        }
+
+        public ResultadoAnalisis analizarTexto(CharSequence texto) {
+            return new ResultadoAnalisis(analizarTramo(texto, 0, texto.length()));
+        }
+
+        /**
+         * Analiza texto[desde, hasta) en una partitura nueva
+         * El tramo debe empezar al inicio de una línea
+         */
+        PartituraCompacta analizarTramo(CharSequence texto, int desde, int hasta) {
+            PartituraCompacta partitura = new PartituraCompacta();
+
+            // Un solo recorrido del texto: el autómata separa eventos y líneas
+            AutomataNotas escaner = gramatica.crearEscaner();
+            escaner.reiniciar(texto, desde, hasta);
+            while (analizarLinea(escaner, partitura)) {
+                // Cada vuelta agrega un párrafo
+            }
+
+            return partitura;
+        }
+
+        /**
+         * Consume los tokens de una línea y la agrega como párrafo a la partitura,
+         * construyendo su árbol de repeticiones. Devuelve false al llegar al final
+         */
+        static boolean analizarLinea(AutomataNotas escaner, PartituraCompacta partitura) {
+            while (true) {
+                int token = escaner.siguiente();
+                if (token == AutomataNotas.TOKEN_NOTA || token == AutomataNotas.TOKEN_SILENCIO
+                        || token == AutomataNotas.TOKEN_TEMPO) {
+                    partitura.agregarEvento(escaner.codificarEvento());
+                } else if (token == AutomataNotas.TOKEN_INICIO_REPETICION) {
+                    partitura.abrirRepeticion();
+                } else if (token == AutomataNotas.TOKEN_FIN_REPETICION) {
+                    partitura.cerrarRepeticion(escaner.getValor());
+                } else {
+                    partitura.cerrarParrafo();
+                    return token != AutomataNotas.TOKEN_FIN;
+                }
+            }
+        }
+
+        /**
+         * Análisis en paralelo: divide el texto en trozos que terminan en salto de
+         * línea, los analiza en un pool fork/join y une los conteos en un árbol.
+         * Los párrafos quedan en el mismo orden que en el análisis secuencial
+         */
+        public ResultadoAnalisis analizarEnParalelo(CharSequence texto) {
+            if (texto.length() < UMBRAL_PARALELO) {
+                return analizarTexto(texto);
+            }
+
+            ResultadoParcial parcial = java.util.concurrent.ForkJoinPool.commonPool()
+                    .invoke(new TareaAnalisis(texto, 0, texto.length()));
+            return new ResultadoAnalisis(PartituraCompacta.concatenar(parcial.trozos), parcial.estadisticas);
+        }
+
+        static final int UMBRAL_PARALELO = 256 * 1024;
+        private static final int TAMANO_TROZO = 128 * 1024;
+
+        /**
+         * Partituras de trozos consecutivos y sus estadísticas ya combinadas
+         */
+        private static final class ResultadoParcial {
+            final List<PartituraCompacta> trozos;
+            final EstadisticasIncrementales estadisticas;
+
+            ResultadoParcial(List<PartituraCompacta> trozos, EstadisticasIncrementales estadisticas) {
+                this.trozos = trozos;
+                this.estadisticas = estadisticas;
+            }
+        }
+
+        /**
+         * Divide el tramo por la mitad en el salto de línea más cercano hasta que
+         * cabe en un trozo; al volver, combina izquierda y derecha
+         */
+        private final class TareaAnalisis extends java.util.concurrent.RecursiveTask<ResultadoParcial> {
+            private final CharSequence texto;
+            private final int desde;
+            private final int hasta;
+
+            TareaAnalisis(CharSequence texto, int desde, int hasta) {
+                this.texto = texto;
+                this.desde = desde;
+                this.hasta = hasta;
+            }
+
+            @Override
+            protected ResultadoParcial compute() {
+                int corte = hasta - desde > TAMANO_TROZO ? buscarCorte() : -1;
+                if (corte < 0) {
+                    PartituraCompacta partitura = analizarTramo(texto, desde, hasta);
+                    List<PartituraCompacta> trozos = new ArrayList<>();
+                    trozos.add(partitura);
+                    return new ResultadoParcial(trozos, partitura.calcularEstadisticas());
+                }
+
+                TareaAnalisis izquierda = new TareaAnalisis(texto, desde, corte);
+                izquierda.fork();
+                ResultadoParcial derecha = new TareaAnalisis(texto, corte, hasta).compute();
+                ResultadoParcial combinado = izquierda.join();
+
+                combinado.trozos.addAll(derecha.trozos);
+                combinado.estadisticas.combinar(derecha.estadisticas);
+                return combinado;
+            }
+
+            /**
+             * Posición justo después de un salto de línea cerca del centro, o -1
+             */
+            private int buscarCorte() {
+                int medio = desde + (hasta - desde) / 2;
+                for (int i = medio; i < hasta - 1; i++) {
+                    if (texto.charAt(i) == '\n')
+                        return i + 1;
+                }
+                for (int i = medio - 1; i > desde; i--) {
+                    if (texto.charAt(i) == '\n')
+                        return i + 1;
+                }
+                return -1;
+            }
+        }
+
+        /**
+         * Analiza una fuente de líneas completa, por ejemplo un archivo leído por bloques
+         */
+        public ResultadoAnalisis analizarLineas(FuenteLineas lineas) throws IOException {
+            PartituraCompacta partitura = new PartituraCompacta();
+            AutomataNotas escaner = gramatica.crearEscaner();
+
+            CharSequence linea;
+            while ((linea = lineas.siguienteLinea()) != null) {
+                escaner.reiniciar(linea, 0, linea.length());
+                analizarLinea(escaner, partitura);
+            }
+
+            return new ResultadoAnalisis(partitura);
+        }
+    }
+
+    /**
+     * Fuente de líneas para el análisis en flujo
+     * Devuelve una vista reutilizada de la línea actual, válida hasta la siguiente llamada
+     */
+    private interface FuenteLineas extends Closeable {
+        CharSequence siguienteLinea() throws IOException;
+
+        /**
+         * Desplazamiento en bytes desde el inicio del archivo de la última línea devuelta
+         */
+        long posicionLinea();
+
+        /**
+         * La siguiente línea empieza en el desplazamiento indicado, que debe ser inicio de línea
+         */
+        void posicionar(long desplazamiento) throws IOException;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    /**
+     * Vista de caracteres sobre bytes de un archivo, sin decodificar
+     * Cada byte es un carácter; los bytes no ASCII quedan fuera de las clases
+     * de palabra del autómata, igual que los caracteres acentuados decodificados
+     */
+    private static final class VistaBytes implements CharSequence {
+        private final java.nio.ByteBuffer bytes;
+        private int inicio;
+        private int fin;
+
+        public VistaBytes(java.nio.ByteBuffer bytes, int inicio, int fin) {
+            this.bytes = bytes;
+            this.inicio = inicio;
+            this.fin = fin;
+        }
+
+        /**
+         * Los bytes de la vista como buffer propio, sin copiarlos
+         */
+        java.nio.ByteBuffer contenido() {
+            return bytes.slice(inicio, fin - inicio);
+        }
+
+        /**
+         * Reutiliza la vista para otro tramo del mismo buffer
+         */
+        void reubicar(int nuevoInicio, int nuevoFin) {
+            this.inicio = nuevoInicio;
+            this.fin = nuevoFin;
+        }
+
+        @Override
+        public int length() {
+            return fin - inicio;
+        }
+
+        @Override
+        public char charAt(int indice) {
+            return (char) (bytes.get(inicio + indice) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int desde, int hasta) {
+            return new VistaBytes(bytes, inicio + desde, inicio + hasta);
+        }
+
+        @Override
+        public String toString() {
+            byte[] copia = new byte[length()];
+            bytes.get(inicio, copia);
+            return new String(copia, java.nio.charset.StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Carga partituras sin copiarlas a cadenas: las mapea en memoria con
+     * FileChannel.map, y si son demasiado grandes para un solo mapeo las lee
+     * por bloques con NIO
+     */
+    private static class CargadorPartitura {
+        static final long LIMITE_MAPEO = Integer.MAX_VALUE;
+        private static final int TAMANO_BLOQUE = 64 * 1024;
+
+        private CargadorPartitura() {
+        }
+
+        /**
+         * Mapea el archivo completo y devuelve una vista de caracteres sobre él
+         */
+        static VistaBytes mapear(File archivo) throws IOException {
+            try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(archivo.toPath(),
+                    java.nio.file.StandardOpenOption.READ)) {
+                long tamano = canal.size();
+                if (tamano > LIMITE_MAPEO) {
+                    throw new IOException("El archivo es demasiado grande para mapearlo de una vez: " + tamano
+                            + " bytes");
+                }
+                // El mapeo sigue siendo válido después de cerrar el canal
+                java.nio.ByteBuffer bytes = canal.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, tamano);
+                return new VistaBytes(bytes, 0, (int) tamano);
+            }
+        }
+
+        /**
+         * Abre el archivo como fuente de líneas: mapeado si cabe, por bloques si no
+         */
+        static FuenteLineas abrirLineas(File archivo) throws IOException {
+            if (archivo.length() <= LIMITE_MAPEO) {
+                return new LineasMapeadas(mapear(archivo));
+            }
+            return new LineasPorBloques(java.nio.channels.FileChannel.open(archivo.toPath(),
+                    java.nio.file.StandardOpenOption.READ), TAMANO_BLOQUE);
+        }
+    }
+
+    /**
+     * Formato binario de una partitura ya analizada. Todo es little endian:
+     * una cabecera fija con firma, versión, huella del texto fuente, totales
+     * y CRC32, seguida de las columnas de la partitura, el conteo global y
+     * los contadores melódicos como enteros. Al abrirlo se mapea el archivo
+     * y cada columna se copia en bloque, sin tokenizar nada
+     */
+    private static final class PartituraCompilada {
+        static final String EXTENSION = ".smc";
+        // Cambia cuando cambia la gramática o el formato; las versiones viejas se descartan
+        static final int VERSION = 2;
+        private static final int FIRMA = 0x43504D53; // "SMPC" leído como little endian
+        private static final int TAMANO_HUELLA = 32;
+        private static final int TAMANO_CABECERA = 128;
+        // Posiciones dentro de la cabecera
+        private static final int POS_VERSION = 4;
+        private static final int POS_HUELLA = 8;
+        private static final int POS_TAMANO_FUENTE = 40;
+        private static final int POS_EVENTOS = 48;
+        private static final int POS_NOTAS = 52;
+        private static final int POS_PARRAFOS = 56;
+        private static final int POS_NODOS = 60;
+        private static final int POS_TAMANO_CUERPO = 64;
+        private static final int POS_CRC = 72;
+        private static final int TAMANO_BLOQUE = 64 * 1024;
+
+        private PartituraCompilada() {
+        }
+
+        /**
+         * Escribe enteros en el canal a través de un bloque reutilizado y va
+         * sumando el CRC32 de todo lo escrito
+         */
+        static final class Salida {
+            private final java.nio.channels.FileChannel canal;
+            private final java.nio.ByteBuffer bloque = java.nio.ByteBuffer.allocate(TAMANO_BLOQUE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+
+            Salida(java.nio.channels.FileChannel canal) {
+                this.canal = canal;
+            }
+
+            void escribir(int[] datos, int cantidad) throws IOException {
+                int desde = 0;
+                while (desde < cantidad) {
+                    if (bloque.remaining() < Integer.BYTES) {
+                        vaciar();
+                    }
+                    int tramo = Math.min(cantidad - desde, bloque.remaining() / Integer.BYTES);
+                    bloque.asIntBuffer().put(datos, desde, tramo);
+                    bloque.position(bloque.position() + tramo * Integer.BYTES);
+                    desde += tramo;
+                }
+            }
+
+            void escribir(int valor) throws IOException {
+                if (bloque.remaining() < Integer.BYTES) {
+                    vaciar();
+                }
+                bloque.putInt(valor);
+            }
+
+            void vaciar() throws IOException {
+                bloque.flip();
+                crc.update(bloque.duplicate());
+                while (bloque.hasRemaining()) {
+                    canal.write(bloque);
+                }
+                bloque.clear();
+            }
+
+            long getCrc() {
+                return crc.getValue();
+            }
+        }
+
+        /**
+         * Escribe primero el cuerpo y al final la cabecera con su CRC
+         * El cuerpo empieza después de la cabecera, que se deja en blanco mientras tanto
+         */
+        static void guardar(Path destino, byte[] huella, long tamanoFuente, ResultadoAnalisis resultado)
+                throws IOException {
+            PartituraCompacta partitura = resultado.getPartitura();
+            long tamanoCuerpo = (partitura.enterosCompilados() + GramaticaMusical.NOMBRES_BASE.length
+                    + EstadisticasMelodicas.ENTEROS_COMPILADOS) * Integer.BYTES;
+
+            try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(destino,
+                    java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING,
+                    java.nio.file.StandardOpenOption.WRITE)) {
+                canal.position(TAMANO_CABECERA);
+                Salida salida = new Salida(canal);
+                partitura.escribirCompilada(salida);
+                resultado.getEstadisticas().escribirCompiladas(salida);
+                resultado.getMelodia().escribirCompiladas(salida);
+                salida.vaciar();
+
+                java.nio.ByteBuffer cabecera = java.nio.ByteBuffer.allocate(TAMANO_CABECERA)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                cabecera.putInt(0, FIRMA);
+                cabecera.putInt(POS_VERSION, VERSION);
+                cabecera.put(POS_HUELLA, huella);
+                cabecera.putLong(POS_TAMANO_FUENTE, tamanoFuente);
+                cabecera.putInt(POS_EVENTOS, partitura.getTotalEventos());
+                cabecera.putInt(POS_NOTAS, partitura.getTotalNotas());
+                cabecera.putInt(POS_PARRAFOS, partitura.getTotalParrafos());
+                cabecera.putInt(POS_NODOS, partitura.totalNodos);
+                cabecera.putLong(POS_TAMANO_CUERPO, tamanoCuerpo);
+                cabecera.putLong(POS_CRC, salida.getCrc());
+                while (cabecera.hasRemaining()) {
+                    canal.write(cabecera, cabecera.position());
+                    cabecera.position(cabecera.limit());
+                }
+            }
+        }
+
+        /**
+         * Abre una partitura compilada; devuelve null si no corresponde a la
+         * huella, es de otra versión o el CRC no coincide
+         */
+        static ResultadoAnalisis cargar(Path origen, byte[] huella) throws IOException {
+            java.nio.ByteBuffer datos;
+            try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(origen,
+                    java.nio.file.StandardOpenOption.READ)) {
+                long tamano = canal.size();
+                if (tamano < TAMANO_CABECERA || tamano > Integer.MAX_VALUE)
+                    return null;
+                datos = canal.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, tamano)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            byte[] huellaGuardada = new byte[TAMANO_HUELLA];
+            datos.get(POS_HUELLA, huellaGuardada);
+            if (datos.getInt(0) != FIRMA || datos.getInt(POS_VERSION) != VERSION
+                    || !Arrays.equals(huellaGuardada, huella)
+                    || datos.getLong(POS_TAMANO_CUERPO) != datos.capacity() - TAMANO_CABECERA)
+                return null;
+
+            java.nio.ByteBuffer cuerpo = datos.slice(TAMANO_CABECERA, datos.capacity() - TAMANO_CABECERA)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(cuerpo.duplicate());
+            if (crc.getValue() != datos.getLong(POS_CRC))
+                return null;
+
+            int parrafos = datos.getInt(POS_PARRAFOS);
+            java.nio.IntBuffer enteros = cuerpo.asIntBuffer();
+            try {
+                PartituraCompacta partitura = PartituraCompacta.leerCompilada(enteros, datos.getInt(POS_EVENTOS),
+                        datos.getInt(POS_NOTAS), parrafos, datos.getInt(POS_NODOS));
+                EstadisticasIncrementales estadisticas = EstadisticasIncrementales.leerCompiladas(enteros, parrafos);
+                EstadisticasMelodicas melodia = EstadisticasMelodicas.leerCompiladas(enteros);
+                return new ResultadoAnalisis(partitura, estadisticas, melodia);
+            } catch (java.nio.BufferUnderflowException | IndexOutOfBoundsException
+                    | NegativeArraySizeException e) {
+                return null; // Totales que no cuadran con el cuerpo
+            }
+        }
+    }
+
+    /**
+     * Caché en disco de partituras compiladas, indexado por el SHA-256 del
+     * texto: un archivo modificado tiene otra huella y simplemente no se
+     * encuentra. Se guarda en ~/.sistema_musica/partituras salvo que la
+     * propiedad sistemamusica.cache indique otro directorio
+     */
+    private static class CachePartituras {
+        static final String PROPIEDAD_DIRECTORIO = "sistemamusica.cache";
+
+        private final Path directorio;
+
+        public CachePartituras(Path directorio) {
+            this.directorio = directorio;
+        }
+
+        static CachePartituras porDefecto() {
+            String configurado = System.getProperty(PROPIEDAD_DIRECTORIO);
+            Path directorio = configurado != null
+                    ? Paths.get(configurado)
+                    : Paths.get(System.getProperty("user.home"), ".sistema_musica", "partituras");
+            return new CachePartituras(directorio);
+        }
+
+        /**
+         * SHA-256 del contenido; lee el buffer sin moverlo
+         */
+        static byte[] huella(java.nio.ByteBuffer contenido) {
+            try {
+                java.security.MessageDigest resumen = java.security.MessageDigest.getInstance("SHA-256");
+                resumen.update(contenido.duplicate());
+                return resumen.digest();
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // Toda JVM debe incluir SHA-256
+            }
+        }
+
+        /**
+         * Partitura compilada con esa huella, o null si no está o no es válida
+         */
+        public ResultadoAnalisis buscar(byte[] huella) {
+            Path ruta = ruta(huella);
+            if (!Files.exists(ruta))
+                return null;
+            try {
+                return PartituraCompilada.cargar(ruta, huella);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Escribe en un archivo temporal y lo mueve a su lugar, así otro proceso
+         * nunca ve una partitura compilada a medias
+         */
+        public void guardar(byte[] huella, long tamanoFuente, ResultadoAnalisis resultado) throws IOException {
+            Files.createDirectories(directorio);
+            Path destino = ruta(huella);
+            Path temporal = Files.createTempFile(directorio, "compilando", ".tmp");
+            try {
+                PartituraCompilada.guardar(temporal, huella, tamanoFuente, resultado);
+                try {
+                    Files.move(temporal, destino, java.nio.file.StandardCopyOption.ATOMIC_MOVE,
+                            java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                } catch (java.nio.file.AtomicMoveNotSupportedException e) {
+                    Files.move(temporal, destino, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporal);
+            }
+        }
+
+        private Path ruta(byte[] huella) {
+            return directorio.resolve(HexFormat.of().formatHex(huella) + PartituraCompilada.EXTENSION);
+        }
+
+        public Path getDirectorio() {
+            return directorio;
+        }
+    }
+
+    /**
+     * Recorre un archivo mapeado línea por línea con una única vista reutilizada
+     */
+    private static class LineasMapeadas implements FuenteLineas {
+        private final VistaBytes contenido;
+        private final VistaBytes linea;
+        private int posicion;
+        private int inicioLinea;
+
+        public LineasMapeadas(VistaBytes contenido) {
+            this.contenido = contenido;
+            this.linea = new VistaBytes(contenido.bytes, 0, 0);
+            this.posicion = contenido.inicio;
+        }
+
+        @Override
+        public CharSequence siguienteLinea() {
+            int fin = contenido.fin;
+            if (posicion >= fin)
+                return null;
+
+            inicioLinea = posicion;
+            while (posicion < fin && contenido.bytes.get(posicion) != '\n') {
+                posicion++;
+            }
+            linea.reubicar(inicioLinea, posicion);
+            posicion++; // Saltar el '\n'
+            return linea;
+        }
+
+        @Override
+        public long posicionLinea() {
+            return inicioLinea - contenido.inicio;
+        }
+
+        @Override
+        public void posicionar(long desplazamiento) {
+            posicion = contenido.inicio + (int) desplazamiento;
+        }
+    }
+
+    /**
+     * Lee un canal por bloques de tamaño fijo y entrega líneas sobre el buffer
+     * La línea incompleta al final de un bloque se mueve al inicio antes de leer
+     * el siguiente; el buffer solo crece si una línea no cabe en él
+     */
+    private static class LineasPorBloques implements FuenteLineas {
+        private final java.nio.channels.FileChannel canal;
+        private java.nio.ByteBuffer buffer;
+        private VistaBytes linea;
+        private int posicion;
+        private boolean agotado;
+        // Desplazamiento en el archivo del primer byte del buffer y de la última línea
+        private long inicioBuffer;
+        private long inicioLinea;
+
+        public LineasPorBloques(java.nio.channels.FileChannel canal, int tamanoBloque) {
+            this.canal = canal;
+            this.buffer = java.nio.ByteBuffer.allocateDirect(tamanoBloque);
+            this.buffer.limit(0);
+            this.linea = new VistaBytes(buffer, 0, 0);
+        }
+
+        @Override
+        public CharSequence siguienteLinea() throws IOException {
+            while (true) {
+                int limite = buffer.limit();
+                for (int i = posicion; i < limite; i++) {
+                    if (buffer.get(i) == '\n') {
+                        inicioLinea = inicioBuffer + posicion;
+                        linea.reubicar(posicion, i);
+                        posicion = i + 1;
+                        return linea;
+                    }
+                }
+
+                if (agotado) {
+                    // Última línea sin salto final
+                    if (posicion < limite) {
+                        inicioLinea = inicioBuffer + posicion;
+                        linea.reubicar(posicion, limite);
+                        posicion = limite;
+                        return linea;
+                    }
+                    return null;
+                }
+                rellenar();
+            }
+        }
+
+        /**
+         * Conserva la línea pendiente y lee el siguiente bloque a continuación
+         */
+        private void rellenar() throws IOException {
+            buffer.position(posicion);
+            buffer.compact();
+            inicioBuffer += posicion;
+            posicion = 0;
+            if (!buffer.hasRemaining()) {
+                java.nio.ByteBuffer mayor = java.nio.ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                buffer.flip();
+                mayor.put(buffer);
+                buffer = mayor;
+                linea = new VistaBytes(buffer, 0, 0);
+            }
+            if (canal.read(buffer) < 0) {
+                agotado = true;
+            }
+            buffer.flip();
+        }
+
+        @Override
+        public long posicionLinea() {
+            return inicioLinea;
+        }
+
+        /**
+         * Descarta lo leído y sigue leyendo el canal desde el desplazamiento
+         */
+        @Override
+        public void posicionar(long desplazamiento) throws IOException {
+            canal.position(desplazamiento);
+            buffer.clear();
+            buffer.limit(0);
+            posicion = 0;
+            inicioBuffer = desplazamiento;
+            agotado = false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            canal.close();
+        }
+    }
+
+    /**
+     * Análisis incremental: entrega un párrafo a la vez a partir de una fuente
+     * de líneas y acumula las estadísticas globales según avanza.
+     * La memoria queda limitada al párrafo más largo
+     */
+    private static class FlujoParrafos {
+        private final FuenteLineas fuente;
+        private final AutomataNotas escaner;
+        private final EstadisticasIncrementales estadisticas = new EstadisticasIncrementales();
+        private final EstadisticasMelodicas melodia = new EstadisticasMelodicas();
+        private final int[] conteoParrafo = new int[GramaticaMusical.NOMBRES_BASE.length];
+        private int numeroParrafo;
+        // Partitura de un solo párrafo que se reutiliza en cada línea
+        private final PartituraCompacta parrafo = new PartituraCompacta();
+
+        public FlujoParrafos(FuenteLineas fuente, GramaticaMusical gramatica) {
+            this.fuente = fuente;
+            this.escaner = gramatica.crearEscaner();
+        }
+
+        /**
+         * Avanza hasta la siguiente línea con eventos; devuelve false al final
+         */
+        public boolean siguienteParrafo() throws IOException {
+            CharSequence linea;
+            while ((linea = fuente.siguienteLinea()) != null) {
+                parrafo.limpiar();
+                escaner.reiniciar(linea, 0, linea.length());
+                AnalizadorMusical.analizarLinea(escaner, parrafo);
+
+                if (parrafo.getTotalParrafos() > 0) {
+                    for (int base = 0; base < conteoParrafo.length; base++) {
+                        conteoParrafo[base] = parrafo.getConteo(0, base);
+                    }
+                    estadisticas.agregarParrafo(conteoParrafo);
+                    melodia.agregarParrafo(parrafo, 0);
+                    numeroParrafo++;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Sigue desde el párrafo indicado (desde 0) que empieza en el desplazamiento
+         * La numeración salta con él; las estadísticas suman lo que se lea
+         */
+        public void posicionar(int parrafoSiguiente, long desplazamiento) throws IOException {
+            fuente.posicionar(desplazamiento);
+            numeroParrafo = parrafoSiguiente;
+        }
+
+        public int getNumeroParrafo() {
+            return numeroParrafo;
+        }
+
+        /**
+         * El párrafo actual como partitura de un solo párrafo, válido hasta la siguiente llamada
+         */
+        public PartituraCompacta getParrafo() {
+            return parrafo;
+        }
+
+        public EstadisticasIncrementales getEstadisticas() {
+            return estadisticas;
+        }
+
+        public EstadisticasMelodicas getMelodia() {
+            return melodia;
+        }
+    }
+
+    /**
+     * Índice de una partitura leída en flujo: desplazamiento en bytes, notas y
+     * tempo vigente de cada párrafo, más las estadísticas del archivo completo,
+     * armado en una sola pasada. Ocupa 16 bytes por párrafo; con él saltar a un
+     * párrafo o armar su fila solo lee y analiza su línea
+     */
+    private static final class IndiceParrafos implements Closeable {
+        private static final int CAPACIDAD_INICIAL = 1024;
+
+        private long[] desplazamientos = new long[CAPACIDAD_INICIAL];
+        private int[] tempos = new int[CAPACIDAD_INICIAL];
+        private int total;
+        private long tamano;
+        private EstadisticasIncrementales estadisticas;
+        private EstadisticasMelodicas melodia;
+
+        // Lectura de párrafos sueltos para las filas de la lista
+        private java.nio.channels.FileChannel canal;
+        private java.nio.ByteBuffer lectura = java.nio.ByteBuffer.allocate(256);
+        private AutomataNotas escaner;
+        private final PartituraCompacta parrafo = new PartituraCompacta();
+
+        private IndiceParrafos() {
+        }
+
+        /**
+         * Recorre el archivo con el mismo análisis del modo flujo, anotando dónde
+         * empieza cada párrafo y el tempo con el que empieza
+         */
+        static IndiceParrafos construir(File archivo, GramaticaMusical gramatica) throws IOException {
+            IndiceParrafos indice = new IndiceParrafos();
+            try (FuenteLineas lineas = CargadorPartitura.abrirLineas(archivo)) {
+                FlujoParrafos flujo = new FlujoParrafos(lineas, gramatica);
+                int tempo = RecorridoPartitura.TEMPO_POR_DEFECTO;
+                while (flujo.siguienteParrafo()) {
+                    indice.agregar(lineas.posicionLinea(), tempo);
+                    tempo = flujo.getParrafo().tempoAntesDe(1, tempo);
+                }
+                indice.estadisticas = flujo.getEstadisticas();
+                indice.melodia = flujo.getMelodia();
+            }
+            indice.tamano = archivo.length();
+            indice.canal = java.nio.channels.FileChannel.open(archivo.toPath(),
+                    java.nio.file.StandardOpenOption.READ);
+            indice.escaner = gramatica.crearEscaner();
+            return indice;
+        }
+
+        private void agregar(long desplazamiento, int tempo) {
+            if (total == desplazamientos.length) {
+                int capacidad = total * 2;
+                desplazamientos = Arrays.copyOf(desplazamientos, capacidad);
+                tempos = Arrays.copyOf(tempos, capacidad);
+            }
+            desplazamientos[total] = desplazamiento;
+            tempos[total] = tempo;
+            total++;
+        }
+
+        /**
+         * Lee y analiza solo la línea del párrafo (desde 0)
+         * La partitura devuelta se reutiliza en la siguiente llamada
+         */
+        synchronized PartituraCompacta leerParrafo(int numero) throws IOException {
+            long desde = desplazamientos[numero];
+            long hasta = numero + 1 < total ? desplazamientos[numero + 1] : tamano;
+            int longitud = (int) Math.min(hasta - desde, Integer.MAX_VALUE - 8);
+            if (lectura.capacity() < longitud) {
+                lectura = java.nio.ByteBuffer.allocate(Math.max(longitud, lectura.capacity() * 2));
+            }
+            lectura.clear();
+            lectura.limit(longitud);
+            while (lectura.hasRemaining() && canal.read(lectura, desde + lectura.position()) >= 0) {
+                // Lectura posicional: no mueve el canal
+            }
+
+            // Entre dos párrafos puede haber líneas sin notas; solo se analiza la primera
+            int fin = 0;
+            while (fin < lectura.position() && lectura.get(fin) != '\n') {
+                fin++;
+            }
+            parrafo.limpiar();
+            escaner.reiniciar(new VistaBytes(lectura, 0, fin), 0, fin);
+            AnalizadorMusical.analizarLinea(escaner, parrafo);
+            return parrafo;
+        }
+
+        int getTotal() {
+            return total;
+        }
+
+        long getDesplazamiento(int numero) {
+            return desplazamientos[numero];
+        }
+
+        /**
+         * Tempo vigente al empezar el párrafo
+         */
+        int getTempo(int numero) {
+            return tempos[numero];
+        }
+
+        EstadisticasIncrementales getEstadisticas() {
+            return estadisticas;
+        }
+
+        EstadisticasMelodicas getMelodia() {
+            return melodia;
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                canal.close();
+            } catch (IOException e) {
+                System.err.println("Error cerrando el indice: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Partitura del modo de edición en vivo: una partitura compacta por línea
+     * del editor. Al cambiar una línea solo se vuelve a analizar esa línea y sus
+     * conteos se restan y suman en las estadísticas globales; el resto del
+     * texto no se toca
+     */
+    private static class PartituraEnVivo {
+        // Las líneas sin eventos comparten esta partitura sin párrafos
+        private static final PartituraCompacta LINEA_VACIA = new PartituraCompacta();
+
+        private final List<PartituraCompacta> lineas = new ArrayList<>();
+        private final EstadisticasIncrementales estadisticas = new EstadisticasIncrementales();
+        private final EstadisticasMelodicas melodia = new EstadisticasMelodicas();
+        private final AutomataNotas escaner;
+        private final PartituraCompacta borrador = new PartituraCompacta();
+        private final int[] conteo = new int[GramaticaMusical.NOMBRES_BASE.length];
+
+        public PartituraEnVivo(GramaticaMusical gramatica) {
+            this.escaner = gramatica.crearEscaner();
+        }
+
+        public void insertarLinea(int indice, CharSequence texto) {
+            PartituraCompacta linea = analizar(texto);
+            lineas.add(indice, linea);
+            contar(linea, true);
+        }
+
+        public void reemplazarLinea(int indice, CharSequence texto) {
+            PartituraCompacta linea = analizar(texto);
+            contar(lineas.set(indice, linea), false);
+            contar(linea, true);
+        }
+
+        public void quitarLineas(int indice, int cantidad) {
+            List<PartituraCompacta> tramo = lineas.subList(indice, indice + cantidad);
+            for (PartituraCompacta linea : tramo) {
+                contar(linea, false);
+            }
+            tramo.clear();
+        }
+
+        public void limpiar() {
+            quitarLineas(0, lineas.size());
+        }
+
+        /**
+         * Analiza una línea en el borrador y guarda una copia con los arreglos justos
+         */
+        private PartituraCompacta analizar(CharSequence texto) {
+            borrador.limpiar();
+            escaner.reiniciar(texto, 0, texto.length());
+            AnalizadorMusical.analizarLinea(escaner, borrador);
+            if (borrador.getTotalParrafos() == 0) {
+                return LINEA_VACIA;
+            }
+            return PartituraCompacta.concatenar(Collections.singletonList(borrador));
+        }
+
+        private void contar(PartituraCompacta linea, boolean agregar) {
+            if (linea.getTotalParrafos() == 0)
+                return;
+
+            for (int base = 0; base < conteo.length; base++) {
+                conteo[base] = linea.getConteo(0, base);
+            }
+            if (agregar) {
+                estadisticas.agregarParrafo(conteo);
+                melodia.agregarParrafo(linea, 0);
+            } else {
+                estadisticas.quitarParrafo(conteo);
+                melodia.quitarParrafo(linea, 0);
+            }
+        }
+
+        public int getTotalLineas() {
+            return lineas.size();
+        }
+
+        /**
+         * La línea como partitura de uno o ningún párrafo
+         */
+        public PartituraCompacta getLinea(int indice) {
+            return lineas.get(indice);
+        }
+
+        /**
+         * Número de párrafo (desde 0) de la línea, sin contar las líneas vacías anteriores
+         */
+        public int parrafoDeLinea(int indice) {
+            int parrafo = 0;
+            for (int i = 0; i < indice; i++) {
+                parrafo += lineas.get(i).getTotalParrafos();
+            }
+            return parrafo;
+        }
+
+        /**
+         * Último tempo indicado antes de la línea, para reproducir desde ella
+         */
+        public int tempoAntesDe(int indice) {
+            for (int i = indice - 1; i >= 0; i--) {
+                PartituraCompacta linea = lineas.get(i);
+                for (int e = linea.getTotalEventos() - 1; e >= 0; e--) {
+                    if (CodigoNota.esTempo(linea.getEvento(e))) {
+                        return CodigoNota.tempo(linea.getEvento(e));
+                    }
+                }
+            }
+            return RecorridoPartitura.TEMPO_POR_DEFECTO;
+        }
+
+        /**
+         * Copia para reproducir desde la línea indicada hasta el final
+         * La reproducción no comparte arreglos con el editor
+         */
+        public PartituraCompacta partituraDesde(int indice) {
+            return PartituraCompacta.concatenar(lineas.subList(indice, lineas.size()));
+        }
+
+        public EstadisticasIncrementales getEstadisticas() {
+            return estadisticas;
+        }
+
+        public EstadisticasMelodicas getMelodia() {
+            return melodia;
+        }
+    }
+
+    /**
+     * Genera audio sintético para las notas musicales
+     */
+    /**
+     * Clase que genera sonido sintético para las notas musicales
+     * Usa Java Sound API para crear ondas sinusoidales
+     * Mantiene una sola línea de audio abierta por sesión y la alimenta desde
+     * un buffer circular sin bloqueos. Recibe los eventos del recorrido de la
+     * partitura con su duración en microsegundos
+     */
+    private static class GeneradorSonido implements RecorridoPartitura.Receptor {
+        static final int DURACION_NOTA_MS = 500;
+        static final int PAUSA_ENTRE_NOTAS_MS = 200;
+        static final int PAUSA_ENTRE_PARRAFOS_MS = 800;
+        // Audio que el productor puede sintetizar por delante de la salida
+        static final int ANTICIPACION_POR_DEFECTO_MS = 186;
+        static final int ANTICIPACION_MINIMA_MS = 50;
+        static final int ANTICIPACION_MAXIMA_MS = 2000;
+        private static final int MILISEGUNDOS_LINEA = 93; // Buffer del dispositivo
+        private static final int TAMANO_BLOQUE_SALIDA = 3072; // Múltiplo de 2, 3 y 4 bytes por muestra
+        private static final byte[] SILENCIO = new byte[TAMANO_BLOQUE_SALIDA];
+        private static final long ESPERA_NANOS = 500_000;
+        // El hilo de salida despierta al productor al liberar espacio; esto es solo un tope
+        private static final long ESPERA_PRODUCTOR_NANOS = 10_000_000;
+
+        private final GramaticaMusical gramatica;
+        private final LineaTiempo lineaTiempo = new LineaTiempo(FormatoAudio.ESTANDAR.frecuenciaMuestreo());
+        private final MezcladorVoces mezclador = new MezcladorVoces();
+        private final byte[] bloqueMezcla = new byte[MezcladorVoces.MUESTRAS_BLOQUE * Profundidad.MAXIMO_BYTES];
+        private final CacheNotas cacheNotas = new CacheNotas(CacheNotas.CAPACIDAD_POR_DEFECTO);
+        private final TelemetriaAudio telemetria = new TelemetriaAudio(cacheNotas);
+        private BufferCircular bufferCircular = new BufferCircular(
+                FormatoAudio.ESTANDAR.bytesPara(ANTICIPACION_POR_DEFECTO_MS));
+        private volatile int anticipacionMs = ANTICIPACION_POR_DEFECTO_MS;
+        private SourceDataLine lineaAudio;
+        private Thread hiloSalida;
+        // Hilo que sintetiza; el de salida lo despierta cada vez que lee
+        private volatile Thread productor;
+        private volatile boolean sesionActiva = false;
+        private volatile boolean detenido = false;
+        private volatile boolean pausado = false;
+        // Tiempo en pausa dentro de la sesión, para no contarlo como deriva
+        private volatile long nanosPausa;
+        private long inicioPausa;
+        private volatile FormaOnda formaOnda = FormaOnda.SENO;
+        private volatile FormatoAudio formato = FormatoAudio.ESTANDAR;
+        // Formato con el que se abrió la línea; no cambia hasta la siguiente sesión
+        private volatile FormatoAudio formatoSesion = FormatoAudio.ESTANDAR;
+
+        // Métricas de temporización; las escribe solo el hilo de salida
+        private volatile long subdesbordamientos;
+        private volatile long derivaMuestras;
+        private volatile long derivaMaximaMuestras;
+
+        public GeneradorSonido(GramaticaMusical gramatica) {
+            this.gramatica = gramatica;
+        }
+
+        public void setFormaOnda(FormaOnda formaOnda) {
+            this.formaOnda = formaOnda;
+        }
+
+        /**
+         * Frecuencia de muestreo y profundidad de la salida; se aplica al abrir
+         * la siguiente sesión, nunca a una línea ya abierta
+         */
+        public void setFormato(FormatoAudio formato) {
+            this.formato = formato;
+        }
+
+        public FormatoAudio getFormato() {
+            return formato;
+        }
+
+        /**
+         * Cuánto audio puede sintetizarse por delante de la línea; más
+         * anticipación absorbe pausas más largas del productor a cambio de
+         * memoria y de latencia al cambiar el timbre. Se aplica en la siguiente sesión
+         */
+        public void setAnticipacionMs(int milisegundos) {
+            anticipacionMs = Math.max(ANTICIPACION_MINIMA_MS, Math.min(ANTICIPACION_MAXIMA_MS, milisegundos));
+        }
+
+        public int getAnticipacionMs() {
+            return anticipacionMs;
+        }
+
+        @Override
+        public void sonar(int[] notas, int cantidad, long microsegundos) {
+            reproducirAcorde(notas, cantidad, microsegundos);
+        }
+
+        @Override
+        public void silencio(long microsegundos) {
+            reproducirSilencio(microsegundos);
+        }
+
+        @Override
+        public boolean detenido() {
+            return detenido;
+        }
+
+        /**
+         * Reproduce una o varias notas a la vez mezclándolas en un solo flujo
+         * Se sintetizan por bloques de pocos cientos de muestras en un buffer
+         * reutilizable que se encola apenas se llena, así una nota larga no
+         * se arma completa en memoria ni crea arreglos nuevos. Las notas
+         * sueltas que caben en el caché se sintetizan una vez y luego se copian
+         */
+        public void reproducirAcorde(int[] notas, int cantidad, long microsegundos) {
+            if (detenido)
+                return;
+
+            try {
+                int duracionMs = milisegundos(microsegundos);
+                abrirSesion();
+                long inicio = System.nanoTime();
+                long recortadasAntes = mezclador.getMuestrasRecortadas();
+                TelemetriaAudio.EventoNota evento = TelemetriaAudio.eventoNota();
+
+                FormaOnda forma = formaOnda;
+                int bytesMuestra = formatoSesion.bytesPorMuestra();
+                byte[] pcm = cantidad == 1 ? notaCacheada(forma, gramatica.obtenerFrecuencia(notas[0]), duracionMs) : null;
+                if (pcm == null) {
+                    mezclador.limpiar();
+                    for (int i = 0; i < cantidad; i++) {
+                        mezclador.agregarVoz(forma, gramatica.obtenerFrecuencia(notas[i]), duracionMs);
+                    }
+                }
+
+                // Solo se suma el tiempo de mezcla; las esperas del buffer van aparte
+                long sintesis = System.nanoTime() - inicio;
+                long pendientes = lineaTiempo.avanzarMicrosegundos(microsegundos);
+                if (pcm != null) {
+                    int muestrasNota = (int) Math.min(pcm.length / bytesMuestra, pendientes);
+                    encolar(pcm, 0, muestrasNota * bytesMuestra);
+                    encolarSilencio((pendientes - muestrasNota) * bytesMuestra);
+                    pendientes = 0;
+                }
+                while (pendientes > 0 && !detenido) {
+                    int tramo = (int) Math.min(pendientes, MezcladorVoces.MUESTRAS_BLOQUE);
+                    long inicioMezcla = System.nanoTime();
+                    mezclador.mezclar(bloqueMezcla, 0, tramo);
+                    sintesis += System.nanoTime() - inicioMezcla;
+                    encolar(bloqueMezcla, 0, tramo * bytesMuestra);
+                    pendientes -= tramo;
+                }
+
+                telemetria.registrarNota(sintesis, System.nanoTime() - inicio);
+                telemetria.registrarRecortes(mezclador.getMuestrasRecortadas() - recortadasAntes);
+                telemetria.registrarAdelanto(microsegundosEnCola());
+                if (evento != null) {
+                    evento.frecuencia = gramatica.obtenerFrecuencia(notas[0]);
+                    evento.duracionMs = duracionMs;
+                    evento.voces = cantidad;
+                    evento.sintesisNanos = sintesis;
+                    evento.commit();
+                }
+
+            } catch (Exception e) {
+                String origen = cantidad == 1 ? "nota " + CodigoNota.texto(notas[0]) : "acorde";
+                System.err.println("Error generando audio para " + origen + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * PCM de una nota suelta desde el caché, sintetizándola la primera vez
+         * Devuelve null si la nota es demasiado larga para guardarla
+         */
+        private byte[] notaCacheada(FormaOnda forma, double frecuencia, int duracionMs) {
+            FormatoAudio formatoNota = formatoSesion;
+            if (!cacheNotas.admite(formatoNota.muestrasPara(duracionMs) * (long) formatoNota.bytesPorMuestra()))
+                return null;
+
+            ClaveNota clave = new ClaveNota(frecuencia, duracionMs, forma, formatoNota);
+            byte[] pcm = cacheNotas.obtener(clave);
+            if (pcm == null) {
+                pcm = mezclador.sintetizarVoz(forma, frecuencia, duracionMs);
+                cacheNotas.guardar(clave, pcm);
+            }
+            return pcm;
+        }
+
+        /**
+         * Escribe silencio en la línea para que las pausas mantengan el tempo
+         * sin dejar la línea sin datos
+         */
+        public void reproducirSilencio(long microsegundos) {
+            if (detenido)
+                return;
+
+            try {
+                abrirSesion();
+            } catch (LineUnavailableException e) {
+                System.err.println("Error abriendo la linea de audio: " + e.getMessage());
+                return;
+            }
+
+            encolarSilencio(lineaTiempo.avanzarMicrosegundos(microsegundos) * formatoSesion.bytesPorMuestra());
+        }
+
+        /**
+         * Duración redondeada al milisegundo para la envolvente y como clave del caché
+         */
+        static int milisegundos(long microsegundos) {
+            return (int) Math.max(1, (microsegundos + 500) / 1000);
+        }
+
+        private void encolarSilencio(long bytes) {
+            while (bytes > 0 && !detenido) {
+                int tramo = (int) Math.min(bytes, SILENCIO.length);
+                encolar(SILENCIO, 0, tramo);
+                bytes -= tramo;
+            }
+        }
+
+        /**
+         * Abre la línea de audio una sola vez y arranca el hilo que la alimenta
+         * Las notas siguientes reutilizan la misma línea hasta cerrar la sesión
+         */
+        private synchronized void abrirSesion() throws LineUnavailableException {
+            if (sesionActiva)
+                return;
+
+            long inicio = System.nanoTime();
+            TelemetriaAudio.EventoAperturaLinea evento = TelemetriaAudio.eventoAperturaLinea();
+            FormatoAudio formatoNuevo = formato;
+            AudioFormat formatoLinea = formatoNuevo.aAudioFormat();
+            DataLine.Info info = new DataLine.Info(SourceDataLine.class, formatoLinea);
+            lineaAudio = (SourceDataLine) AudioSystem.getLine(info);
+            lineaAudio.open(formatoLinea, formatoNuevo.bytesPara(MILISEGUNDOS_LINEA));
+            // En pausa la línea se abre parada y la arranca reanudar
+            if (!pausado) {
+                lineaAudio.start();
+            }
+            nanosPausa = 0;
+            inicioPausa = System.nanoTime();
+            telemetria.registrarAperturaLinea(System.nanoTime() - inicio);
+            if (evento != null) {
+                evento.commit();
+            }
+
+            // El hilo de salida anterior ya terminó, así que el buffer se puede cambiar;
+            // solo se vuelve a crear si la anticipación no cabe o sobra más de la mitad
+            int bytesAnticipacion = formatoNuevo.bytesPara(anticipacionMs);
+            if (bufferCircular.getCapacidad() < bytesAnticipacion
+                    || bufferCircular.getCapacidad() >= 2 * bytesAnticipacion) {
+                bufferCircular = new BufferCircular(bytesAnticipacion);
+            }
+            bufferCircular.setLimite(bytesAnticipacion);
+            formatoSesion = formatoNuevo;
+            mezclador.setFormato(formatoNuevo);
+            bufferCircular.vaciar();
+            lineaTiempo.reiniciar(formatoNuevo.frecuenciaMuestreo());
+            subdesbordamientos = 0;
+            derivaMuestras = 0;
+            derivaMaximaMuestras = 0;
+            sesionActiva = true;
+            hiloSalida = new Thread(this::bucleSalida, "salida-audio");
+            hiloSalida.setDaemon(true);
+            hiloSalida.start();
+        }
+
+        /**
+         * Espera a que suene todo el audio pendiente y libera la línea
+         */
+        public void cerrarSesion() {
+            Thread hilo;
+            synchronized (this) {
+                if (!sesionActiva)
+                    return;
+                sesionActiva = false;
+                hilo = hiloSalida;
+                hiloSalida = null;
+            }
+
+            LockSupport.unpark(hilo);
+            try {
+                hilo.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Copia el PCM al buffer circular, esperando mientras esté lleno
+         */
+        private void encolar(byte[] datos, int desde, int longitud) {
+            int fin = desde + longitud;
+            long espera = 0;
+            productor = Thread.currentThread();
+            while (desde < fin && !detenido) {
+                int escritos = bufferCircular.escribir(datos, desde, fin - desde);
+                if (escritos == 0 && pausado) {
+                    // En pausa el buffer no se vacía; la espera no cuenta como latencia
+                    LockSupport.parkNanos(this, ESPERA_PRODUCTOR_NANOS);
+                } else if (escritos == 0) {
+                    // Buffer lleno: se duerme hasta que el hilo de salida lea
+                    long inicioEspera = System.nanoTime();
+                    LockSupport.parkNanos(this, ESPERA_PRODUCTOR_NANOS);
+                    espera += System.nanoTime() - inicioEspera;
+                } else {
+                    desde += escritos;
+                    LockSupport.unpark(hiloSalida);
+                }
+            }
+            telemetria.registrarEspera(espera);
+        }
+
+        /**
+         * Hilo consumidor: pasa el PCM del buffer circular a la línea abierta
+         * Al terminar la sesión vacía lo pendiente y cierra la línea.
+         * Mide la deriva entre el reloj de muestras del dispositivo y el reloj
+         * de pared, y cuenta las veces que la línea se quedó sin datos
+         */
+        private void bucleSalida() {
+            SourceDataLine linea = lineaAudio;
+            BufferCircular cola = bufferCircular;
+            int frecuencia = formatoSesion.frecuenciaMuestreo();
+            int bytesMuestra = formatoSesion.bytesPorMuestra();
+            byte[] bloque = new byte[TAMANO_BLOQUE_SALIDA];
+            long inicioNanos = 0;
+            long pausaAlIniciar = 0;
+            boolean enSubdesbordamiento = false;
+
+            while (!detenido) {
+                if (pausado) {
+                    // Línea parada: no se le escribe hasta reanudar o detener
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                // La línea solo acepta muestras completas; el resto espera a la siguiente vuelta
+                int enCola = cola.disponibles();
+                int pedidos = Math.min(enCola, bloque.length);
+                int leidos = cola.leer(bloque, 0, pedidos - pedidos % bytesMuestra);
+                if (leidos > 0) {
+                    // Hay espacio otra vez: el productor no espera a su próxima vuelta
+                    LockSupport.unpark(productor);
+                    telemetria.registrarLlenado(enCola * 100 / cola.getLimite(),
+                            (linea.getBufferSize() - linea.available()) * 100 / linea.getBufferSize());
+                    linea.write(bloque, 0, leidos);
+                    enSubdesbordamiento = false;
+                    if (inicioNanos == 0) {
+                        inicioNanos = System.nanoTime();
+                        pausaAlIniciar = nanosPausa;
+                    } else {
+                        medirDeriva(linea, inicioNanos + nanosPausa - pausaAlIniciar, frecuencia);
+                    }
+                } else if (!sesionActiva) {
+                    break;
+                } else {
+                    // Línea vacía a mitad de sesión: el audio se retrasa respecto a la partitura
+                    if (inicioNanos != 0 && !enSubdesbordamiento
+                            && linea.available() >= linea.getBufferSize()) {
+                        enSubdesbordamiento = true;
+                        subdesbordamientos++;
+                        telemetria.registrarSubdesbordamiento(lineaTiempo.getMuestraActual());
+                    }
+                    LockSupport.parkNanos(ESPERA_NANOS);
+                }
+            }
+
+            // drain no vuelve con la línea parada: se espera a reanudar
+            while (pausado && !detenido) {
+                LockSupport.park(this);
+            }
+            if (!detenido) {
+                linea.drain();
+            }
+            linea.close();
+        }
+
+        /**
+         * Diferencia entre las muestras que deberían haber sonado según el reloj
+         * de pared y las que el dispositivo reporta como reproducidas
+         */
+        private void medirDeriva(SourceDataLine linea, long inicioNanos, int frecuencia) {
+            long esperadas = (System.nanoTime() - inicioNanos) * frecuencia / 1_000_000_000L;
+            long deriva = esperadas - linea.getLongFramePosition();
+            derivaMuestras = deriva;
+            telemetria.registrarDeriva(Math.abs(deriva) * 1_000_000L / frecuencia);
+            if (Math.abs(deriva) > Math.abs(derivaMaximaMuestras)) {
+                derivaMaximaMuestras = deriva;
+            }
+        }
+
+        public long getSubdesbordamientos() {
+            return subdesbordamientos;
+        }
+
+        public double getDerivaMs() {
+            return derivaMuestras * 1000.0 / formatoSesion.frecuenciaMuestreo();
+        }
+
+        public double getDerivaMaximaMs() {
+            return derivaMaximaMuestras * 1000.0 / formatoSesion.frecuenciaMuestreo();
+        }
+
+        /**
+         * Registra cuánto audio queda por sonar al empezar un párrafo: si llega a
+         * cero, el productor se atrasó respecto al horario de la partitura
+         */
+        public void marcarParrafo(int numeroParrafo) {
+            if (!sesionActiva || lineaAudio == null)
+                return;
+            telemetria.registrarParrafo(numeroParrafo, microsegundosEnCola());
+        }
+
+        /**
+         * Audio ya sintetizado que aún no suena: lo que queda en el buffer
+         * circular más lo que la línea tiene sin reproducir
+         */
+        private long microsegundosEnCola() {
+            SourceDataLine linea = lineaAudio;
+            if (linea == null)
+                return 0;
+            long sonadoMicros = linea.getLongFramePosition() * 1_000_000L / formatoSesion.frecuenciaMuestreo();
+            return Math.max(0, lineaTiempo.getMicrosegundos() - sonadoMicros);
+        }
+
+        public TelemetriaAudio getTelemetria() {
+            return telemetria;
+        }
+
+        /**
+         * Muestras colocadas en la línea de tiempo durante la sesión actual
+         */
+        public long getMuestrasProgramadas() {
+            return lineaTiempo.getMuestraActual();
+        }
+
+        /**
+         * Resumen de temporización de la última sesión para el reporte
+         */
+        public String resumenTemporizacion() {
+            return String.format("Temporizacion: %.2f s programados, deriva %.1f ms (maxima %.1f ms), %d subdesbordamientos",
+                    getMuestrasProgramadas() / (double) formatoSesion.frecuenciaMuestreo(), getDerivaMs(),
+                    getDerivaMaximaMs(),
+                    getSubdesbordamientos());
+        }
+
+        public void detenerTodo() {
+            detenido = true;
+            sesionActiva = false;
+            SourceDataLine linea = lineaAudio;
+            if (linea != null) {
+                // stop y flush liberan al hilo de salida si está bloqueado en write
+                linea.stop();
+                linea.flush();
+            }
+            LockSupport.unpark(hiloSalida);
+            LockSupport.unpark(productor);
+        }
+
+        /**
+         * Para la línea conservando el audio en cola; el productor se queda
+         * esperando con el buffer lleno hasta reanudar
+         */
+        public synchronized void pausar() {
+            if (pausado)
+                return;
+            pausado = true;
+            inicioPausa = System.nanoTime();
+            SourceDataLine linea = lineaAudio;
+            if (linea != null && linea.isOpen()) {
+                linea.stop();
+            }
+        }
+
+        public synchronized void reanudar() {
+            if (!pausado)
+                return;
+            nanosPausa += System.nanoTime() - inicioPausa;
+            pausado = false;
+            // Tras cerrarSesion la línea sigue abierta hasta sonar lo último
+            SourceDataLine linea = lineaAudio;
+            if (!detenido && linea != null && linea.isOpen()) {
+                linea.start();
+            }
+            LockSupport.unpark(hiloSalida);
+        }
+
+        /**
+         * Deja el generador listo para otra reproducción después de detenerTodo
+         * Espera al hilo de salida anterior para que no escriba audio viejo
+         */
+        public void rearmar() {
+            Thread hilo;
+            synchronized (this) {
+                if (!detenido)
+                    return;
+                hilo = hiloSalida;
+                hiloSalida = null;
+            }
+
+            if (hilo != null) {
+                LockSupport.unpark(hilo);
+                try {
+                    hilo.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            bufferCircular.vaciar();
+            detenido = false;
+        }
+    }
+
+    /**
+     * Histograma de valores no negativos con cubetas logarítmicas: cuatro por
+     * cada potencia de dos, con error relativo menor al 25 %. Registrar no
+     * crea objetos ni toma candados; los contadores son atómicos porque el
+     * diálogo de diagnóstico los lee desde otro hilo
+     */
+    private static final class Histograma {
+        private static final int CUBETAS = 256;
+
+        private final String clave;
+        private final String nombre;
+        private final String unidad;
+        private final AtomicLongArray cuentas = new AtomicLongArray(CUBETAS);
+        private final AtomicLong cantidad = new AtomicLong();
+        private final AtomicLong suma = new AtomicLong();
+        private final AtomicLong maximo = new AtomicLong();
+
+        Histograma(String clave, String nombre, String unidad) {
+            this.clave = clave;
+            this.nombre = nombre;
+            this.unidad = unidad;
+        }
+
+        void registrar(long valor) {
+            valor = Math.max(0, valor);
+            cuentas.incrementAndGet(cubeta(valor));
+            cantidad.incrementAndGet();
+            suma.addAndGet(valor);
+            long actual;
+            while (valor > (actual = maximo.get()) && !maximo.compareAndSet(actual, valor)) {
+                // Otro hilo cambió el máximo; se vuelve a comparar
+            }
+        }
+
+        /**
+         * Los valores 0 a 3 tienen cubeta propia; desde ahí, cuatro por potencia de dos
+         */
+        static int cubeta(long valor) {
+            if (valor < 4)
+                return (int) valor;
+            int exponente = 63 - Long.numberOfLeadingZeros(valor);
+            return 4 * (exponente - 1) + (int) ((valor >>> (exponente - 2)) & 3);
+        }
+
+        /**
+         * Mayor valor que cae en la cubeta
+         */
+        static long limiteSuperior(int cubeta) {
+            if (cubeta < 4)
+                return cubeta;
+            int desplazamiento = cubeta / 4 - 1;
+            return ((long) (4 + cubeta % 4 + 1) << desplazamiento) - 1;
+        }
+
+        /**
+         * Estimación del percentil (0 a 100) por el límite de su cubeta
+         */
+        long percentil(double porcentaje) {
+            long total = cantidad.get();
+            if (total == 0)
+                return 0;
+
+            long objetivo = Math.max(1, (long) Math.ceil(total * porcentaje / 100.0));
+            long acumulado = 0;
+            for (int i = 0; i < CUBETAS; i++) {
+                acumulado += cuentas.get(i);
+                if (acumulado >= objetivo) {
+                    return Math.min(limiteSuperior(i), maximo.get());
+                }
+            }
+            return maximo.get();
+        }
+
+        double media() {
+            long total = cantidad.get();
+            return total == 0 ? 0 : suma.get() / (double) total;
+        }
+
+        long getCantidad() {
+            return cantidad.get();
+        }
+
+        long getMaximo() {
+            return maximo.get();
+        }
+
+        long getCuenta(int cubeta) {
+            return cuentas.get(cubeta);
+        }
+
+        String getClave() {
+            return clave;
+        }
+
+        String getNombre() {
+            return nombre;
+        }
+
+        String getUnidad() {
+            return unidad;
+        }
+
+        void reiniciar() {
+            for (int i = 0; i < CUBETAS; i++) {
+                cuentas.set(i, 0);
+            }
+            cantidad.set(0);
+            suma.set(0);
+            maximo.set(0);
+        }
+    }
+
+    /**
+     * Telemetría de la reproducción en tiempo real, acumulada entre sesiones
+     * hasta reiniciarla. Los tiempos se guardan en nanosegundos o microsegundos
+     * y el llenado de los buffers en porcentaje. Si hay una grabación de JFR
+     * activa también se emiten eventos propios para cruzarlos con las pausas
+     * del recolector; sin grabación no se crea ningún evento
+     */
+    private static final class TelemetriaAudio {
+        final Histograma aperturaLinea = new Histograma("aperturaLinea", "Apertura de la linea", "ns");
+        final Histograma sintesis = new Histograma("sintesis", "Sintesis por nota o acorde", "ns");
+        final Histograma latenciaNota = new Histograma("latenciaNota", "Latencia por nota (sintesis + encolado)",
+                "ns");
+        final Histograma esperaEscritura = new Histograma("esperaEscritura", "Espera por buffer lleno", "ns");
+        final Histograma llenadoBuffer = new Histograma("llenadoBuffer", "Llenado del buffer circular", "%");
+        final Histograma llenadoLinea = new Histograma("llenadoLinea", "Llenado de la linea de audio", "%");
+        final Histograma deriva = new Histograma("deriva", "Deriva respecto al reloj de pared", "us");
+        final Histograma colaParrafo = new Histograma("colaParrafo", "Audio en cola al iniciar parrafo", "us");
+        final Histograma detencion = new Histograma("detencion", "Detencion (pulsacion a silencio)", "ns");
+        final Histograma adelanto = new Histograma("adelanto", "Adelanto del sintetizador tras cada nota", "us");
+        private final Histograma[] histogramas = { aperturaLinea, sintesis, latenciaNota, esperaEscritura,
+                llenadoBuffer, llenadoLinea, deriva, colaParrafo, adelanto, detencion };
+
+        private final AtomicLong sesiones = new AtomicLong();
+        private final AtomicLong notas = new AtomicLong();
+        private final AtomicLong subdesbordamientos = new AtomicLong();
+        private final AtomicLong muestrasRecortadas = new AtomicLong();
+        private final CacheNotas cacheNotas;
+
+        private static final jdk.jfr.EventType TIPO_NOTA = jdk.jfr.EventType.getEventType(EventoNota.class);
+        private static final jdk.jfr.EventType TIPO_APERTURA = jdk.jfr.EventType
+                .getEventType(EventoAperturaLinea.class);
+        private static final jdk.jfr.EventType TIPO_SUBDESBORDAMIENTO = jdk.jfr.EventType
+                .getEventType(EventoSubdesbordamiento.class);
+        private static final jdk.jfr.EventType TIPO_PARRAFO = jdk.jfr.EventType.getEventType(EventoParrafo.class);
+
+        @jdk.jfr.Name("proyectoautomatas.Nota")
+        @jdk.jfr.Label("Nota sintetizada")
+        @jdk.jfr.Category({ "Sistema Musical", "Audio" })
+        static final class EventoNota extends jdk.jfr.Event {
+            @jdk.jfr.Label("Frecuencia (Hz)")
+            double frecuencia;
+            @jdk.jfr.Label("Duracion (ms)")
+            int duracionMs;
+            @jdk.jfr.Label("Voces")
+            int voces;
+            @jdk.jfr.Label("Sintesis")
+            @jdk.jfr.Timespan(jdk.jfr.Timespan.NANOSECONDS)
+            long sintesisNanos;
+        }
+
+        @jdk.jfr.Name("proyectoautomatas.AperturaLinea")
+        @jdk.jfr.Label("Apertura de la linea de audio")
+        @jdk.jfr.Category({ "Sistema Musical", "Audio" })
+        static final class EventoAperturaLinea extends jdk.jfr.Event {
+        }
+
+        @jdk.jfr.Name("proyectoautomatas.Subdesbordamiento")
+        @jdk.jfr.Label("Linea de audio sin datos")
+        @jdk.jfr.Category({ "Sistema Musical", "Audio" })
+        static final class EventoSubdesbordamiento extends jdk.jfr.Event {
+            @jdk.jfr.Label("Muestra programada")
+            long muestra;
+        }
+
+        @jdk.jfr.Name("proyectoautomatas.Parrafo")
+        @jdk.jfr.Label("Inicio de parrafo")
+        @jdk.jfr.Category({ "Sistema Musical", "Audio" })
+        static final class EventoParrafo extends jdk.jfr.Event {
+            @jdk.jfr.Label("Parrafo")
+            int parrafo;
+            @jdk.jfr.Label("Audio en cola")
+            @jdk.jfr.Timespan(jdk.jfr.Timespan.MICROSECONDS)
+            long enColaMicros;
+        }
+
+        /**
+         * Evento ya iniciado, o null si ninguna grabación lo pide
+         */
+        static EventoNota eventoNota() {
+            if (!TIPO_NOTA.isEnabled())
+                return null;
+            EventoNota evento = new EventoNota();
+            evento.begin();
+            return evento;
+        }
+
+        static EventoAperturaLinea eventoAperturaLinea() {
+            if (!TIPO_APERTURA.isEnabled())
+                return null;
+            EventoAperturaLinea evento = new EventoAperturaLinea();
+            evento.begin();
+            return evento;
+        }
+
+        void registrarAperturaLinea(long nanos) {
+            sesiones.incrementAndGet();
+            aperturaLinea.registrar(nanos);
+        }
+
+        void registrarNota(long sintesisNanos, long latenciaNanos) {
+            notas.incrementAndGet();
+            sintesis.registrar(sintesisNanos);
+            latenciaNota.registrar(latenciaNanos);
+        }
+
+        /**
+         * Muestras que se salieron de la escala al mezclar y se recortaron
+         */
+        void registrarRecortes(long muestras) {
+            if (muestras > 0) {
+                muestrasRecortadas.addAndGet(muestras);
+            }
+        }
+
+        void registrarEspera(long nanos) {
+            esperaEscritura.registrar(nanos);
+        }
+
+        void registrarLlenado(int porcentajeBuffer, int porcentajeLinea) {
+            llenadoBuffer.registrar(porcentajeBuffer);
+            llenadoLinea.registrar(porcentajeLinea);
+        }
+
+        void registrarDeriva(long microsegundos) {
+            deriva.registrar(microsegundos);
+        }
+
+        void registrarSubdesbordamiento(long muestra) {
+            subdesbordamientos.incrementAndGet();
+            if (TIPO_SUBDESBORDAMIENTO.isEnabled()) {
+                EventoSubdesbordamiento evento = new EventoSubdesbordamiento();
+                evento.muestra = muestra;
+                evento.commit();
+            }
+        }
+
+        void registrarParrafo(int parrafo, long enColaMicros) {
+            colaParrafo.registrar(enColaMicros);
+            if (TIPO_PARRAFO.isEnabled()) {
+                EventoParrafo evento = new EventoParrafo();
+                evento.parrafo = parrafo;
+                evento.enColaMicros = enColaMicros;
+                evento.commit();
+            }
+        }
+
+        /**
+         * Audio sintetizado que aún no suena; si baja a cero la salida se queda sin datos
+         */
+        void registrarAdelanto(long microsegundos) {
+            adelanto.registrar(microsegundos);
+        }
+
+        void registrarDetencion(long nanos) {
+            detencion.registrar(nanos);
+        }
+
+        TelemetriaAudio(CacheNotas cacheNotas) {
+            this.cacheNotas = cacheNotas;
+        }
+
+        void reiniciar() {
+            for (Histograma histograma : histogramas) {
+                histograma.reiniciar();
+            }
+            sesiones.set(0);
+            notas.set(0);
+            subdesbordamientos.set(0);
+            muestrasRecortadas.set(0);
+            cacheNotas.reiniciarContadores();
+        }
+
+        Histograma[] getHistogramas() {
+            return histogramas;
+        }
+
+        long getSesiones() {
+            return sesiones.get();
+        }
+
+        long getNotas() {
+            return notas.get();
+        }
+
+        long getSubdesbordamientos() {
+            return subdesbordamientos.get();
+        }
+
+        long getMuestrasRecortadas() {
+            return muestrasRecortadas.get();
+        }
+
+        CacheNotas getCacheNotas() {
+            return cacheNotas;
+        }
+
+        /**
+         * Tabla para el diálogo de diagnóstico; los nanosegundos se muestran en microsegundos
+         */
+        String resumen() {
+            StringBuilder texto = new StringBuilder();
+            texto.append(String.format("Sesiones: %d   Notas: %d   Subdesbordamientos: %d   Muestras recortadas: %d%n%n",
+                    getSesiones(), getNotas(), getSubdesbordamientos(), getMuestrasRecortadas()));
+            texto.append(cacheNotas).append(String.format("%n%n"));
+            texto.append(String.format("%-46s %9s %10s %10s %10s %10s %10s%n", "Medida", "Cantidad", "Media",
+                    "p50", "p90", "p99", "Maximo"));
+            for (Histograma histograma : histogramas) {
+                boolean nanos = histograma.getUnidad().equals("ns");
+                double escala = nanos ? 1000.0 : 1.0;
+                String unidad = nanos ? "us" : histograma.getUnidad();
+                texto.append(String.format("%-46s %9d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                        histograma.getNombre() + " (" + unidad + ")", histograma.getCantidad(),
+                        histograma.media() / escala, histograma.percentil(50) / escala,
+                        histograma.percentil(90) / escala, histograma.percentil(99) / escala,
+                        histograma.getMaximo() / escala));
+            }
+            return texto.toString();
+        }
+    }
+
+    /**
+     * Línea de tiempo continua medida en muestras
+     * Cada evento empieza exactamente donde terminó el anterior; la posición se
+     * calcula desde el tiempo acumulado y no sumando duraciones ya redondeadas,
+     * así el error nunca pasa de media muestra sin importar la longitud
+     */
+    private static class LineaTiempo {
+        private long frecuenciaMuestreo;
+        private long microsegundos;
+        private long muestraActual;
+
+        public LineaTiempo(int frecuenciaMuestreo) {
+            this.frecuenciaMuestreo = frecuenciaMuestreo;
+        }
+
+        /**
+         * Coloca un evento de la duración indicada y devuelve cuántas muestras ocupa
+         */
+        public long avanzar(int duracionMs) {
+            return avanzarMicrosegundos(duracionMs * 1000L);
+        }
+
+        public long avanzarMicrosegundos(long duracion) {
+            microsegundos += duracion;
+            long fin = muestraEn(microsegundos, frecuenciaMuestreo);
+            long muestras = fin - muestraActual;
+            muestraActual = fin;
+            return muestras;
+        }
+
+        /**
+         * Muestra más cercana al instante indicado
+         */
+        static long muestraEn(long microsegundos, long frecuenciaMuestreo) {
+            return (microsegundos * frecuenciaMuestreo + 500_000) / 1_000_000;
+        }
+
+        public long getMuestraActual() {
+            return muestraActual;
+        }
+
+        public long getMicrosegundos() {
+            return microsegundos;
+        }
+
+        public void reiniciar() {
+            microsegundos = 0;
+            muestraActual = 0;
+        }
+
+        /**
+         * Vuelve al inicio con otra frecuencia de muestreo
+         */
+        public void reiniciar(int frecuenciaMuestreo) {
+            this.frecuenciaMuestreo = frecuenciaMuestreo;
+            reiniciar();
+        }
+    }
+
+    /**
+     * Mezclador polifónico: suma varias voces en un solo flujo en el formato
+     * de salida. Cada voz lleva su propio oscilador, fase y envolvente,
+     * guardados en arreglos paralelos para no crear objetos al mezclar. La
+     * ganancia se reparte como 1/√n según las voces activas para dejar margen;
+     * baja de inmediato al entrar voces y sube con una rampa por bloque al
+     * salir. Lo que aun así excede la escala completa se recorta y se cuenta.
+     * Una nota sola es una mezcla de una voz
+     */
+    private static class MezcladorVoces {
+        static final int MAXIMO_VOCES = 64;
+        static final int MUESTRAS_BLOQUE = 512; // ~12 ms a 44.1 kHz
+        private static final float AMPLITUD = 16000f / 32768f; // 16000 en 16 bits, con margen bajo la escala completa
+
+        private final float[][] tablas = new float[MAXIMO_VOCES][];
+        private final float[][] rampas = new float[MAXIMO_VOCES][];
+        private final int[] fases = new int[MAXIMO_VOCES];
+        private final int[] incrementos = new int[MAXIMO_VOCES];
+        private final int[] posiciones = new int[MAXIMO_VOCES];
+        private final int[] duraciones = new int[MAXIMO_VOCES];
+        private float[] acumulador = new float[MUESTRAS_BLOQUE];
+        private FormatoAudio formato = FormatoAudio.ESTANDAR;
+        private int voces;
+        private float ganancia = 1f;
+        private long muestrasRecortadas;
+
+        /**
+         * Agrega una voz que empieza en la siguiente muestra mezclada
+         * Devuelve false si ya no quedan voces libres
+         */
+        public boolean agregarVoz(FormaOnda forma, double frecuencia, int duracionMs) {
+            if (voces == MAXIMO_VOCES)
+                return false;
+
+            int voz = voces++;
+            tablas[voz] = OsciladorTabla.tablaPara(forma, frecuencia);
+            rampas[voz] = Envolvente.rampa(formato.muestrasFade(duracionMs));
+            fases[voz] = 0;
+            incrementos[voz] = OsciladorTabla.incrementoFase(frecuencia, formato.frecuenciaMuestreo());
+            posiciones[voz] = 0;
+            duraciones[voz] = formato.muestrasPara(duracionMs);
+
+            float objetivo = gananciaPara(voces);
+            if (objetivo < ganancia) {
+                ganancia = objetivo; // La voz nueva entra desde cero, no hay salto audible
+            }
+            return true;
+        }
+
+        /**
+         * Cambia la frecuencia de muestreo y la profundidad de las voces siguientes
+         */
+        public void setFormato(FormatoAudio formato) {
+            this.formato = formato;
+        }
+
+        /**
+         * Mezcla las voces activas en destino con la profundidad del formato
+         * Sin voces activas escribe silencio
+         */
+        public void mezclar(byte[] destino, int desde, int muestras) {
+            if (acumulador.length < muestras) {
+                acumulador = new float[muestras];
+            }
+            Arrays.fill(acumulador, 0, muestras, 0f);
+            for (int voz = 0; voz < voces; voz++) {
+                sumarVoz(voz, muestras);
+            }
+
+            float objetivo = gananciaPara(voces);
+            float paso = (objetivo - ganancia) / muestras;
+            for (int i = 0; i < muestras; i++) {
+                ganancia += paso;
+                acumulador[i] = acumulador[i] * ganancia * AMPLITUD;
+            }
+            ganancia = objetivo;
+            muestrasRecortadas += formato.profundidad().convertir(acumulador, muestras, destino, desde);
+            retirarTerminadas();
+        }
+
+        /**
+         * Suma una voz al acumulador con la misma envolvente que una nota sola
+         */
+        private void sumarVoz(int voz, int muestras) {
+            float[] tabla = tablas[voz];
+            float[] rampa = rampas[voz];
+            int fade = rampa.length - 1;
+            int total = duraciones[voz];
+            int inicioRelajacion = total - fade;
+            int incremento = incrementos[voz];
+            int fase = fases[voz];
+            int posicion = posiciones[voz];
+
+            int cantidad = Math.min(muestras, total - posicion);
+            for (int i = 0; i < cantidad; i++) {
+                float envolvente;
+                if (posicion < fade) {
+                    envolvente = rampa[posicion];
+                } else if (posicion > inicioRelajacion) {
+                    envolvente = rampa[total - posicion];
+                } else {
+                    envolvente = 1f;
+                }
+                acumulador[i] += envolvente * OsciladorTabla.muestra(tabla, fase);
+                fase += incremento;
+                posicion++;
+            }
+
+            fases[voz] = fase;
+            posiciones[voz] = posicion;
+        }
+
+        /**
+         * Quita las voces que terminaron moviendo la última a su lugar
+         */
+        private void retirarTerminadas() {
+            for (int voz = voces - 1; voz >= 0; voz--) {
+                if (posiciones[voz] >= duraciones[voz]) {
+                    int ultima = --voces;
+                    tablas[voz] = tablas[ultima];
+                    rampas[voz] = rampas[ultima];
+                    fases[voz] = fases[ultima];
+                    incrementos[voz] = incrementos[ultima];
+                    posiciones[voz] = posiciones[ultima];
+                    duraciones[voz] = duraciones[ultima];
+                }
+            }
+        }
+
+        private static float gananciaPara(int voces) {
+            return voces > 1 ? (float) (1 / Math.sqrt(voces)) : 1f;
+        }
+
+        public void limpiar() {
+            voces = 0;
+            ganancia = 1f;
+        }
+
+        /**
+         * Una nota completa de una sola voz en un arreglo nuevo, para el caché de notas
+         * Con una voz la ganancia no cambia, así que sale igual que mezclada por bloques
+         */
+        public byte[] sintetizarVoz(FormaOnda forma, double frecuencia, int duracionMs) {
+            int muestras = formato.muestrasPara(duracionMs);
+            int bytesMuestra = formato.bytesPorMuestra();
+            byte[] pcm = new byte[muestras * bytesMuestra];
+            limpiar();
+            agregarVoz(forma, frecuencia, duracionMs);
+            for (int hecho = 0; hecho < muestras; hecho += MUESTRAS_BLOQUE) {
+                mezclar(pcm, hecho * bytesMuestra, Math.min(MUESTRAS_BLOQUE, muestras - hecho));
+            }
+            return pcm;
+        }
+
+        public long getMuestrasRecortadas() {
+            return muestrasRecortadas;
+        }
+    }
+
+    /**
+     * Resolución de cada muestra en la salida y cómo se codifica
+     * La conversión recibe muestras normalizadas (±1 es la escala completa),
+     * recorta lo que se sale del rango y escribe little endian con vistas de
+     * arreglo en vez de separar cada muestra en bytes a mano
+     */
+    private enum Profundidad {
+        PCM_16("16 bits", 2),
+        PCM_24("24 bits", 3),
+        FLOTANTE_32("32 bits flotante", 4);
+
+        static final int MAXIMO_BYTES = 4;
+        private static final VarHandle CORTO = MethodHandles.byteArrayViewVarHandle(short[].class,
+                ByteOrder.LITTLE_ENDIAN);
+        private static final VarHandle FLOTANTE = MethodHandles.byteArrayViewVarHandle(float[].class,
+                ByteOrder.LITTLE_ENDIAN);
+        private static final int MAXIMO_24 = (1 << 23) - 1;
+
+        private final String nombre;
+        private final int bytes;
+
+        Profundidad(String nombre, int bytes) {
+            this.nombre = nombre;
+            this.bytes = bytes;
+        }
+
+        int getBytes() {
+            return bytes;
+        }
+
+        int getBits() {
+            return bytes * 8;
+        }
+
+        /**
+         * Escribe cantidad muestras de origen en destino y devuelve cuántas se recortaron
+         */
+        int convertir(float[] origen, int cantidad, byte[] destino, int desde) {
+            int recortadas = 0;
+            int posicion = desde;
+            switch (this) {
+                case PCM_16:
+                    for (int i = 0; i < cantidad; i++, posicion += 2) {
+                        int muestra = (int) (origen[i] * 32768f);
+                        if (muestra > Short.MAX_VALUE) {
+                            muestra = Short.MAX_VALUE;
+                            recortadas++;
+                        } else if (muestra < Short.MIN_VALUE) {
+                            muestra = Short.MIN_VALUE;
+                            recortadas++;
+                        }
+                        CORTO.set(destino, posicion, (short) muestra);
+                    }
+                    break;
+                case PCM_24:
+                    // Los dos bytes bajos van como un short y el alto aparte
+                    for (int i = 0; i < cantidad; i++, posicion += 3) {
+                        int muestra = (int) (origen[i] * 8388608f);
+                        if (muestra > MAXIMO_24) {
+                            muestra = MAXIMO_24;
+                            recortadas++;
+                        } else if (muestra < -MAXIMO_24 - 1) {
+                            muestra = -MAXIMO_24 - 1;
+                            recortadas++;
+                        }
+                        CORTO.set(destino, posicion, (short) muestra);
+                        destino[posicion + 2] = (byte) (muestra >> 16);
+                    }
+                    break;
+                case FLOTANTE_32:
+                    for (int i = 0; i < cantidad; i++, posicion += 4) {
+                        float muestra = origen[i];
+                        if (muestra > 1f) {
+                            muestra = 1f;
+                            recortadas++;
+                        } else if (muestra < -1f) {
+                            muestra = -1f;
+                            recortadas++;
+                        }
+                        FLOTANTE.set(destino, posicion, muestra);
+                    }
+                    break;
+            }
+            return recortadas;
+        }
+
+        /**
+         * Acepta 16, 24, 32 o "flotante"
+         */
+        static Profundidad leer(String texto) {
+            switch (texto.toLowerCase()) {
+                case "16":
+                    return PCM_16;
+                case "24":
+                    return PCM_24;
+                case "32":
+                case "flotante":
+                case "float":
+                    return FLOTANTE_32;
+                default:
+                    throw new IllegalArgumentException("Profundidad no soportada: " + texto);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return nombre;
+        }
+    }
+
+    /**
+     * Formato de la salida de audio, siempre mono: frecuencia de muestreo y profundidad
+     */
+    private record FormatoAudio(int frecuenciaMuestreo, Profundidad profundidad) {
+        static final int[] FRECUENCIAS = { 44100, 48000, 96000 };
+        static final FormatoAudio ESTANDAR = new FormatoAudio(44100, Profundidad.PCM_16);
+
+        /**
+         * Todas las combinaciones de frecuencia y profundidad soportadas
+         */
+        static FormatoAudio[] disponibles() {
+            Profundidad[] profundidades = Profundidad.values();
+            FormatoAudio[] formatos = new FormatoAudio[FRECUENCIAS.length * profundidades.length];
+            int i = 0;
+            for (int frecuencia : FRECUENCIAS) {
+                for (Profundidad profundidad : profundidades) {
+                    formatos[i++] = new FormatoAudio(frecuencia, profundidad);
+                }
+            }
+            return formatos;
+        }
+
+        /**
+         * Formato a partir de la frecuencia en Hz y la profundidad en bits
+         */
+        static FormatoAudio leer(String frecuencia, String bits) {
+            int hercios = Integer.parseInt(frecuencia);
+            if (Arrays.stream(FRECUENCIAS).noneMatch(f -> f == hercios)) {
+                throw new IllegalArgumentException("Frecuencia de muestreo no soportada: " + frecuencia);
+            }
+            return new FormatoAudio(hercios, Profundidad.leer(bits));
+        }
+
+        int bytesPorMuestra() {
+            return profundidad.getBytes();
+        }
+
+        AudioFormat aAudioFormat() {
+            AudioFormat.Encoding codificacion = profundidad == Profundidad.FLOTANTE_32
+                    ? AudioFormat.Encoding.PCM_FLOAT
+                    : AudioFormat.Encoding.PCM_SIGNED;
+            return new AudioFormat(codificacion, frecuenciaMuestreo, profundidad.getBits(), 1, bytesPorMuestra(),
+                    frecuenciaMuestreo, false);
+        }
+
+        int muestrasPara(int duracionMs) {
+            return (int) (frecuenciaMuestreo * duracionMs / 1000.0);
+        }
+
+        /**
+         * Bytes de audio que ocupan los milisegundos indicados, en muestras completas
+         */
+        int bytesPara(int milisegundos) {
+            return muestrasPara(milisegundos) * bytesPorMuestra();
+        }
+
+        /**
+         * Duración de las rampas de entrada y salida: 10% de la nota, máximo 50 ms
+         */
+        int muestrasFade(int duracionMs) {
+            return (int) (frecuenciaMuestreo * Math.min(0.05, duracionMs / 1000.0 * 0.1));
+        }
+
+        @Override
+        public String toString() {
+            String kilohercios = frecuenciaMuestreo % 1000 == 0
+                    ? String.valueOf(frecuenciaMuestreo / 1000)
+                    : String.format(Locale.ROOT, "%.1f", frecuenciaMuestreo / 1000.0);
+            return kilohercios + " kHz, " + profundidad;
+        }
+    }
+
+    /**
+     * Formas de onda que puede producir el oscilador
+     */
+    private enum FormaOnda {
+        SENO("Senoidal"),
+        CUADRADA("Cuadrada"),
+        TRIANGULAR("Triangular"),
+        SIERRA("Diente de sierra");
+
+        private final String nombre;
+
+        FormaOnda(String nombre) {
+            this.nombre = nombre;
+        }
+
+        @Override
+        public String toString() {
+            return nombre;
+        }
+    }
+
+    /**
+     * Oscilador por tabla de ondas con acumulador de fase de 32 bits
+     * Las tablas se precalculan una vez, limitadas en banda por octava para que
+     * las formas con armónicos no generen aliasing en las notas agudas. Se
+     * limitan para la frecuencia de muestreo más baja, así sirven para todas
+     */
+    private static class OsciladorTabla {
+        private static final int BITS_TABLA = 11;
+        private static final int TAMANO_TABLA = 1 << BITS_TABLA;
+        private static final int DESPLAZAMIENTO_FASE = 32 - BITS_TABLA;
+        private static final int MASCARA_FRACCION = (1 << DESPLAZAMIENTO_FASE) - 1;
+        private static final float ESCALA_FRACCION = 1f / (1 << DESPLAZAMIENTO_FASE);
+        private static final double FRECUENCIA_BASE_BANDAS = 16.352; // DO0
+        private static final int NUMERO_BANDAS = 11;
+
+        // Tabla de seno sin muestra de guarda, usada para sumar armónicos por índice
+        private static final float[] SENO_BASE = new float[TAMANO_TABLA];
+        // [forma][banda] -> tabla con una muestra de guarda para interpolar
+        private static final float[][][] TABLAS = new float[FormaOnda.values().length][][];
+
+        static {
+            for (int i = 0; i < TAMANO_TABLA; i++) {
+                SENO_BASE[i] = (float) Math.sin(2 * Math.PI * i / TAMANO_TABLA);
+            }
+            for (FormaOnda forma : FormaOnda.values()) {
+                float[][] bandas = new float[NUMERO_BANDAS][];
+                for (int banda = 0; banda < NUMERO_BANDAS; banda++) {
+                    bandas[banda] = forma == FormaOnda.SENO && banda > 0
+                            ? bandas[0]
+                            : construirTabla(forma, banda);
+                }
+                TABLAS[forma.ordinal()] = bandas;
+            }
+        }
+
+        /**
+         * Suma la serie de Fourier de la forma hasta el último armónico que cabe
+         * bajo Nyquist para la nota más aguda de la banda
+         */
+        private static float[] construirTabla(FormaOnda forma, int banda) {
+            double frecuenciaMaxima = FRECUENCIA_BASE_BANDAS * (2 << banda);
+            int armonicos = (int) Math.min(TAMANO_TABLA / 2 - 1,
+                    FormatoAudio.FRECUENCIAS[0] / 2.0 / frecuenciaMaxima);
+            armonicos = Math.max(1, armonicos);
+
+            double[] acumulado = new double[TAMANO_TABLA];
+            for (int n = 1; n <= armonicos; n++) {
+                double peso = pesoArmonico(forma, n);
+                if (peso == 0)
+                    continue;
+                for (int i = 0; i < TAMANO_TABLA; i++) {
+                    // sin(n*x) se lee de la tabla base con el índice multiplicado
+                    acumulado[i] += peso * SENO_BASE[(n * i) & (TAMANO_TABLA - 1)];
+                }
+            }
+
+            double pico = 0;
+            for (double valor : acumulado) {
+                pico = Math.max(pico, Math.abs(valor));
+            }
+
+            float[] tabla = new float[TAMANO_TABLA + 1];
+            for (int i = 0; i < TAMANO_TABLA; i++) {
+                tabla[i] = (float) (acumulado[i] / pico);
+            }
+            tabla[TAMANO_TABLA] = tabla[0];
+            return tabla;
+        }
+
+        private static double pesoArmonico(FormaOnda forma, int n) {
+            switch (forma) {
+                case SENO:
+                    return n == 1 ? 1 : 0;
+                case CUADRADA:
+                    return n % 2 == 1 ? 1.0 / n : 0;
+                case TRIANGULAR:
+                    return n % 2 == 1 ? ((n / 2) % 2 == 0 ? 1.0 : -1.0) / ((double) n * n) : 0;
+                case SIERRA:
+                    return (n % 2 == 1 ? 1.0 : -1.0) / n;
+                default:
+                    return 0;
+            }
+        }
+
+        static float[] tablaPara(FormaOnda forma, double frecuencia) {
+            int banda = Math.getExponent(frecuencia / FRECUENCIA_BASE_BANDAS);
+            banda = Math.max(0, Math.min(NUMERO_BANDAS - 1, banda));
+            return TABLAS[forma.ordinal()][banda];
+        }
+
+        /**
+         * Incremento de fase por muestra; una vuelta completa equivale a 2^32
+         */
+        static int incrementoFase(double frecuencia, int frecuenciaMuestreo) {
+            return (int) (long) (frecuencia / frecuenciaMuestreo * 4294967296.0);
+        }
+
+        /**
+         * Lee la tabla en la fase dada con interpolación lineal
+         */
+        static float muestra(float[] tabla, int fase) {
+            int indice = fase >>> DESPLAZAMIENTO_FASE;
+            float fraccion = (fase & MASCARA_FRACCION) * ESCALA_FRACCION;
+            float actual = tabla[indice];
+            return actual + (tabla[indice + 1] - actual) * fraccion;
+        }
+    }
+
+    /**
+     * Curvas de envolvente precalculadas por longitud de rampa
+     * Se comparten entre notas de la misma duración
+     */
+    private static class Envolvente {
+        private static final Map<Integer, float[]> RAMPAS = new java.util.concurrent.ConcurrentHashMap<>();
+
+        /**
+         * Rampa lineal de 0 a 1 con fade+1 puntos; la bajada la recorre al revés
+         */
+        static float[] rampa(int muestrasFade) {
+            return RAMPAS.computeIfAbsent(muestrasFade, fade -> {
+                float[] curva = new float[fade + 1];
+                for (int i = 0; i <= fade; i++) {
+                    curva[i] = fade == 0 ? 1f : (float) i / fade;
+                }
+                return curva;
+            });
+        }
+    }
+
+    /**
+     * Identifica una nota ya sintetizada por frecuencia, duración, timbre y formato
+     */
+    private record ClaveNota(double frecuencia, int duracionMs, FormaOnda forma, FormatoAudio formato) {
+    }
+
+    /**
+     * Caché LRU de notas renderizadas, limitado por el total de bytes guardados
+     * Evita sintetizar de nuevo las notas que se repiten en la partitura
+     */
+    private static class CacheNotas {
+        static final long CAPACIDAD_POR_DEFECTO = 8L * 1024 * 1024;
+
+        private final long capacidadBytes;
+        private final LinkedHashMap<ClaveNota, byte[]> entradas = new LinkedHashMap<>(64, 0.75f, true);
+        private long bytesOcupados;
+        private long aciertos;
+        private long fallos;
+        private long desalojos;
+
+        public CacheNotas(long capacidadBytes) {
+            this.capacidadBytes = capacidadBytes;
+        }
+
+        /**
+         * Una nota solo se guarda si ocupa como máximo un octavo del caché,
+         * para que una nota muy larga no desaloje todas las demás
+         */
+        public boolean admite(long bytes) {
+            return bytes <= capacidadBytes / 8;
+        }
+
+        public synchronized byte[] obtener(ClaveNota clave) {
+            byte[] pcm = entradas.get(clave);
+            if (pcm == null) {
+                fallos++;
+            } else {
+                aciertos++;
+            }
+            return pcm;
+        }
+
+        public synchronized void guardar(ClaveNota clave, byte[] pcm) {
+            if (!admite(pcm.length))
+                return;
+
+            byte[] anterior = entradas.put(clave, pcm);
+            if (anterior != null) {
+                bytesOcupados -= anterior.length;
+            }
+            bytesOcupados += pcm.length;
+
+            // Desalojar las menos usadas hasta volver al límite
+            Iterator<byte[]> iterador = entradas.values().iterator();
+            while (bytesOcupados > capacidadBytes && iterador.hasNext()) {
+                bytesOcupados -= iterador.next().length;
+                iterador.remove();
+                desalojos++;
+            }
+        }
+
+        public synchronized long getAciertos() {
+            return aciertos;
+        }
+
+        public synchronized long getFallos() {
+            return fallos;
+        }
+
+        public synchronized long getDesalojos() {
+            return desalojos;
+        }
+
+        public synchronized long getBytesOcupados() {
+            return bytesOcupados;
+        }
+
+        public synchronized int getEntradas() {
+            return entradas.size();
+        }
+
+        /**
+         * Pone a cero aciertos, fallos y desalojos sin vaciar las entradas
+         */
+        public synchronized void reiniciarContadores() {
+            aciertos = 0;
+            fallos = 0;
+            desalojos = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long consultas = aciertos + fallos;
+            double tasa = consultas == 0 ? 0 : aciertos * 100.0 / consultas;
+            return String.format("Cache de notas: %d aciertos, %d fallos (%.1f%%), %d entradas, %d KB",
+                    aciertos, fallos, tasa, entradas.size(), bytesOcupados / 1024);
+        }
+    }
+
+    /**
+     * Renderiza una partitura analizada a PCM sin tarjeta de sonido
+     * Escribe por bloques de tamaño fijo, así la memoria no depende de la
+     * longitud de la partitura, y las pausas se escriben como silencio
+     */
+    private static class RenderizadorOffline implements RecorridoPartitura.Receptor {
+        private static final int TAMANO_BLOQUE = 12288; // Múltiplo de 2, 3 y 4 bytes por muestra
+
+        private final GramaticaMusical gramatica;
+        private final CacheNotas cacheNotas;
+        private final byte[] bloque = new byte[TAMANO_BLOQUE];
+        private final LineaTiempo lineaTiempo = new LineaTiempo(FormatoAudio.ESTANDAR.frecuenciaMuestreo());
+        private final MezcladorVoces mezclador = new MezcladorVoces();
+        private FormaOnda formaOnda = FormaOnda.SENO;
+        private FormatoAudio formato = FormatoAudio.ESTANDAR;
+        private int ocupados;
+        private OutputStream salida;
+
+        public RenderizadorOffline(GramaticaMusical gramatica) {
+            this(gramatica, new CacheNotas(CacheNotas.CAPACIDAD_POR_DEFECTO));
+        }
+
+        public RenderizadorOffline(GramaticaMusical gramatica, CacheNotas cacheNotas) {
+            this.gramatica = gramatica;
+            this.cacheNotas = cacheNotas;
+        }
+
+        public void setFormaOnda(FormaOnda formaOnda) {
+            this.formaOnda = formaOnda;
+        }
+
+        public void setFormato(FormatoAudio formato) {
+            this.formato = formato;
+            mezclador.setFormato(formato);
+        }
+
+        public FormatoAudio getFormato() {
+            return formato;
+        }
+
+        /**
+         * Genera un archivo WAV con la partitura completa
+         */
+        public void renderizarWav(ResultadoAnalisis resultado, File archivo) throws IOException {
+            renderizarWav(resultado, archivo, calcularMuestrasTotales(resultado, formato));
+        }
+
+        /**
+         * Igual que el anterior, con las muestras ya contadas; si no caben en un
+         * WAV falla antes de crear el archivo
+         */
+        public void renderizarWav(ResultadoAnalisis resultado, File archivo, long muestras) throws IOException {
+            comprobarTamanoWav(muestras);
+            try (OutputStream flujo = new FileOutputStream(archivo)) {
+                renderizarWav(resultado, flujo, muestras);
+            }
+        }
+
+        /**
+         * Escribe la cabecera WAV seguida del PCM en el flujo indicado
+         * La longitud se calcula antes de sintetizar para no tener que volver atrás
+         */
+        public void renderizarWav(ResultadoAnalisis resultado, OutputStream flujo) throws IOException {
+            renderizarWav(resultado, flujo, calcularMuestrasTotales(resultado, formato));
+        }
+
+        /**
+         * Igual que el anterior, con las muestras ya contadas por calcularMuestrasTotales
+         */
+        public void renderizarWav(ResultadoAnalisis resultado, OutputStream flujo, long muestras) throws IOException {
+            comprobarTamanoWav(muestras);
+            escribirCabeceraWav(flujo, muestras * formato.bytesPorMuestra());
+            renderizarPcm(resultado, flujo);
+        }
+
+        /**
+         * Tamaño del archivo WAV completo, cabecera incluida, para las muestras dadas
+         */
+        public long bytesWav(long muestras) {
+            return 8 + tamanoCabeceraWav() + muestras * formato.bytesPorMuestra();
+        }
+
+        /**
+         * Falla si las muestras no caben en un WAV; -1 es lo que devuelve
+         * calcularMuestrasTotales cuando la partitura pasa del límite
+         */
+        void comprobarTamanoWav(long muestras) throws IOException {
+            if (muestras < 0 || muestras * formato.bytesPorMuestra() > 0xFFFFFFFFL - tamanoCabeceraWav()) {
+                throw new IOException("La partitura excede el tamaño máximo de un archivo WAV");
+            }
+        }
+
+        /**
+         * Bytes de la cabecera que siguen al tamaño del bloque RIFF, sin el audio
+         */
+        private int tamanoCabeceraWav() {
+            boolean flotante = formato.profundidad() == Profundidad.FLOTANTE_32;
+            return 4 + 8 + (flotante ? 18 : 16) + (flotante ? 12 : 0) + 8;
+        }
+
+        /**
+         * Escribe solo las muestras crudas (mono, little endian) en el formato elegido
+         */
+        public void renderizarPcm(ResultadoAnalisis resultado, OutputStream flujo) throws IOException {
+            this.salida = flujo;
+            this.ocupados = 0;
+            lineaTiempo.reiniciar(formato.frecuenciaMuestreo());
+            try {
+                new RecorridoPartitura(this).recorrer(resultado.getPartitura());
+                vaciarBloque();
+                flujo.flush();
+            } finally {
+                this.salida = null;
+            }
+        }
+
+        /**
+         * Cuenta las muestras que ocupará la partitura con la misma temporización
+         * que la reproducción en vivo; recorre las repeticiones sin sintetizar
+         * Devuelve -1 si la partitura expandida no cabe en un WAV
+         */
+        public static long calcularMuestrasTotales(ResultadoAnalisis resultado, FormatoAudio formato) {
+            return calcularMuestrasTotales(resultado, formato, 0xFFFFFFFFL / formato.bytesPorMuestra());
+        }
+
+        /**
+         * Como el anterior, pero devuelve -1 si la partitura expandida pasa del
+         * máximo de muestras. Los pasos del recorrido también se limitan a ese
+         * máximo, así repeticiones anidadas sin notas no lo dejan girando
+         */
+        public static long calcularMuestrasTotales(ResultadoAnalisis resultado, FormatoAudio formato, long maximo) {
+            long muestras = contarMuestras(resultado, formato, maximo, maximo);
+            return muestras > maximo ? -1 : muestras;
+        }
+
+        /**
+         * Recorre sin sintetizar hasta pasar el máximo de muestras o de pasos;
+         * devuelve -1 si se agotaron los pasos
+         */
+        private static long contarMuestras(ResultadoAnalisis resultado, FormatoAudio formato, long maximoMuestras,
+                long maximoPasos) {
+            LineaTiempo conteo = new LineaTiempo(formato.frecuenciaMuestreo());
+            long[] pasos = new long[1];
+            RecorridoPartitura.Receptor contador = new RecorridoPartitura.Receptor() {
+                @Override
+                public void sonar(int[] notas, int cantidad, long microsegundos) {
+                    conteo.avanzarMicrosegundos(microsegundos);
+                }
+
+                @Override
+                public void silencio(long microsegundos) {
+                    conteo.avanzarMicrosegundos(microsegundos);
+                }
+
+                @Override
+                public boolean detenido() {
+                    return conteo.getMuestraActual() > maximoMuestras || ++pasos[0] > maximoPasos;
+                }
+            };
+            try {
+                new RecorridoPartitura(contador).recorrer(resultado.getPartitura());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // El contador no hace E/S
+            }
+            return pasos[0] > maximoPasos ? -1 : conteo.getMuestraActual();
+        }
+
+        @Override
+        public void sonar(int[] notas, int cantidad, long microsegundos) throws IOException {
+            if (cantidad == 1 && escribirNotaCacheada(gramatica.obtenerFrecuencia(notas[0]), microsegundos))
+                return;
+            escribirAcorde(notas, cantidad, microsegundos);
+        }
+
+        @Override
+        public void silencio(long microsegundos) throws IOException {
+            escribirCeros(lineaTiempo.avanzarMicrosegundos(microsegundos) * formato.bytesPorMuestra());
+        }
+
+        /**
+         * Las notas que caben en el caché se sintetizan una vez y luego se copian
+         * Devuelve false, sin avanzar la línea de tiempo, si la nota no cabe
+         */
+        private boolean escribirNotaCacheada(double frecuencia, long microsegundos) throws IOException {
+            int duracionMs = GeneradorSonido.milisegundos(microsegundos);
+            int bytesMuestra = formato.bytesPorMuestra();
+            int muestrasNota = formato.muestrasPara(duracionMs);
+            if (!cacheNotas.admite(muestrasNota * (long) bytesMuestra))
+                return false;
+
+            ClaveNota clave = new ClaveNota(frecuencia, duracionMs, formaOnda, formato);
+            byte[] pcm = cacheNotas.obtener(clave);
+            if (pcm == null) {
+                pcm = mezclador.sintetizarVoz(formaOnda, frecuencia, duracionMs);
+                cacheNotas.guardar(clave, pcm);
+            }
+
+            long muestrasEvento = lineaTiempo.avanzarMicrosegundos(microsegundos);
+            int muestrasTotal = (int) Math.min(muestrasNota, muestrasEvento);
+            escribirBytes(pcm, muestrasTotal * bytesMuestra);
+            escribirCeros((muestrasEvento - muestrasTotal) * bytesMuestra);
+            return true;
+        }
+
+        /**
+         * Mezcla las voces directamente en el bloque de salida; también sirve
+         * para las notas sueltas demasiado largas para el caché
+         */
+        private void escribirAcorde(int[] notas, int voces, long microsegundos) throws IOException {
+            int duracionMs = GeneradorSonido.milisegundos(microsegundos);
+            int bytesMuestra = formato.bytesPorMuestra();
+            mezclador.limpiar();
+            for (int i = 0; i < voces; i++) {
+                mezclador.agregarVoz(formaOnda, gramatica.obtenerFrecuencia(notas[i]), duracionMs);
+            }
+
+            long pendientes = lineaTiempo.avanzarMicrosegundos(microsegundos);
+            while (pendientes > 0) {
+                int cabida = Math.min((bloque.length - ocupados) / bytesMuestra, MezcladorVoces.MUESTRAS_BLOQUE);
+                int tramo = (int) Math.min(pendientes, cabida);
+                mezclador.mezclar(bloque, ocupados, tramo);
+                ocupados += tramo * bytesMuestra;
+                pendientes -= tramo;
+                if (ocupados == bloque.length) {
+                    vaciarBloque();
+                }
+            }
+        }
+
+        private void escribirBytes(byte[] datos, int longitud) throws IOException {
+            int desde = 0;
+            while (desde < longitud) {
+                int tramo = Math.min(longitud - desde, bloque.length - ocupados);
+                System.arraycopy(datos, desde, bloque, ocupados, tramo);
+                ocupados += tramo;
+                desde += tramo;
+                if (ocupados == bloque.length) {
+                    vaciarBloque();
+                }
+            }
+        }
+
+        private void escribirCeros(long pendientes) throws IOException {
+            while (pendientes > 0) {
+                int tramo = (int) Math.min(pendientes, bloque.length - ocupados);
+                Arrays.fill(bloque, ocupados, ocupados + tramo, (byte) 0);
+                ocupados += tramo;
+                pendientes -= tramo;
+                if (ocupados == bloque.length) {
+                    vaciarBloque();
+                }
+            }
+        }
+
+        private void vaciarBloque() throws IOException {
+            if (ocupados > 0) {
+                salida.write(bloque, 0, ocupados);
+                ocupados = 0;
+            }
+        }
+
+        /**
+         * Cabecera RIFF/WAVE mono; el formato flotante no es PCM, así que su
+         * bloque fmt lleva el tamaño de la extensión y le sigue un bloque fact
+         */
+        private void escribirCabeceraWav(OutputStream flujo, long bytesAudio) throws IOException {
+            boolean flotante = formato.profundidad() == Profundidad.FLOTANTE_32;
+            int tamanoFmt = flotante ? 18 : 16;
+            int tamanoCabecera = tamanoCabeceraWav();
+            int canales = 1;
+            int frecuencia = formato.frecuenciaMuestreo();
+            int alineacion = canales * formato.bytesPorMuestra();
+
+            DataOutputStream cabecera = new DataOutputStream(flujo);
+            cabecera.writeBytes("RIFF");
+            cabecera.writeInt(Integer.reverseBytes((int) (tamanoCabecera + bytesAudio)));
+            cabecera.writeBytes("WAVE");
+            cabecera.writeBytes("fmt ");
+            cabecera.writeInt(Integer.reverseBytes(tamanoFmt));
+            cabecera.writeShort(Short.reverseBytes((short) (flotante ? 3 : 1))); // IEEE float o PCM
+            cabecera.writeShort(Short.reverseBytes((short) canales));
+            cabecera.writeInt(Integer.reverseBytes(frecuencia));
+            cabecera.writeInt(Integer.reverseBytes(frecuencia * alineacion));
+            cabecera.writeShort(Short.reverseBytes((short) alineacion));
+            cabecera.writeShort(Short.reverseBytes((short) formato.profundidad().getBits()));
+            if (flotante) {
+                cabecera.writeShort(0);
+                cabecera.writeBytes("fact");
+                cabecera.writeInt(Integer.reverseBytes(4));
+                cabecera.writeInt(Integer.reverseBytes((int) (bytesAudio / alineacion)));
+            }
+            cabecera.writeBytes("data");
+            cabecera.writeInt(Integer.reverseBytes((int) bytesAudio));
+            cabecera.flush();
+        }
+    }
+
+    /**
+     * Buffer circular de bytes para un solo productor y un solo consumidor
+     * Las posiciones son contadores atómicos que solo crecen, sin candados.
+     * El arreglo es potencia de dos, pero el productor solo puede adelantarse
+     * hasta el límite, que puede ser cualquier tamaño menor
+     */
+    private static class BufferCircular {
+        private final byte[] datos;
+        private final int mascara;
+        private volatile int limite;
+        private final AtomicLong posicionEscritura = new AtomicLong();
+        private final AtomicLong posicionLectura = new AtomicLong();
+
+        public BufferCircular(int capacidadMinima) {
+            int capacidad = Integer.highestOneBit(Math.max(2, capacidadMinima - 1)) << 1;
+            this.datos = new byte[capacidad];
+            this.mascara = capacidad - 1;
+            this.limite = capacidad;
+        }
+
+        /**
+         * Escribe todo lo que quepa sin esperar y devuelve los bytes escritos
+         * Solo debe llamarlo el hilo productor
+         */
+        public int escribir(byte[] origen, int desde, int longitud) {
+            long escritura = posicionEscritura.get();
+            int libres = limite - (int) (escritura - posicionLectura.get());
+            int cantidad = Math.min(libres, longitud);
+            if (cantidad <= 0)
+                return 0;
+
+            int indice = (int) (escritura & mascara);
+            int primerTramo = Math.min(cantidad, datos.length - indice);
+            System.arraycopy(origen, desde, datos, indice, primerTramo);
+            System.arraycopy(origen, desde + primerTramo, datos, 0, cantidad - primerTramo);
+
+            posicionEscritura.lazySet(escritura + cantidad);
+            return cantidad;
+        }
+
+        /**
+         * Lee lo disponible sin esperar y devuelve los bytes leídos
+         * Solo debe llamarlo el hilo consumidor
+         */
+        public int leer(byte[] destino, int desde, int longitud) {
+            long lectura = posicionLectura.get();
+            int disponibles = (int) (posicionEscritura.get() - lectura);
+            int cantidad = Math.min(disponibles, longitud);
+            if (cantidad <= 0)
+                return 0;
+
+            int indice = (int) (lectura & mascara);
+            int primerTramo = Math.min(cantidad, datos.length - indice);
+            System.arraycopy(datos, indice, destino, desde, primerTramo);
+            System.arraycopy(datos, 0, destino, desde + primerTramo, cantidad - primerTramo);
+
+            posicionLectura.lazySet(lectura + cantidad);
+            return cantidad;
+        }
+
+        public int disponibles() {
+            return (int) (posicionEscritura.get() - posicionLectura.get());
+        }
+
+        public int getCapacidad() {
+            return datos.length;
+        }
+
+        /**
+         * Bytes que el productor puede tener escritos sin leer
+         */
+        public int getLimite() {
+            return limite;
+        }
+
+        /**
+         * Se ajusta sin productor activo; no puede superar la capacidad
+         */
+        public void setLimite(int bytes) {
+            limite = Math.max(1, Math.min(bytes, datos.length));
+        }
+
+        /**
+         * Descarta el contenido; solo es seguro sin productor ni consumidor activos
+         */
+        public void vaciar() {
+            posicionLectura.set(posicionEscritura.get());
+        }
+    }
+
+    /**
+     * Tarea que corre en el hilo de reproducción
+     */
+    private interface TareaReproduccion {
+        void ejecutar() throws Exception;
+    }
+
+    /**
+     * Estados de la reproducción; solo ControlReproduccion los cambia
+     */
+    private enum EstadoReproduccion {
+        INACTIVO, REPRODUCIENDO, PAUSADO, DETENIENDO
+    }
+
+    /**
+     * Máquina de estados de la reproducción con un único hilo de larga vida
+     * El estado cambia solo con compareAndSet, así las órdenes de la interfaz
+     * y el fin de la tarea no se pisan. Detener, pausar y saltar actúan sobre
+     * la línea en el hilo que las pide, sin esperar al de reproducción: el
+     * silencio llega en cuanto la línea se vacía. La tarea ve el corte en el
+     * siguiente evento y decide si termina o sigue desde el párrafo pedido
+     */
+    private static final class ControlReproduccion {
+        static final int SIN_BUSQUEDA = -1;
+
+        /**
+         * Recibe cada transición en el hilo que la provocó
+         */
+        interface Oyente {
+            void estadoCambiado(EstadoReproduccion anterior, EstadoReproduccion nuevo);
+        }
+
+        private final GeneradorSonido generador;
+        private final Oyente oyente;
+        private final AtomicReference<EstadoReproduccion> estado = new AtomicReference<>(
+                EstadoReproduccion.INACTIVO);
+        private final AtomicReference<TareaReproduccion> pendiente = new AtomicReference<>();
+        private final AtomicInteger parrafoBuscado = new AtomicInteger(SIN_BUSQUEDA);
+        private final Thread hilo;
+
+        ControlReproduccion(GeneradorSonido generador, Oyente oyente) {
+            this.generador = generador;
+            this.oyente = oyente;
+            this.hilo = new Thread(this::bucle, "reproduccion");
+            hilo.setDaemon(true);
+            hilo.start();
+        }
+
+        /**
+         * Corta lo que suene y deja la tarea para el hilo de reproducción; si
+         * llegan varias antes de que la tome, solo corre la última
+         */
+        void iniciar(TareaReproduccion tarea) {
+            pendiente.set(tarea);
+            cortar();
+            LockSupport.unpark(hilo);
+        }
+
+        /**
+         * Detiene la reproducción y descarta la tarea que esperaba turno
+         * Devuelve false si no había nada que detener
+         */
+        boolean detener() {
+            boolean descartada = pendiente.getAndSet(null) != null;
+            return cortar() || descartada;
+        }
+
+        private boolean cortar() {
+            while (true) {
+                EstadoReproduccion actual = estado.get();
+                if (actual != EstadoReproduccion.REPRODUCIENDO && actual != EstadoReproduccion.PAUSADO)
+                    return false;
+                if (cambiar(actual, EstadoReproduccion.DETENIENDO)) {
+                    generador.detenerTodo();
+                    if (actual == EstadoReproduccion.PAUSADO) {
+                        generador.reanudar();
+                    }
+                    return true;
+                }
+            }
+        }
+
+        boolean pausar() {
+            if (!cambiar(EstadoReproduccion.REPRODUCIENDO, EstadoReproduccion.PAUSADO))
+                return false;
+            generador.pausar();
+            // Si la tarea terminó entre el cambio y la pausa, no se deja la línea parada
+            if (estado.get() != EstadoReproduccion.PAUSADO) {
+                generador.reanudar();
+            }
+            return true;
+        }
+
+        boolean reanudar() {
+            if (!cambiar(EstadoReproduccion.PAUSADO, EstadoReproduccion.REPRODUCIENDO))
+                return false;
+            generador.reanudar();
+            return true;
+        }
+
+        boolean alternarPausa() {
+            return pausar() || reanudar();
+        }
+
+        /**
+         * Pide seguir desde el párrafo indicado (desde 0): descarta el audio en
+         * cola y la tarea retoma allí en cuanto ve el corte. En pausa, reanuda
+         */
+        boolean buscar(int parrafo) {
+            EstadoReproduccion actual = estado.get();
+            if (actual != EstadoReproduccion.REPRODUCIENDO && actual != EstadoReproduccion.PAUSADO)
+                return false;
+            parrafoBuscado.set(parrafo);
+            generador.detenerTodo();
+            reanudar();
+            return true;
+        }
+
+        /**
+         * Párrafo pedido con buscar, o SIN_BUSQUEDA; lo consume la tarea tras el corte
+         */
+        int tomarBusqueda() {
+            return parrafoBuscado.getAndSet(SIN_BUSQUEDA);
+        }
+
+        /**
+         * La tarea sigue mientras no se haya pedido detenerla
+         */
+        boolean debeSeguir() {
+            EstadoReproduccion actual = estado.get();
+            return actual == EstadoReproduccion.REPRODUCIENDO || actual == EstadoReproduccion.PAUSADO;
+        }
+
+        /**
+         * Hay una tarea sonando, terminando o esperando turno
+         */
+        boolean estaOcupado() {
+            return estado.get() != EstadoReproduccion.INACTIVO || pendiente.get() != null;
+        }
+
+        EstadoReproduccion getEstado() {
+            return estado.get();
+        }
+
+        private boolean cambiar(EstadoReproduccion de, EstadoReproduccion a) {
+            if (!estado.compareAndSet(de, a))
+                return false;
+            oyente.estadoCambiado(de, a);
+            return true;
+        }
+
+        private void bucle() {
+            while (true) {
+                if (pendiente.get() == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                // Se rearma antes de pasar a REPRODUCIENDO: una detención pedida
+                // desde ese momento ya no se pierde
+                generador.rearmar();
+                parrafoBuscado.set(SIN_BUSQUEDA);
+                cambiar(EstadoReproduccion.INACTIVO, EstadoReproduccion.REPRODUCIENDO);
+                TareaReproduccion tarea = pendiente.getAndSet(null);
+                try {
+                    if (tarea != null) {
+                        tarea.ejecutar();
+                    }
+                } catch (Exception e) {
+                    System.err.println("Error en la reproduccion: " + e.getMessage());
+                } finally {
+                    EstadoReproduccion anterior = estado.getAndSet(EstadoReproduccion.INACTIVO);
+                    if (anterior == EstadoReproduccion.PAUSADO) {
+                        generador.reanudar();
+                    }
+                    // Con otra tarea esperando, la interfaz pasa directo a la siguiente
+                    if (pendiente.get() == null) {
+                        oyente.estadoCambiado(anterior, EstadoReproduccion.INACTIVO);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Resultado del análisis musical sobre la partitura compacta
+     * Los totales globales se acumulan en contadores primitivos
+     */
+    private static class ResultadoAnalisis {
+        private final PartituraCompacta partitura;
+        private final EstadisticasIncrementales estadisticas;
+        private EstadisticasMelodicas melodia;
+
+        public ResultadoAnalisis(PartituraCompacta partitura) {
+            this(partitura, partitura.calcularEstadisticas());
+        }
+
+        public ResultadoAnalisis(PartituraCompacta partitura, EstadisticasIncrementales estadisticas) {
+            this(partitura, estadisticas, null);
+        }
+
+        public ResultadoAnalisis(PartituraCompacta partitura, EstadisticasIncrementales estadisticas,
+                EstadisticasMelodicas melodia) {
+            this.partitura = partitura;
+            this.estadisticas = estadisticas;
+            this.melodia = melodia;
+        }
+
+        public PartituraCompacta getPartitura() {
+            return partitura;
+        }
+
+        public EstadisticasIncrementales getEstadisticas() {
+            return estadisticas;
+        }
+
+        /**
+         * Métricas melódicas; se calculan la primera vez que se piden, salvo
+         * que vengan ya hechas en una partitura compilada
+         */
+        public synchronized EstadisticasMelodicas getMelodia() {
+            if (melodia == null) {
+                melodia = EstadisticasMelodicas.calcular(partitura);
+            }
+            return melodia;
+        }
+
+        public int getTotalParrafos() {
+            return partitura.getTotalParrafos();
+        }
+
+        public int getConteoGlobal(int notaBase) {
+            return estadisticas.getConteo(notaBase);
+        }
+
+        public int getNotasUnicas() {
+            return estadisticas.getNotasUnicas();
+        }
+
+        public int getTotalNotas() {
+            return partitura.getTotalNotas();
+        }
+
+    }
+
+    /**
+     * Totales globales que se actualizan párrafo a párrafo
+     * Sirven tanto para el análisis completo como para el modo flujo
+     */
+    private static class EstadisticasIncrementales {
+        private final int[] conteo = new int[GramaticaMusical.NOMBRES_BASE.length];
+        private int totalParrafos;
+        private long totalNotas;
+
+        public void agregarParrafo(int[] conteoParrafo) {
+            for (int base = 0; base < conteo.length; base++) {
+                conteo[base] += conteoParrafo[base];
+                totalNotas += conteoParrafo[base];
+            }
+            totalParrafos++;
+        }
+
+        /**
+         * Resta un párrafo que se quitó o va a reemplazarse en el editor
+         */
+        public void quitarParrafo(int[] conteoParrafo) {
+            for (int base = 0; base < conteo.length; base++) {
+                conteo[base] -= conteoParrafo[base];
+                totalNotas -= conteoParrafo[base];
+            }
+            totalParrafos--;
+        }
+
+        /**
+         * Suma los totales de otro tramo de la partitura
+         */
+        public void combinar(EstadisticasIncrementales otras) {
+            for (int base = 0; base < conteo.length; base++) {
+                conteo[base] += otras.conteo[base];
+            }
+            totalNotas += otras.totalNotas;
+            totalParrafos += otras.totalParrafos;
+        }
+
+        public int getConteo(int notaBase) {
+            return conteo[notaBase];
+        }
+
+        /**
+         * Totales de una partitura compilada: el conteo por tipo y los párrafos
+         */
+        static EstadisticasIncrementales leerCompiladas(java.nio.IntBuffer origen, int parrafos) {
+            EstadisticasIncrementales estadisticas = new EstadisticasIncrementales();
+            origen.get(estadisticas.conteo);
+            for (int cantidad : estadisticas.conteo) {
+                estadisticas.totalNotas += cantidad;
+            }
+            estadisticas.totalParrafos = parrafos;
+            return estadisticas;
+        }
+
+        void escribirCompiladas(PartituraCompilada.Salida salida) throws IOException {
+            salida.escribir(conteo, conteo.length);
+        }
+
+        public int getTotalParrafos() {
+            return totalParrafos;
+        }
+
+        public long getTotalNotas() {
+            return totalNotas;
+        }
+
+        /**
+         * Cantidad de tipos de nota que aparecen al menos una vez
+         */
+        public int getNotasUnicas() {
+            int unicas = 0;
+            for (int cantidad : conteo) {
+                if (cantidad > 0) {
+                    unicas++;
+                }
+            }
+            return unicas;
+        }
+    }
+
+    /**
+     * Métricas melódicas sobre contadores primitivos indexados por altura MIDI,
+     * intervalo y motivo, calculadas en una sola pasada por los eventos de cada
+     * párrafo. La melodía sigue la primera nota de cada acorde y no cruza de un
+     * párrafo a otro, así un párrafo se puede restar igual que se sumó
+     */
+    private static final class EstadisticasMelodicas {
+        static final int SIN_REGISTRO = -1;
+        // Los saltos mayores de dos octavas se cuentan en el extremo
+        static final int INTERVALO_MAXIMO = 24;
+        static final int CLASES_INTERVALO = 2 * INTERVALO_MAXIMO + 1;
+        // Un motivo son NOTAS_MOTIVO notas seguidas, identificado por sus intervalos
+        static final int NOTAS_MOTIVO = 4;
+        private static final int CLASES_MOTIVO = CLASES_INTERVALO * CLASES_INTERVALO * CLASES_INTERVALO;
+        private static final String[] NOMBRES_MIDI = { "DO", "DO#", "RE", "RE#", "MI", "FA", "FA#", "SOL", "SOL#",
+                "LA", "LA#", "SI" };
+
+        private final int[] alturas = new int[128];
+        private final int[] intervalos = new int[CLASES_INTERVALO];
+        private final int[] motivos = new int[CLASES_MOTIVO];
+        private long totalIntervalos;
+
+        /**
+         * Recorre toda la partitura una vez
+         */
+        static EstadisticasMelodicas calcular(PartituraCompacta partitura) {
+            EstadisticasMelodicas melodia = new EstadisticasMelodicas();
+            for (int parrafo = 0; parrafo < partitura.getTotalParrafos(); parrafo++) {
+                melodia.agregarParrafo(partitura, parrafo);
+            }
+            return melodia;
+        }
+
+        static final int ENTEROS_COMPILADOS = 128 + CLASES_INTERVALO + CLASES_MOTIVO + 2;
+
+        /**
+         * Contadores tal cual: alturas, intervalos, motivos y el total de intervalos en dos enteros
+         */
+        void escribirCompiladas(PartituraCompilada.Salida salida) throws IOException {
+            salida.escribir(alturas, alturas.length);
+            salida.escribir(intervalos, intervalos.length);
+            salida.escribir(motivos, motivos.length);
+            salida.escribir((int) (totalIntervalos >>> 32));
+            salida.escribir((int) totalIntervalos);
+        }
+
+        static EstadisticasMelodicas leerCompiladas(java.nio.IntBuffer origen) {
+            EstadisticasMelodicas melodia = new EstadisticasMelodicas();
+            origen.get(melodia.alturas);
+            origen.get(melodia.intervalos);
+            origen.get(melodia.motivos);
+            melodia.totalIntervalos = (long) origen.get() << 32 | (origen.get() & 0xFFFFFFFFL);
+            return melodia;
+        }
+
+        /**
+         * Suma el párrafo y devuelve su registro, o SIN_REGISTRO si no tiene notas
+         */
+        public int agregarParrafo(PartituraCompacta partitura, int parrafo) {
+            return acumular(partitura, parrafo, 1);
+        }
+
+        public int quitarParrafo(PartituraCompacta partitura, int parrafo) {
+            return acumular(partitura, parrafo, -1);
+        }
+
+        private int acumular(PartituraCompacta partitura, int parrafo, int signo) {
+            int minimo = 128;
+            int maximo = -1;
+            int anterior = -1;
+            int motivo = 0;
+            int seguidos = 0;
+
+            for (int i = partitura.getInicioParrafo(parrafo); i < partitura.getFinParrafo(parrafo); i++) {
+                int evento = partitura.getEvento(i);
+                if (!CodigoNota.esNota(evento))
+                    continue;
+
+                int midi = CodigoNota.midi(evento);
+                alturas[midi] += signo;
+                minimo = Math.min(minimo, midi);
+                maximo = Math.max(maximo, midi);
+                if (CodigoNota.esAcorde(evento))
+                    continue;
+
+                if (anterior >= 0) {
+                    int clase = Math.max(-INTERVALO_MAXIMO, Math.min(INTERVALO_MAXIMO, midi - anterior))
+                            + INTERVALO_MAXIMO;
+                    intervalos[clase] += signo;
+                    totalIntervalos += signo;
+                    // Ventana deslizante de los últimos NOTAS_MOTIVO - 1 intervalos
+                    motivo = (motivo * CLASES_INTERVALO + clase) % CLASES_MOTIVO;
+                    if (++seguidos >= NOTAS_MOTIVO - 1) {
+                        motivos[motivo] += signo;
+                    }
+                }
+                anterior = midi;
+            }
+            return maximo < 0 ? SIN_REGISTRO : empaquetar(minimo, maximo);
+        }
+
+        /**
+         * Registro de un solo párrafo sin tocar contadores
+         */
+        static int registro(PartituraCompacta partitura, int parrafo) {
+            int minimo = 128;
+            int maximo = -1;
+            for (int i = partitura.getInicioParrafo(parrafo); i < partitura.getFinParrafo(parrafo); i++) {
+                int evento = partitura.getEvento(i);
+                if (CodigoNota.esNota(evento)) {
+                    int midi = CodigoNota.midi(evento);
+                    minimo = Math.min(minimo, midi);
+                    maximo = Math.max(maximo, midi);
+                }
+            }
+            return maximo < 0 ? SIN_REGISTRO : empaquetar(minimo, maximo);
+        }
+
+        private static int empaquetar(int minimo, int maximo) {
+            return minimo << 8 | maximo;
+        }
+
+        /**
+         * Registro de todas las notas contadas, desde el histograma de alturas
+         */
+        public int getRegistro() {
+            int minimo = 0;
+            while (minimo < alturas.length && alturas[minimo] == 0) {
+                minimo++;
+            }
+            if (minimo == alturas.length)
+                return SIN_REGISTRO;
+            int maximo = alturas.length - 1;
+            while (alturas[maximo] == 0) {
+                maximo--;
+            }
+            return empaquetar(minimo, maximo);
+        }
+
+        /**
+         * Cantidad de intervalos por clase; la clase k es un salto de k - INTERVALO_MAXIMO semitonos
+         */
+        public int[] getHistogramaIntervalos() {
+            return intervalos;
+        }
+
+        public long getTotalIntervalos() {
+            return totalIntervalos;
+        }
+
+        public int[] getConteoMotivos() {
+            return motivos;
+        }
+
+        /**
+         * Por ejemplo: DO4 - SOL5 (19 semitonos)
+         */
+        static void agregarRegistro(int registro, StringBuilder destino) {
+            int minimo = registro >> 8;
+            int maximo = registro & 0xFF;
+            agregarAltura(minimo, destino);
+            destino.append(" - ");
+            agregarAltura(maximo, destino);
+            destino.append(" (").append(maximo - minimo).append(" semitonos)");
+        }
+
+        static void agregarAltura(int midi, StringBuilder destino) {
+            destino.append(NOMBRES_MIDI[midi % 12]).append(midi / 12 - 1);
+        }
+
+        static void agregarIntervalo(int clase, StringBuilder destino) {
+            int semitonos = clase - INTERVALO_MAXIMO;
+            if (semitonos == 0) {
+                destino.append("unisono");
+                return;
+            }
+            destino.append(semitonos > 0 ? "+" : "").append(semitonos).append(" semitonos");
+        }
+
+        static void agregarMotivo(int motivo, StringBuilder destino) {
+            int divisor = CLASES_MOTIVO / CLASES_INTERVALO;
+            for (int k = 0; k < NOTAS_MOTIVO - 1; k++) {
+                int semitonos = motivo / divisor % CLASES_INTERVALO - INTERVALO_MAXIMO;
+                destino.append(k > 0 ? " " : "").append(semitonos > 0 ? "+" : "").append(semitonos);
+                divisor /= CLASES_INTERVALO;
+            }
+        }
+    }
+
+    /**
+     * Las K claves con más apariciones en un arreglo de contadores
+     * Usa un montículo mínimo acotado a K, O(n log K), sin ordenar todo el arreglo
+     * A igual cantidad gana la clave menor
+     */
+    private static final class Ranking {
+        /**
+         * Deja en destino las claves de mayor a menor cantidad y devuelve cuántas hay
+         * Solo entran las claves con cantidad positiva; destino debe tener k posiciones
+         */
+        static int mejores(int[] conteo, int k, int[] destino) {
+            int tamano = 0;
+            for (int clave = 0; clave < conteo.length; clave++) {
+                if (conteo[clave] <= 0)
+                    continue;
+                if (tamano < k) {
+                    destino[tamano] = clave;
+                    subir(destino, tamano++, conteo);
+                } else if (peor(destino[0], clave, conteo)) {
+                    destino[0] = clave;
+                    bajar(destino, 0, tamano, conteo);
+                }
+            }
+
+            // Se saca siempre la peor hacia el final: la mejor queda en la posición 0
+            for (int fin = tamano - 1; fin > 0; fin--) {
+                intercambiar(destino, 0, fin);
+                bajar(destino, 0, fin, conteo);
+            }
+            return tamano;
+        }
+
+        /**
+         * true si la clave a va detrás de b en el ranking
+         */
+        private static boolean peor(int a, int b, int[] conteo) {
+            return conteo[a] < conteo[b] || (conteo[a] == conteo[b] && a > b);
+        }
+
+        private static void subir(int[] monticulo, int i, int[] conteo) {
+            while (i > 0) {
+                int padre = (i - 1) / 2;
+                if (!peor(monticulo[i], monticulo[padre], conteo))
+                    return;
+                intercambiar(monticulo, i, padre);
+                i = padre;
+            }
+        }
+
+        private static void bajar(int[] monticulo, int i, int tamano, int[] conteo) {
+            while (true) {
+                int menor = i;
+                int izquierdo = 2 * i + 1;
+                if (izquierdo < tamano && peor(monticulo[izquierdo], monticulo[menor], conteo)) {
+                    menor = izquierdo;
+                }
+                if (izquierdo + 1 < tamano && peor(monticulo[izquierdo + 1], monticulo[menor], conteo)) {
+                    menor = izquierdo + 1;
+                }
+                if (menor == i)
+                    return;
+                intercambiar(monticulo, i, menor);
+                i = menor;
+            }
+        }
+
+        private static void intercambiar(int[] arreglo, int a, int b) {
+            int temporal = arreglo[a];
+            arreglo[a] = arreglo[b];
+            arreglo[b] = temporal;
+        }
+    }
+
+    /**
+     * Modelo de la lista de párrafos; sin filas por sí solo
+     * Las subclases arman cada fila solo cuando la lista la pide
+     */
+    private static class FilasParrafos extends AbstractListModel<String> {
+        @Override
+        public int getSize() {
+            return 0;
+        }
+
+        @Override
+        public String getElementAt(int indice) {
+            throw new IndexOutOfBoundsException(indice);
+        }
+
+        /**
+         * Fila que muestra el párrafo indicado (desde 0), o -1 si no está en la lista
+         */
+        int filaDeParrafo(int parrafo) {
+            return parrafo < getSize() ? parrafo : -1;
+        }
+
+        /**
+         * Párrafo (desde 0) que muestra la fila
+         */
+        int parrafoDeFila(int fila) {
+            return fila;
+        }
+
+        /**
+         * Partitura completa detrás de las filas, o null si se lee en flujo
+         */
+        ResultadoAnalisis getResultado() {
+            return null;
+        }
+
+        /**
+         * En flujo la reproducción no puede volver a párrafos ya leídos
+         */
+        boolean soloAvanza() {
+            return false;
+        }
+
+        /**
+         * Índice de párrafos de la partitura en flujo, o null si no lo hay
+         */
+        IndiceParrafos getIndice() {
+            return null;
+        }
+
+        /**
+         * Libera lo que las filas tengan abierto; se llama al reemplazarlas en la lista
+         */
+        void liberar() {
+            // Nada abierto en una partitura ya analizada
+        }
+
+        /**
+         * Incorpora filas publicadas desde otros hilos; se llama en el hilo de la interfaz
+         */
+        void aplicarPendientes() {
+            // Sin filas pendientes en una partitura ya analizada
+        }
+    }
+
+    /**
+     * Resultado de un análisis completo visto como lista: una fila por párrafo
+     * armada al pintarla y un resumen global calculado una sola vez
+     */
+    private static final class ReporteParrafos extends FilasParrafos {
+        private final ResultadoAnalisis resultado;
+        private final String fuente;
+        private final EstadisticasMelodicas melodia;
+
+        ReporteParrafos(ResultadoAnalisis resultado, String fuente) {
+            this.resultado = resultado;
+            this.fuente = fuente;
+            this.melodia = resultado.getMelodia();
+        }
+
+        /**
+         * Encabezado, resumen global y análisis melódico
+         */
+        String resumen() {
+            StringBuilder reporte = new StringBuilder();
+            agregarEncabezadoReporte(reporte, fuente);
+            agregarResumenGlobal(reporte, resultado.getEstadisticas());
+            agregarResumenMelodico(reporte, melodia);
+            return reporte.toString();
+        }
+
+        @Override
+        public int getSize() {
+            return resultado.getTotalParrafos();
+        }
+
+        @Override
+        public String getElementAt(int indice) {
+            return filaParrafo(indice + 1, resultado.getPartitura(), indice);
+        }
+
+        @Override
+        ResultadoAnalisis getResultado() {
+            return resultado;
+        }
+    }
+
+    /**
+     * Filas del modo flujo: el hilo de reproducción las publica y el
+     * temporizador de la interfaz las incorpora en grupo. Solo se conservan
+     * las últimas MAXIMO_FILAS para que la memoria no crezca con el archivo.
+     * Cuando el índice de párrafos está listo la lista pasa a mostrar todos
+     * los párrafos, armando cada fila a partir de su línea
+     */
+    private static final class FilasFlujo extends FilasParrafos {
+        static final int MAXIMO_FILAS = 5000;
+
+        private final File archivo;
+        private final String[] filas = new String[MAXIMO_FILAS];
+        private int inicio;
+        private int cantidad;
+        // Párrafo que ocupa la primera fila
+        private int primerParrafo;
+        private List<String> pendientes = new ArrayList<>();
+        // Lo asigna la interfaz y lo lee también el hilo de reproducción
+        private volatile IndiceParrafos indice;
+
+        FilasFlujo(File archivo) {
+            this.archivo = archivo;
+        }
+
+        File getArchivo() {
+            return archivo;
+        }
+
+        void publicar(String fila) {
+            if (indice != null)
+                return;
+            synchronized (this) {
+                pendientes.add(fila);
+            }
+        }
+
+        /**
+         * Cambia las últimas filas publicadas por la partitura completa del índice
+         */
+        void usarIndice(IndiceParrafos nuevo) {
+            int antes = cantidad;
+            synchronized (this) {
+                indice = nuevo;
+                pendientes = new ArrayList<>();
+            }
+            Arrays.fill(filas, null);
+            inicio = 0;
+            cantidad = 0;
+            primerParrafo = 0;
+            if (antes > 0) {
+                fireIntervalRemoved(this, 0, antes - 1);
+            }
+            if (nuevo.getTotal() > 0) {
+                fireIntervalAdded(this, 0, nuevo.getTotal() - 1);
+            }
+        }
+
+        @Override
+        IndiceParrafos getIndice() {
+            return indice;
+        }
+
+        @Override
+        void liberar() {
+            if (indice != null) {
+                indice.close();
+            }
+        }
+
+        @Override
+        void aplicarPendientes() {
+            if (indice != null)
+                return;
+            List<String> nuevas;
+            synchronized (this) {
+                if (pendientes.isEmpty())
+                    return;
+                nuevas = pendientes;
+                pendientes = new ArrayList<>();
+            }
+
+            int antes = cantidad;
+            boolean descartadas = false;
+            for (String fila : nuevas) {
+                if (cantidad == MAXIMO_FILAS) {
+                    inicio = (inicio + 1) % MAXIMO_FILAS;
+                    primerParrafo++;
+                    descartadas = true;
+                } else {
+                    cantidad++;
+                }
+                filas[(inicio + cantidad - 1) % MAXIMO_FILAS] = fila;
+            }
+
+            if (cantidad > antes) {
+                fireIntervalAdded(this, antes, cantidad - 1);
+            }
+            if (descartadas) {
+                fireContentsChanged(this, 0, cantidad - 1);
+            }
+        }
+
+        @Override
+        public int getSize() {
+            return indice != null ? indice.getTotal() : cantidad;
+        }
+
+        @Override
+        public String getElementAt(int fila) {
+            IndiceParrafos actual = indice;
+            if (actual == null) {
+                return filas[(inicio + fila) % MAXIMO_FILAS];
+            }
+            try {
+                return filaParrafo(fila + 1, actual.leerParrafo(fila), 0);
+            } catch (IOException e) {
+                return String.format("Parrafo %d: no se pudo leer (%s)", fila + 1, e.getMessage());
+            }
+        }
+
+        @Override
+        int filaDeParrafo(int parrafo) {
+            if (indice != null) {
+                return parrafo < indice.getTotal() ? parrafo : -1;
+            }
+            int fila = parrafo - primerParrafo;
+            return fila >= 0 && fila < cantidad ? fila : -1;
+        }
+
+        @Override
+        int parrafoDeFila(int fila) {
+            return indice != null ? fila : primerParrafo + fila;
+        }
+
+        @Override
+        boolean soloAvanza() {
+            return indice == null;
+        }
+    }
+
+    /**
+     * Conversión por lotes sin interfaz gráfica
+     * Recorre un árbol de directorios con partituras .txt y, con un pool de
+     * hilos acotado (un archivo por tarea), genera para cada una un WAV y un
+     * JSON con sus estadísticas. Al final imprime el rendimiento total
+     */
+    private static class ConversorLotes {
+        private final Path entrada;
+        private final Path salida;
+        private final int hilos;
+        private final FormatoAudio formato;
+        private final AnalizadorMusical analizador;
+        private final ThreadLocal<RenderizadorOffline> renderizadores;
+
+        private final AtomicLong archivosConvertidos = new AtomicLong();
+        private final AtomicLong archivosFallidos = new AtomicLong();
+        private final AtomicLong notasTotales = new AtomicLong();
+        private final AtomicLong muestrasTotales = new AtomicLong();
+
+        public ConversorLotes(Path entrada, Path salida, int hilos, FormatoAudio formato) {
+            this.entrada = entrada;
+            this.salida = salida;
+            this.hilos = hilos;
+            this.formato = formato;
+            GramaticaMusical gramatica = new GramaticaMusical();
+            this.analizador = new AnalizadorMusical(gramatica);
+            // Cada hilo tiene su propio renderizador con su bloque y su caché
+            this.renderizadores = ThreadLocal.withInitial(() -> {
+                RenderizadorOffline renderizador = new RenderizadorOffline(gramatica);
+                renderizador.setFormato(formato);
+                return renderizador;
+            });
+        }
+
+        /**
+         * Uso: --lote directorioEntrada directorioSalida [hilos] [frecuencia] [bits]
+         */
+        static void ejecutar(String[] args) throws IOException, InterruptedException {
+            if (args.length < 3) {
+                System.err.println("Uso: --lote <directorioEntrada> <directorioSalida> [hilos] "
+                        + "[44100|48000|96000] [16|24|flotante]");
+                return;
+            }
+            int hilos = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            FormatoAudio formato = args.length > 4
+                    ? FormatoAudio.leer(args[4], args.length > 5 ? args[5] : "16")
+                    : FormatoAudio.ESTANDAR;
+            new ConversorLotes(Paths.get(args[1]), Paths.get(args[2]), Math.max(1, hilos), formato).convertir();
+        }
+
+        public void convertir() throws IOException, InterruptedException {
+            // Cola acotada: si se llena, el hilo que recorre el árbol convierte él mismo
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(hilos, hilos, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(hilos * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+            long inicio = System.nanoTime();
+
+            try (java.util.stream.Stream<Path> rutas = Files.walk(entrada)) {
+                Iterator<Path> iterador = rutas.iterator();
+                while (iterador.hasNext()) {
+                    Path ruta = iterador.next();
+                    if (Files.isRegularFile(ruta) && ruta.getFileName().toString().toLowerCase().endsWith(".txt")) {
+                        pool.execute(() -> convertirArchivo(ruta));
+                    }
+                }
+            } finally {
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+            double segundosAudio = muestrasTotales.get() / (double) formato.frecuenciaMuestreo();
+            System.out.printf("Archivos convertidos: %d (fallidos: %d) en %.2f s con %d hilos%n",
+                    archivosConvertidos.get(), archivosFallidos.get(), segundos, hilos);
+            System.out.printf("Rendimiento: %.1f archivos/s, %.0f notas/s, %.1f s de audio por segundo%n",
+                    archivosConvertidos.get() / segundos, notasTotales.get() / segundos, segundosAudio / segundos);
+        }
+
+        private void convertirArchivo(Path ruta) {
+            try {
+                long inicio = System.nanoTime();
+                File archivo = ruta.toFile();
+                ResultadoAnalisis resultado;
+                if (archivo.length() <= CargadorPartitura.LIMITE_MAPEO) {
+                    resultado = analizador.analizarTexto(CargadorPartitura.mapear(archivo));
+                } else {
+                    try (FuenteLineas lineas = CargadorPartitura.abrirLineas(archivo)) {
+                        resultado = analizador.analizarLineas(lineas);
+                    }
+                }
+
+                // Misma ruta relativa en el directorio de salida
+                Path relativa = entrada.relativize(ruta);
+                String nombre = relativa.getFileName().toString();
+                String base = nombre.substring(0, nombre.length() - ".txt".length());
+                Path destino = salida.resolve(relativa).resolveSibling(base + ".wav");
+
+                // Se cuenta una sola vez; si no cabe en un WAV falla sin crear nada
+                RenderizadorOffline renderizador = renderizadores.get();
+                long muestras = RenderizadorOffline.calcularMuestrasTotales(resultado, formato);
+                renderizador.comprobarTamanoWav(muestras);
+                Files.createDirectories(destino.getParent());
+                renderizador.renderizarWav(resultado, destino.toFile(), muestras);
+
+                double milisegundos = (System.nanoTime() - inicio) / 1e6;
+                Files.writeString(destino.resolveSibling(base + ".json"), Json.estadisticas(relativa.toString(),
+                        resultado, muestras / (double) formato.frecuenciaMuestreo(), milisegundos));
+
+                archivosConvertidos.incrementAndGet();
+                notasTotales.addAndGet(resultado.getTotalNotas());
+                muestrasTotales.addAndGet(muestras);
+            } catch (IOException | RuntimeException e) {
+                archivosFallidos.incrementAndGet();
+                System.err.println("Error convirtiendo " + ruta + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Servidor HTTP local que renderiza partituras para otras herramientas sin abrir la interfaz
+     * Cada petición corre en su propio hilo virtual; un semáforo limita cuántas sintetizan a la vez
+     */
+    private static class ServidorRender {
+        static final int PUERTO_POR_DEFECTO = 8765;
+        private static final int LIMITE_CUERPO = 16 * 1024 * 1024;
+        private static final long ESPERA_CUPO_MS = 30_000;
+        private static final int MAXIMO_EN_ESPERA = 1024;
+        private static final int COLA_CONEXIONES = 1024;
+        // Audio máximo de una petición, con las repeticiones expandidas
+        private static final int SEGUNDOS_MAXIMOS = 600;
+
+        private final GramaticaMusical gramatica;
+        private final AnalizadorMusical analizador;
+        // Compartido por todos los renderizadores; sus métodos están sincronizados
+        private final CacheNotas cacheNotas = new CacheNotas(CacheNotas.CAPACIDAD_POR_DEFECTO);
+        private final FormatoAudio formato;
+        private final int limite;
+        private final Semaphore cupos;
+        private HttpServer servidor;
+        private ExecutorService hilos;
+
+        private final AtomicLong atendidas = new AtomicLong();
+        private final AtomicLong rechazadas = new AtomicLong();
+        private final AtomicLong fallidas = new AtomicLong();
+        private final AtomicInteger enEspera = new AtomicInteger();
+        private final Histograma espera = new Histograma("espera", "Espera por cupo", "us");
+        private final Histograma analisis = new Histograma("analisis", "Analisis de la partitura", "us");
+        private final Histograma wav = new Histograma("wav", "Peticion WAV completa", "us");
+        private final Histograma estadisticas = new Histograma("estadisticas", "Peticion de estadisticas completa", "us");
+
+        public ServidorRender(int limite, FormatoAudio formato) {
+            this.limite = limite;
+            this.formato = formato;
+            this.cupos = new Semaphore(limite, true);
+            this.gramatica = new GramaticaMusical();
+            this.analizador = new AnalizadorMusical(gramatica);
+        }
+
+        /**
+         * Uso: --servidor [puerto] [peticionesSimultaneas] [frecuencia] [bits]
+         */
+        static void ejecutar(String[] args) throws IOException {
+            int puerto = args.length > 1 ? Integer.parseInt(args[1]) : PUERTO_POR_DEFECTO;
+            int limite = args.length > 2 ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+            FormatoAudio formato = args.length > 3
+                    ? FormatoAudio.leer(args[3], args.length > 4 ? args[4] : "16")
+                    : FormatoAudio.ESTANDAR;
+            ServidorRender servidor = new ServidorRender(Math.max(1, limite), formato);
+            servidor.iniciar(puerto);
+            Runtime.getRuntime().addShutdownHook(new Thread(servidor::detener));
+            System.out.printf("Servidor escuchando en http://127.0.0.1:%d (hasta %d renderizados simultaneos)%n",
+                    servidor.getPuerto(), servidor.getLimite());
+            System.out.println("POST /wav y /estadisticas con el texto de la partitura; GET /metricas");
+        }
+
+        /**
+         * Escucha solo en la interfaz local; el puerto 0 elige uno libre
+         */
+        public void iniciar(int puerto) throws IOException {
+            servidor = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto),
+                    COLA_CONEXIONES);
+            hilos = Executors.newVirtualThreadPerTaskExecutor();
+            servidor.setExecutor(hilos);
+            servidor.createContext("/wav", intercambio -> atender(intercambio, true));
+            servidor.createContext("/estadisticas", intercambio -> atender(intercambio, false));
+            servidor.createContext("/metricas", this::responderMetricas);
+            servidor.start();
+        }
+
+        public void detener() {
+            if (servidor != null) {
+                servidor.stop(1);
+                hilos.close();
+            }
+        }
+
+        public int getPuerto() {
+            return servidor.getAddress().getPort();
+        }
+
+        /**
+         * Analiza el cuerpo de la petición y devuelve el WAV o el JSON de estadísticas
+         * El WAV se escribe directo en la respuesta a medida que se sintetiza
+         */
+        private void atender(HttpExchange intercambio, boolean enWav) throws IOException {
+            long inicio = System.nanoTime();
+            try {
+                if (!intercambio.getRequestMethod().equals("POST")) {
+                    intercambio.getResponseHeaders().set("Allow", "POST");
+                    responderTexto(intercambio, 405, "Use POST con el texto de la partitura");
+                    return;
+                }
+                FormatoAudio formatoPeticion;
+                try {
+                    formatoPeticion = leerFormato(intercambio.getRequestURI().getRawQuery());
+                } catch (IllegalArgumentException e) {
+                    responderTexto(intercambio, 400, e.getMessage());
+                    return;
+                }
+                // Las peticiones de más esperan su turno en hilos virtuales, que no ocupan un hilo
+                // del sistema; el cuerpo se lee ya con cupo, así las que esperan no retienen memoria
+                if (enEspera.incrementAndGet() > MAXIMO_EN_ESPERA) {
+                    enEspera.decrementAndGet();
+                    rechazar(intercambio, 503, "Servidor ocupado, intente de nuevo");
+                    return;
+                }
+                long inicioEspera = System.nanoTime();
+                boolean conCupo;
+                try {
+                    conCupo = cupos.tryAcquire(ESPERA_CUPO_MS, TimeUnit.MILLISECONDS);
+                } finally {
+                    enEspera.decrementAndGet();
+                }
+                if (!conCupo) {
+                    rechazar(intercambio, 503, "Servidor ocupado, intente de nuevo");
+                    return;
+                }
+                try {
+                    espera.registrar((System.nanoTime() - inicioEspera) / 1000);
+                    byte[] cuerpo = intercambio.getRequestBody().readNBytes(LIMITE_CUERPO + 1);
+                    if (cuerpo.length > LIMITE_CUERPO) {
+                        rechazar(intercambio, 413, "La partitura excede " + LIMITE_CUERPO / (1024 * 1024) + " MB");
+                        return;
+                    }
+                    long inicioAnalisis = System.nanoTime();
+                    ResultadoAnalisis resultado = analizador.analizarTexto(
+                            new String(cuerpo, java.nio.charset.StandardCharsets.UTF_8));
+                    analisis.registrar((System.nanoTime() - inicioAnalisis) / 1000);
+
+                    // Las repeticiones anidadas pueden multiplicar el audio de un cuerpo pequeño
+                    long muestras = RenderizadorOffline.calcularMuestrasTotales(resultado, formatoPeticion,
+                            (long) SEGUNDOS_MAXIMOS * formatoPeticion.frecuenciaMuestreo());
+                    if (muestras < 0) {
+                        rechazar(intercambio, 413, "La partitura con sus repeticiones expandidas es demasiado larga"
+                                + " (maximo " + SEGUNDOS_MAXIMOS + " s de audio)");
+                        return;
+                    }
+
+                    if (enWav) {
+                        RenderizadorOffline renderizador = new RenderizadorOffline(gramatica, cacheNotas);
+                        renderizador.setFormato(formatoPeticion);
+                        // Con la longitud fija, un fallo a mitad de la síntesis deja la respuesta corta
+                        // y el cliente lo detecta, en vez de recibir un WAV truncado bien cerrado
+                        intercambio.getResponseHeaders().set("Content-Type", "audio/wav");
+                        intercambio.sendResponseHeaders(200, renderizador.bytesWav(muestras));
+                        try (OutputStream flujo = new BufferedOutputStream(intercambio.getResponseBody(), 65536)) {
+                            renderizador.renderizarWav(resultado, flujo, muestras);
+                        }
+                    } else {
+                        String json = Json.estadisticas("peticion", resultado,
+                                muestras / (double) formatoPeticion.frecuenciaMuestreo(),
+                                (System.nanoTime() - inicio) / 1e6);
+                        responder(intercambio, 200, "application/json; charset=utf-8", json);
+                    }
+                } finally {
+                    cupos.release();
+                }
+                atendidas.incrementAndGet();
+                (enWav ? wav : estadisticas).registrar((System.nanoTime() - inicio) / 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fallidas.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                fallidas.incrementAndGet();
+                if (intercambio.getResponseCode() != -1) {
+                    // Con las cabeceras ya enviadas, al propagar el servidor corta la conexión
+                    // y el cliente recibe menos bytes que los anunciados en Content-Length
+                    throw e;
+                }
+                responderTexto(intercambio, 500, "Error al procesar la partitura: " + e.getMessage());
+            } finally {
+                intercambio.close();
+            }
+        }
+
+        private void rechazar(HttpExchange intercambio, int codigo, String mensaje) throws IOException {
+            rechazadas.incrementAndGet();
+            if (codigo == 503) {
+                intercambio.getResponseHeaders().set("Retry-After", "1");
+            }
+            responderTexto(intercambio, codigo, mensaje);
+        }
+
+        private void responderMetricas(HttpExchange intercambio) throws IOException {
+            try (intercambio) {
+                if (!intercambio.getRequestMethod().equals("GET")) {
+                    intercambio.getResponseHeaders().set("Allow", "GET");
+                    responderTexto(intercambio, 405, "Use GET");
+                    return;
+                }
+                responder(intercambio, 200, "application/json; charset=utf-8", Json.servidor(this));
+            }
+        }
+
+        /**
+         * Formato de la petición: ?frecuencia=48000&bits=24; lo que falte toma el del servidor
+         */
+        private FormatoAudio leerFormato(String consulta) {
+            if (consulta == null || consulta.isEmpty())
+                return formato;
+            String frecuencia = String.valueOf(formato.frecuenciaMuestreo());
+            String bits = formato.profundidad() == Profundidad.FLOTANTE_32
+                    ? "flotante" : String.valueOf(formato.profundidad().getBits());
+            for (String parametro : consulta.split("&")) {
+                int igual = parametro.indexOf('=');
+                String clave = igual < 0 ? parametro : parametro.substring(0, igual);
+                String valor = igual < 0 ? "" : parametro.substring(igual + 1);
+                if (clave.equals("frecuencia")) {
+                    frecuencia = valor;
+                } else if (clave.equals("bits")) {
+                    bits = valor;
+                }
+            }
+            return FormatoAudio.leer(frecuencia, bits);
+        }
+
+        private static void responderTexto(HttpExchange intercambio, int codigo, String mensaje) throws IOException {
+            responder(intercambio, codigo, "text/plain; charset=utf-8", mensaje + "\n");
+        }
+
+        private static void responder(HttpExchange intercambio, int codigo, String tipo, String cuerpo)
+                throws IOException {
+            byte[] bytes = cuerpo.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            intercambio.getResponseHeaders().set("Content-Type", tipo);
+            intercambio.sendResponseHeaders(codigo, bytes.length);
+            intercambio.getResponseBody().write(bytes);
+        }
+
+        long getAtendidas() {
+            return atendidas.get();
+        }
+
+        long getRechazadas() {
+            return rechazadas.get();
+        }
+
+        long getFallidas() {
+            return fallidas.get();
+        }
+
+        int getEnCurso() {
+            return limite - cupos.availablePermits();
+        }
+
+        int getEnEspera() {
+            return enEspera.get();
+        }
+
+        int getLimite() {
+            return limite;
+        }
+
+        CacheNotas getCacheNotas() {
+            return cacheNotas;
+        }
+
+        Histograma[] getHistogramas() {
+            return new Histograma[]{espera, analisis, wav, estadisticas};
+        }
+    }
+
+    /**
+     * Utilidades mínimas para escribir JSON sin dependencias externas
+     */
+    private static final class Json {
+        private Json() {
+        }
+
+        static String cadena(String texto) {
+            StringBuilder sb = new StringBuilder(texto.length() + 2).append('"');
+            for (int i = 0; i < texto.length(); i++) {
+                char c = texto.charAt(i);
+                switch (c) {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            return sb.append('"').toString();
+        }
+
+        /**
+         * Telemetría de reproducción con los histogramas completos (solo cubetas con datos)
+         */
+        static String telemetria(TelemetriaAudio telemetria) {
+            StringBuilder json = new StringBuilder("{\n");
+            json.append("  \"sesiones\": ").append(telemetria.getSesiones()).append(",\n");
+            json.append("  \"notas\": ").append(telemetria.getNotas()).append(",\n");
+            json.append("  \"subdesbordamientos\": ").append(telemetria.getSubdesbordamientos()).append(",\n");
+            json.append("  \"muestrasRecortadas\": ").append(telemetria.getMuestrasRecortadas()).append(",\n");
+            cacheNotas(json, telemetria.getCacheNotas());
+            histogramas(json, telemetria.getHistogramas());
+            return json.append("}\n").toString();
+        }
+
+        /**
+         * Métricas de las peticiones atendidas por el servidor de renderizado
+         */
+        static String servidor(ServidorRender servidor) {
+            StringBuilder json = new StringBuilder("{\n");
+            json.append("  \"atendidas\": ").append(servidor.getAtendidas()).append(",\n");
+            json.append("  \"rechazadas\": ").append(servidor.getRechazadas()).append(",\n");
+            json.append("  \"fallidas\": ").append(servidor.getFallidas()).append(",\n");
+            json.append("  \"enCurso\": ").append(servidor.getEnCurso()).append(",\n");
+            json.append("  \"enEspera\": ").append(servidor.getEnEspera()).append(",\n");
+            json.append("  \"limite\": ").append(servidor.getLimite()).append(",\n");
+            cacheNotas(json, servidor.getCacheNotas());
+            histogramas(json, servidor.getHistogramas());
+            return json.append("}\n").toString();
+        }
+
+        private static void cacheNotas(StringBuilder json, CacheNotas cache) {
+            json.append("  \"cacheNotas\": {\"aciertos\": ").append(cache.getAciertos());
+            json.append(", \"fallos\": ").append(cache.getFallos());
+            json.append(", \"desalojos\": ").append(cache.getDesalojos());
+            json.append(", \"entradas\": ").append(cache.getEntradas());
+            json.append(", \"bytes\": ").append(cache.getBytesOcupados()).append("},\n");
+        }
+
+        private static void histogramas(StringBuilder json, Histograma[] histogramas) {
+            json.append("  \"histogramas\": {\n");
+            for (int h = 0; h < histogramas.length; h++) {
+                Histograma histograma = histogramas[h];
+                json.append("    ").append(cadena(histograma.getClave())).append(": {");
+                json.append("\"unidad\": ").append(cadena(histograma.getUnidad()));
+                json.append(", \"cantidad\": ").append(histograma.getCantidad());
+                json.append(", \"media\": ").append(String.format(Locale.ROOT, "%.1f", histograma.media()));
+                json.append(", \"p50\": ").append(histograma.percentil(50));
+                json.append(", \"p90\": ").append(histograma.percentil(90));
+                json.append(", \"p99\": ").append(histograma.percentil(99));
+                json.append(", \"maximo\": ").append(histograma.getMaximo());
+                // Cada cubeta como [límite superior, cantidad]
+                json.append(", \"cubetas\": [");
+                boolean primera = true;
+                for (int i = 0; i < Histograma.CUBETAS; i++) {
+                    long cuenta = histograma.getCuenta(i);
+                    if (cuenta > 0) {
+                        json.append(primera ? "" : ", ").append('[').append(Histograma.limiteSuperior(i))
+                                .append(", ").append(cuenta).append(']');
+                        primera = false;
+                    }
+                }
+                json.append("]}").append(h < histogramas.length - 1 ? "," : "").append("\n");
+            }
+            json.append("  }\n");
+        }
+
+        /**
+         * Estadísticas de una partitura analizada y renderizada
+         */
+        static String estadisticas(String fuente, ResultadoAnalisis resultado, double segundosAudio,
+                double milisegundos) {
+            StringBuilder json = new StringBuilder("{\n");
+            json.append("  \"fuente\": ").append(cadena(fuente)).append(",\n");
+            json.append("  \"parrafos\": ").append(resultado.getTotalParrafos()).append(",\n");
+            json.append("  \"notas\": ").append(resultado.getTotalNotas()).append(",\n");
+            json.append("  \"notasUnicas\": ").append(resultado.getNotasUnicas()).append(",\n");
+            json.append("  \"conteo\": {");
+            for (int base = 0; base < GramaticaMusical.NOMBRES_BASE.length; base++) {
+                json.append(base == 0 ? "" : ", ").append(cadena(GramaticaMusical.NOMBRES_BASE[base]))
+                        .append(": ").append(resultado.getConteoGlobal(base));
+            }
+            json.append("},\n");
+            json.append("  \"segundosAudio\": ").append(String.format(Locale.ROOT, "%.3f", segundosAudio))
+                    .append(",\n");
+            json.append("  \"milisegundosProceso\": ").append(String.format(Locale.ROOT, "%.3f", milisegundos))
+                    .append("\n");
+            return json.append("}\n").toString();
+        }
+    }
+
+    /**
+     * Mide el rendimiento de carga y análisis de una partitura en MB/s
+     * Compara la lectura con BufferedReader y StringBuilder contra el archivo
+     * mapeado y contra la lectura NIO por bloques
+     */
+    private static class BancoCarga {
+        private static final int REPETICIONES = 5;
+
+        private BancoCarga() {
+        }
+
+        static void ejecutar(File archivo) throws IOException {
+            GramaticaMusical gramatica = new GramaticaMusical();
+            AnalizadorMusical analizador = new AnalizadorMusical(gramatica);
+            double megabytes = archivo.length() / (1024.0 * 1024.0);
+
+            System.out.printf("Archivo: %s (%.2f MB)%n", archivo.getName(), megabytes);
+            medir("BufferedReader + StringBuilder", megabytes, () -> {
+                StringBuilder contenido = new StringBuilder();
+                try (BufferedReader lector = new BufferedReader(new FileReader(archivo))) {
+                    String linea;
+                    while ((linea = lector.readLine()) != null) {
+                        contenido.append(linea).append("\n");
+                    }
+                }
+                return analizador.analizarTexto(contenido.toString()).getTotalNotas();
+            });
+            medir("FileChannel.map", megabytes,
+                    () -> analizador.analizarTexto(CargadorPartitura.mapear(archivo)).getTotalNotas());
+            medir("FileChannel.map en paralelo", megabytes,
+                    () -> analizador.analizarEnParalelo(CargadorPartitura.mapear(archivo)).getTotalNotas());
+            medir("NIO por bloques", megabytes, () -> {
+                try (FuenteLineas lineas = new LineasPorBloques(java.nio.channels.FileChannel.open(
+                        archivo.toPath(), java.nio.file.StandardOpenOption.READ), 64 * 1024)) {
+                    return analizador.analizarLineas(lineas).getTotalNotas();
+                }
+            });
+        }
+
+        /**
+         * Una pasada de calentamiento y luego la mejor de varias repeticiones
+         */
+        private static void medir(String nombre, double megabytes, CargaMedida carga) throws IOException {
+            int notas = carga.ejecutar();
+            long mejor = Long.MAX_VALUE;
+            for (int i = 0; i < REPETICIONES; i++) {
+                long inicio = System.nanoTime();
+                notas = carga.ejecutar();
+                mejor = Math.min(mejor, System.nanoTime() - inicio);
+            }
+            double segundos = mejor / 1e9;
+            System.out.printf("  %-32s %8.1f MB/s  (%d notas, %.1f ms)%n",
+                    nombre, megabytes / segundos, notas, segundos * 1000);
+        }
+
+        private interface CargaMedida {
+            int ejecutar() throws IOException;
+        }
+    }
+
+    /**
+     * Banco de pruebas de rendimiento del motor
+     * Mide el autómata, el análisis secuencial y paralelo, la síntesis y la
+     * generación del reporte sobre partituras de 1 KB a 100 MB generadas de
+     * forma determinista a partir de los ejemplos incluidos. Para cada caso
+     * informa operaciones por segundo, MB/s de entrada y bytes asignados por
+     * operación y por segundo; para la síntesis, muestras por segundo
+     */
+    private static class BancoPruebas {
+        private static final String[] EJEMPLOS = { "estrellita.txt", "oda_alegria.txt", "cumpleanos_feliz.txt",
+                "partitura_ejemplo.txt", "ejemplo_octavas.txt", "ejemplo_alteraciones.txt" };
+        private static final long SEMILLA = 20231115L;
+        private static final long[] TAMANOS_POR_DEFECTO = { 1024, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024,
+                100 * 1024 * 1024 };
+        private static final long NANOS_CALENTAMIENTO = 1_000_000_000L;
+        private static final long NANOS_MEDICION = 3_000_000_000L;
+        private static final int ITERACIONES_MINIMAS = 3;
+        private static final int LINEAS_EDICION = 10_000;
+        private static final int FILAS_PANTALLA = 50;
+
+        private final GramaticaMusical gramatica = new GramaticaMusical();
+        private final AnalizadorMusical analizador = new AnalizadorMusical(gramatica);
+        private final com.sun.management.ThreadMXBean hilos = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory
+                .getThreadMXBean();
+        private long sumidero;
+
+        /**
+         * Uso: --benchmark [tamaños separados por coma, p. ej. 1KB,1MB,100MB] [filtro]
+         */
+        static void ejecutar(String[] args) throws IOException {
+            long[] tamanos = args.length > 1 ? leerTamanos(args[1]) : TAMANOS_POR_DEFECTO;
+            String filtro = args.length > 2 ? args[2] : "";
+            new BancoPruebas().ejecutar(tamanos, filtro);
+        }
+
+        private void ejecutar(long[] tamanos, String filtro) throws IOException {
+            List<String> lineas = cargarLineasEjemplo();
+            System.out.printf("%-24s %10s %12s %10s %12s %12s%n", "Prueba", "Tamaño", "ops/s", "MB/s", "B/op",
+                    "MB/s asign.");
+
+            for (long tamano : tamanos) {
+                String texto = generarPartitura(lineas, tamano);
+                double megabytes = texto.length() / (1024.0 * 1024.0);
+                ResultadoAnalisis resultado = analizador.analizarTexto(texto);
+
+                if ("automata".contains(filtro)) {
+                    medir("automata", tamano, megabytes, () -> contarTokens(texto));
+                }
+                if ("analisis".contains(filtro)) {
+                    medir("analisis", tamano, megabytes, () -> analizador.analizarTexto(texto).getTotalNotas());
+                }
+                if ("analisis-paralelo".contains(filtro)) {
+                    medir("analisis-paralelo", tamano, megabytes,
+                            () -> analizador.analizarEnParalelo(texto).getTotalNotas());
+                }
+                if ("compilada".contains(filtro)) {
+                    medirCompilada(texto, resultado, tamano, megabytes);
+                }
+                if ("indice".contains(filtro)) {
+                    medirIndice(texto, tamano, megabytes);
+                }
+                if ("reporte".contains(filtro)) {
+                    // Métricas globales en una pasada más las filas de una pantalla, como al mostrarlo
+                    medir("reporte", tamano, megabytes, () -> {
+                        ReporteParrafos reporte = new ReporteParrafos(resultado, "benchmark");
+                        long caracteres = reporte.resumen().length();
+                        for (int fila = 0; fila < Math.min(FILAS_PANTALLA, reporte.getSize()); fila++) {
+                            caracteres += reporte.getElementAt(fila).length();
+                        }
+                        return caracteres;
+                    });
+                }
+            }
+
+            if ("sintesis".contains(filtro)) {
+                medirSintesis(generarPartitura(lineas, 1024));
+            }
+            if ("mezcla".contains(filtro)) {
+                medirMezcla(32);
+                medirMezcla(64);
+            }
+            if ("edicion".contains(filtro)) {
+                medirEdicion(lineas, LINEAS_EDICION);
+            }
+            System.out.println("(sumidero " + sumidero + ")");
+        }
+
+        /**
+         * Síntesis de todas las notas de una partitura pequeña sin pasar por el
+         * caché: cada forma de onda en el formato estándar y el seno en los
+         * formatos de mayor resolución. Al final, las mismas notas servidas
+         * desde el caché como en la reproducción en vivo
+         */
+        private void medirSintesis(String texto) {
+            PartituraCompacta partitura = analizador.analizarTexto(texto).getPartitura();
+            for (FormaOnda forma : FormaOnda.values()) {
+                medirSintesis("sintesis-" + forma.name().toLowerCase(), texto.length(), partitura, forma,
+                        FormatoAudio.ESTANDAR);
+            }
+            medirSintesis("sintesis-48k-24", texto.length(), partitura, FormaOnda.SENO,
+                    new FormatoAudio(48000, Profundidad.PCM_24));
+            medirSintesis("sintesis-96k-flotante", texto.length(), partitura, FormaOnda.SENO,
+                    new FormatoAudio(96000, Profundidad.FLOTANTE_32));
+            medirSintesisCache("sintesis-cache", texto.length(), partitura, FormaOnda.SENO, FormatoAudio.ESTANDAR);
+        }
+
+        /**
+         * Cada nota se mezcla por bloques en un buffer reutilizable, como en la reproducción
+         */
+        private void medirSintesis(String nombre, long tamano, PartituraCompacta partitura, FormaOnda forma,
+                FormatoAudio formato) {
+            MezcladorVoces mezclador = new MezcladorVoces();
+            mezclador.setFormato(formato);
+            int muestrasNota = formato.muestrasPara(GeneradorSonido.DURACION_NOTA_MS);
+            byte[] bloque = new byte[MezcladorVoces.MUESTRAS_BLOQUE * formato.bytesPorMuestra()];
+            long muestrasPorOperacion = (long) muestrasNota * partitura.getTotalNotas();
+
+            Medicion medicion = medir(() -> {
+                for (int i = 0; i < partitura.getTotalEventos(); i++) {
+                    int evento = partitura.getEvento(i);
+                    if (CodigoNota.esNota(evento)) {
+                        mezclador.limpiar();
+                        mezclador.agregarVoz(forma, gramatica.obtenerFrecuencia(evento),
+                                GeneradorSonido.DURACION_NOTA_MS);
+                        for (int hecho = 0; hecho < muestrasNota; hecho += MezcladorVoces.MUESTRAS_BLOQUE) {
+                            mezclador.mezclar(bloque, 0, Math.min(MezcladorVoces.MUESTRAS_BLOQUE, muestrasNota - hecho));
+                        }
+                    }
+                }
+                return bloque[bloque.length / 2];
+            });
+            System.out.printf("%-24s %10s %12.1f %10s %12.0f %12.1f  %.1f Mmuestras/s%n", nombre,
+                    formatearTamano(tamano), medicion.operacionesPorSegundo(), "-", medicion.bytesPorOperacion(),
+                    medicion.megabytesAsignadosPorSegundo(),
+                    muestrasPorOperacion * medicion.operacionesPorSegundo() / 1e6);
+        }
+
+        /**
+         * Cada nota se busca en el caché y se copia por bloques, como hace el generador
+         * con las notas sueltas; solo la primera aparición de cada nota se sintetiza
+         */
+        private void medirSintesisCache(String nombre, long tamano, PartituraCompacta partitura, FormaOnda forma,
+                FormatoAudio formato) {
+            MezcladorVoces mezclador = new MezcladorVoces();
+            mezclador.setFormato(formato);
+            CacheNotas cache = new CacheNotas(CacheNotas.CAPACIDAD_POR_DEFECTO);
+            int muestrasNota = formato.muestrasPara(GeneradorSonido.DURACION_NOTA_MS);
+            byte[] bloque = new byte[MezcladorVoces.MUESTRAS_BLOQUE * formato.bytesPorMuestra()];
+            long muestrasPorOperacion = (long) muestrasNota * partitura.getTotalNotas();
+
+            Medicion medicion = medir(() -> {
+                for (int i = 0; i < partitura.getTotalEventos(); i++) {
+                    int evento = partitura.getEvento(i);
+                    if (CodigoNota.esNota(evento)) {
+                        double frecuencia = gramatica.obtenerFrecuencia(evento);
+                        ClaveNota clave = new ClaveNota(frecuencia, GeneradorSonido.DURACION_NOTA_MS, forma, formato);
+                        byte[] pcm = cache.obtener(clave);
+                        if (pcm == null) {
+                            pcm = mezclador.sintetizarVoz(forma, frecuencia, GeneradorSonido.DURACION_NOTA_MS);
+                            cache.guardar(clave, pcm);
+                        }
+                        for (int hecho = 0; hecho < pcm.length; hecho += bloque.length) {
+                            System.arraycopy(pcm, hecho, bloque, 0, Math.min(bloque.length, pcm.length - hecho));
+                        }
+                    }
+                }
+                return bloque[bloque.length / 2];
+            });
+            System.out.printf("%-24s %10s %12.1f %10s %12.0f %12.1f  %.1f Mmuestras/s%n", nombre,
+                    formatearTamano(tamano), medicion.operacionesPorSegundo(), "-", medicion.bytesPorOperacion(),
+                    medicion.megabytesAsignadosPorSegundo(),
+                    muestrasPorOperacion * medicion.operacionesPorSegundo() / 1e6);
+        }
+
+        /**
+         * Abrir una partitura desde el caché: la huella del texto más la carga del
+         * archivo compilado, frente a analizar el texto de nuevo
+         */
+        private void medirCompilada(String texto, ResultadoAnalisis resultado, long tamano, double megabytes)
+                throws IOException {
+            Path directorio = Files.createTempDirectory("partituras");
+            CachePartituras cache = new CachePartituras(directorio);
+            java.nio.ByteBuffer fuente = java.nio.ByteBuffer
+                    .wrap(texto.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1));
+            byte[] huella = CachePartituras.huella(fuente);
+            try {
+                cache.guardar(huella, texto.length(), resultado);
+                medir("compilada-huella", tamano, megabytes, () -> CachePartituras.huella(fuente)[0]);
+                medir("compilada-carga", tamano, megabytes, () -> cache.buscar(huella).getTotalNotas());
+                medir("compilada-guardar", tamano, megabytes, () -> {
+                    try {
+                        cache.guardar(huella, texto.length(), resultado);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return 1;
+                });
+            } finally {
+                try (java.util.stream.Stream<Path> archivos = Files.list(directorio)) {
+                    for (Path archivo : (Iterable<Path>) archivos::iterator) {
+                        Files.deleteIfExists(archivo);
+                    }
+                }
+                Files.deleteIfExists(directorio);
+            }
+        }
+
+        /**
+         * Índice de párrafos de un archivo: la pasada que lo arma y el salto a un
+         * párrafo al azar, que lee y analiza solo su línea
+         */
+        private void medirIndice(String texto, long tamano, double megabytes) throws IOException {
+            Path archivo = Files.createTempFile("partitura", ".txt");
+            try {
+                Files.write(archivo, texto.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1));
+                medir("indice-construir", tamano, megabytes, () -> {
+                    try (IndiceParrafos indice = IndiceParrafos.construir(archivo.toFile(), gramatica)) {
+                        return indice.getTotal();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+
+                try (IndiceParrafos indice = IndiceParrafos.construir(archivo.toFile(), gramatica)) {
+                    Random aleatorio = new Random(SEMILLA);
+                    Medicion salto = medir(() -> {
+                        try {
+                            return indice.leerParrafo(aleatorio.nextInt(indice.getTotal())).getTotalNotas();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                    System.out.printf("%-24s %10s %12.1f %10s %12.0f %12.1f  %.2f us/salto%n", "indice-salto",
+                            formatearTamano(tamano), salto.operacionesPorSegundo(), "-", salto.bytesPorOperacion(),
+                            salto.megabytesAsignadosPorSegundo(), 1e6 / salto.operacionesPorSegundo());
+                }
+            } finally {
+                Files.deleteIfExists(archivo);
+            }
+        }
+
+        /**
+         * Latencia del modo edición en vivo sobre una partitura de muchas líneas:
+         * cambiar el texto de una línea y, aparte, insertar y quitar una línea
+         */
+        private void medirEdicion(List<String> ejemplos, int totalLineas) {
+            PartituraEnVivo enVivo = new PartituraEnVivo(gramatica);
+            Random aleatorio = new Random(SEMILLA);
+            for (int i = 0; i < totalLineas; i++) {
+                enVivo.insertarLinea(i, ejemplos.get(aleatorio.nextInt(ejemplos.size())));
+            }
+            int medio = totalLineas / 2;
+            String primera = ejemplos.get(0);
+            String segunda = ejemplos.get(ejemplos.size() - 1) + " do'";
+            int[] vuelta = new int[1];
+
+            Medicion cambio = medir(() -> {
+                enVivo.reemplazarLinea(medio, (vuelta[0]++ & 1) == 0 ? primera : segunda);
+                return enVivo.getEstadisticas().getTotalNotas();
+            });
+            Medicion estructura = medir(() -> {
+                enVivo.insertarLinea(medio, primera);
+                enVivo.quitarLineas(medio, 1);
+                return enVivo.getEstadisticas().getTotalParrafos();
+            });
+
+            String tamano = totalLineas + " lin";
+            System.out.printf("%-24s %10s %12.1f %10s %12.0f %12.1f  %.2f us/edicion%n", "edicion-linea", tamano,
+                    cambio.operacionesPorSegundo(), "-", cambio.bytesPorOperacion(),
+                    cambio.megabytesAsignadosPorSegundo(), 1e6 / cambio.operacionesPorSegundo());
+            System.out.printf("%-24s %10s %12.1f %10s %12.0f %12.1f  %.2f us/edicion%n", "edicion-insertar-quitar",
+                    tamano, estructura.operacionesPorSegundo(), "-", estructura.bytesPorOperacion(),
+                    estructura.megabytesAsignadosPorSegundo(), 1e6 / estructura.operacionesPorSegundo());
+        }
+
+        /**
+         * Mezcla de voces simultáneas; informa cuántas veces más rápido que el tiempo real
+         */
+        private void medirMezcla(int voces) {
+            MezcladorVoces mezclador = new MezcladorVoces();
+            int duracionMs = GeneradorSonido.DURACION_NOTA_MS;
+            int muestras = FormatoAudio.ESTANDAR.muestrasPara(duracionMs);
+            byte[] bloque = new byte[MezcladorVoces.MUESTRAS_BLOQUE * FormatoAudio.ESTANDAR.bytesPorMuestra()];
+
+            Medicion medicion = medir(() -> {
+                mezclador.limpiar();
+                for (int v = 0; v < voces; v++) {
+                    mezclador.agregarVoz(FormaOnda.SIERRA, 110.0 * (1 + v * 0.25), duracionMs);
+                }
+                for (int hecho = 0; hecho < muestras; hecho += MezcladorVoces.MUESTRAS_BLOQUE) {
+                    mezclador.mezclar(bloque, 0, Math.min(MezcladorVoces.MUESTRAS_BLOQUE, muestras - hecho));
+                }
+                return bloque[0];
+            });
+            double tiempoReal = medicion.operacionesPorSegundo() * duracionMs / 1000.0;
+            System.out.printf("%-24s %10s %12.1f %10s %12.0f %12.1f  %.1fx tiempo real%n", "mezcla-" + voces + "-voces",
+                    "-", medicion.operacionesPorSegundo(), "-", medicion.bytesPorOperacion(),
+                    medicion.megabytesAsignadosPorSegundo(), tiempoReal);
+        }
+
+        private void medir(String nombre, long tamano, double megabytes, Operacion operacion) {
+            Medicion medicion = medir(operacion);
+            System.out.printf("%-24s %10s %12.2f %10.1f %12.0f %12.1f%n", nombre, formatearTamano(tamano),
+                    medicion.operacionesPorSegundo(), megabytes * medicion.operacionesPorSegundo(),
+                    medicion.bytesPorOperacion(), medicion.megabytesAsignadosPorSegundo());
+        }
+
+        /**
+         * Calienta la operación y luego la repite hasta cubrir el tiempo de medición
+         * Las asignaciones se suman sobre todos los hilos para incluir el pool fork/join
+         */
+        private Medicion medir(Operacion operacion) {
+            long fin = System.nanoTime() + NANOS_CALENTAMIENTO;
+            int calentamiento = 0;
+            while (calentamiento < ITERACIONES_MINIMAS || System.nanoTime() < fin) {
+                sumidero += operacion.ejecutar();
+                calentamiento++;
+            }
+
+            long asignadoAntes = bytesAsignados();
+            long inicio = System.nanoTime();
+            fin = inicio + NANOS_MEDICION;
+            int iteraciones = 0;
+            while (iteraciones < ITERACIONES_MINIMAS || System.nanoTime() < fin) {
+                sumidero += operacion.ejecutar();
+                iteraciones++;
+            }
+            long nanos = System.nanoTime() - inicio;
+            return new Medicion(iteraciones, nanos, bytesAsignados() - asignadoAntes);
+        }
+
+        private long bytesAsignados() {
+            long total = 0;
+            for (long asignado : hilos.getThreadAllocatedBytes(hilos.getAllThreadIds())) {
+                if (asignado > 0) {
+                    total += asignado;
+                }
+            }
+            return total;
+        }
+
+        private long contarTokens(String texto) {
+            AutomataNotas escaner = gramatica.crearEscaner();
+            escaner.reiniciar(texto, 0, texto.length());
+            long notas = 0;
+            int token;
+            while ((token = escaner.siguiente()) != AutomataNotas.TOKEN_FIN) {
+                if (token == AutomataNotas.TOKEN_NOTA) {
+                    notas += escaner.getNotaBase() + 1;
+                }
+            }
+            return notas;
+        }
+
+        /**
+         * Líneas de los ejemplos incluidos; si no se encuentran se usa una de reserva
+         */
+        private static List<String> cargarLineasEjemplo() throws IOException {
+            List<String> lineas = new ArrayList<>();
+            for (String nombre : EJEMPLOS) {
+                Path ruta = Paths.get(nombre);
+                if (Files.exists(ruta)) {
+                    for (String linea : Files.readAllLines(ruta)) {
+                        if (!linea.isBlank()) {
+                            lineas.add(linea);
+                        }
+                    }
+                }
+            }
+            if (lineas.isEmpty()) {
+                lineas.add("sol sol sol re# fa fa fa re");
+            }
+            return lineas;
+        }
+
+        /**
+         * Partitura del tamaño pedido con líneas de ejemplo elegidas con semilla fija
+         */
+        static String generarPartitura(List<String> lineas, long tamano) {
+            Random aleatorio = new Random(SEMILLA);
+            StringBuilder texto = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, tamano + 256));
+            while (texto.length() < tamano) {
+                texto.append(lineas.get(aleatorio.nextInt(lineas.size()))).append('\n');
+            }
+            texto.setLength((int) tamano);
+            return texto.toString();
+        }
+
+        private static long[] leerTamanos(String lista) {
+            String[] partes = lista.split(",");
+            long[] tamanos = new long[partes.length];
+            for (int i = 0; i < partes.length; i++) {
+                String parte = partes[i].trim().toUpperCase();
+                long factor = 1;
+                if (parte.endsWith("KB")) {
+                    factor = 1024;
+                } else if (parte.endsWith("MB")) {
+                    factor = 1024 * 1024;
+                }
+                tamanos[i] = Long.parseLong(parte.replaceAll("[^0-9]", "")) * factor;
+            }
+            return tamanos;
+        }
+
+        private static String formatearTamano(long bytes) {
+            if (bytes >= 1024 * 1024) {
+                return (bytes / (1024 * 1024)) + " MB";
+            }
+            return bytes >= 1024 ? (bytes / 1024) + " KB" : bytes + " B";
+        }
+
+        private interface Operacion {
+            long ejecutar();
+        }
+
+        private record Medicion(int iteraciones, long nanos, long bytesAsignados) {
+            double operacionesPorSegundo() {
+                return iteraciones / (nanos / 1e9);
+            }
+
+            double bytesPorOperacion() {
+                return bytesAsignados / (double) iteraciones;
+            }
+
+            double megabytesAsignadosPorSegundo() {
+                return bytesAsignados / (1024.0 * 1024.0) / (nanos / 1e9);
+            }
+        }
+    }
+
+    /**
      * Punto de entrada principal del programa
      * Configura la apariencia y lanza la ventana principal
      */
     public static void main(String... args) {
+        // Modo sin interfaz: convertir un directorio de partituras
+        if (args.length > 0 && args[0].equals("--lote")) {
+            try {
+                ConversorLotes.ejecutar(args);
+            } catch (IOException | InterruptedException | IllegalArgumentException e) {
+                System.err.println("Error en la conversion por lotes: " + e.getMessage());
+            }
+            return;
+        }
+
+        // Modo sin interfaz: servidor local de renderizado
+        if (args.length > 0 && args[0].equals("--servidor")) {
+            try {
+                ServidorRender.ejecutar(args);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Error al iniciar el servidor: " + e.getMessage());
+            }
+            return;
+        }
+
+        // Modo sin interfaz: banco de pruebas de rendimiento
+        if (args.length > 0 && args[0].equals("--benchmark")) {
+            try {
+                BancoPruebas.ejecutar(args);
+            } catch (IOException e) {
+                System.err.println("Error en el banco de pruebas: " + e.getMessage());
+            }
+            return;
+        }
+
+        // Modo sin interfaz: medir la carga de una partitura
+        if (args.length == 2 && args[0].equals("--banco-carga")) {
+            try {
+                BancoCarga.ejecutar(new File(args[1]));
+            } catch (IOException e) {
+                System.err.println("Error en la medicion: " + e.getMessage());
+            }
+            return;
+        }
+
         // Configurar look and feel del sistema
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -0,0 +1,130 @@
+package proyectoautomatas;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Prueba diferencial del autómata de notas contra la expresión regular que reemplazó
+ * Las entradas se generan al azar con semilla fija sobre el alfabeto de la gramática
+ * original: nombres de notas, sufijos, letras, dígitos, separadores y no ASCII.
+ * Se excluyen los caracteres de las extensiones posteriores (duraciones, repeticiones,
+ * tempo y octava grave), que la expresión regular no conoce.
+ * Desde la gramática extendida el autómata toma el sufijo completo cuando no le sigue
+ * una letra ("do# re" es DO#, la expresión original daba DO); la comparación usa la
+ * expresión original con solo ese cambio en el límite final
+ */
+public class AutomataNotasTest {
+    private static final Pattern PATRON_ORIGINAL = Pattern.compile(
+            "\\b(DO|RE|MI|FA|SOL|LA|SI)([#bs']*)\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern PATRON_SUFIJO_MAS_LARGO = Pattern.compile(
+            "\\b(DO|RE|MI|FA|SOL|LA|SI)([#bs']*)(?:(?!\\w)|\\b)",
+            Pattern.CASE_INSENSITIVE);
+    private static final String[] NOMBRES_BASE = { "DO", "RE", "MI", "FA", "SOL", "LA", "SI" };
+    private static final String[] FRAGMENTOS = {
+        "do", "re", "mi", "fa", "sol", "la", "si", "DO", "Sol", "lA", "SI",
+        "#", "b", "s", "'", "B", "S", "##", "''",
+        "x", "o", "a", "d", "l", "t", "z", "1", "9", "_",
+        " ", " ", "\n", "\r\n", "\t", "-", ".", "[", "]", "é", "ñ", "♯"
+    };
+    private static final int ENTRADAS_POR_SEMILLA = 20_000;
+    private static final long[] SEMILLAS = { 1L, 42L, 20261018L };
+
+    @Test
+    public void reconoceLasMismasNotasQueLaExpresionRegular() {
+        for (long semilla : SEMILLAS) {
+            Random azar = new Random(semilla);
+            for (int n = 0; n < ENTRADAS_POR_SEMILLA; n++) {
+                String texto = generar(azar);
+                assertEquals("semilla " + semilla + ", entrada " + n + ": " + visible(texto),
+                        conExpresionRegular(PATRON_SUFIJO_MAS_LARGO, texto), conAutomata(texto));
+            }
+        }
+    }
+
+    @Test
+    public void casosConocidos() {
+        // Si sigue una letra, el sufijo retrocede hasta el último límite de palabra como \b
+        assertEquals(List.of("0-3 DO 1 0"), conAutomata("DO#b9"));
+        assertEquals(List.of("0-4 DO 1 1"), conAutomata("dos'x domingo"));
+        assertEquals(List.of(), conAutomata("domingo solo lapiz"));
+        assertEquals(conExpresionRegular(PATRON_ORIGINAL, "sol#'s#b reb"), conAutomata("sol#'s#b reb"));
+    }
+
+    @Test
+    public void tomaElSufijoCompletoAntesDeUnSeparador() {
+        assertEquals(List.of("0-2 DO 0 0", "4-6 RE 0 0", "7-9 MI 0 0"),
+                conExpresionRegular(PATRON_ORIGINAL, "do# re mi'"));
+        assertEquals(List.of("0-3 DO 1 0", "4-6 RE 0 0", "7-10 MI 0 1"), conAutomata("do# re mi'"));
+        assertEquals(List.of("0-4 SI 2 0"), conAutomata("si##."));
+    }
+
+    @Test
+    public void comaSeguidaDeBlancoEsPuntuacion() {
+        assertEquals(List.of("0-2 DO 0 0", "4-6 RE 0 0", "8-10 MI 0 0"), conAutomata("do, re, mi"));
+        assertEquals(List.of("0-3 SOL 0 0", "5-7 LA 0 0"), conAutomata("sol,\nla"));
+        // Seguida de otra cosa, la coma baja la octava
+        assertEquals(List.of("0-5 DO 0 -1", "6-12 RE 0 -2"), conAutomata("do,:4 re,,:8"));
+        assertEquals(List.of("1-3 MI 0 0", "4-7 DO 0 -1"), conAutomata("[mi do,]"));
+        assertEquals(List.of("0-4 LA 0 0"), conAutomata("la,'"));
+    }
+
+    private static String generar(Random azar) {
+        StringBuilder texto = new StringBuilder();
+        int piezas = 1 + azar.nextInt(12);
+        for (int i = 0; i < piezas; i++) {
+            texto.append(FRAGMENTOS[azar.nextInt(FRAGMENTOS.length)]);
+        }
+        return texto.toString();
+    }
+
+    /**
+     * Cada nota como "inicio-fin BASE alteración octava", igual que la interpretaba el código original
+     */
+    private static List<String> conExpresionRegular(Pattern patron, String texto) {
+        List<String> notas = new ArrayList<>();
+        Matcher matcher = patron.matcher(texto);
+        while (matcher.find()) {
+            String sufijo = matcher.group(2).toLowerCase();
+            int alteracion = 0;
+            int octava = 0;
+            for (char c : sufijo.toCharArray()) {
+                if (c == '#' || c == 's') {
+                    alteracion++;
+                } else if (c == 'b') {
+                    alteracion--;
+                } else {
+                    octava++;
+                }
+            }
+            notas.add(matcher.start() + "-" + matcher.end() + " " + matcher.group(1).toUpperCase()
+                    + " " + alteracion + " " + octava);
+        }
+        return notas;
+    }
+
+    private static List<String> conAutomata(String texto) {
+        List<String> notas = new ArrayList<>();
+        SistemaMusica.AutomataNotas automata = new SistemaMusica.AutomataNotas();
+        automata.reiniciar(texto, 0, texto.length());
+        int token;
+        while ((token = automata.siguiente()) != SistemaMusica.AutomataNotas.TOKEN_FIN) {
+            if (token == SistemaMusica.AutomataNotas.TOKEN_NOTA) {
+                notas.add(automata.getInicioToken() + "-" + automata.getFinToken() + " "
+                        + NOMBRES_BASE[automata.getNotaBase()] + " " + automata.getAlteracion()
+                        + " " + automata.getOctava());
+            }
+        }
+        return notas;
+    }
+
+    private static String visible(String texto) {
+        return texto.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+    }
+}